@@ -0,0 +1,125 @@
+package org.matheclipse.core.grpc.benchmarks;
+
+import java.math.BigInteger;
+
+import org.matheclipse.core.basic.Config;
+import org.matheclipse.core.expression.F;
+import org.matheclipse.core.interfaces.IASTAppendable;
+import org.matheclipse.core.interfaces.IExpr;
+
+/**
+ * Representative expression trees for the benchmarks.
+ */
+public class BenchmarkExpressions {
+
+	private static boolean initialized = false;
+
+	/**
+	 * Initialize the Symja symbols once per JVM.
+	 */
+	public static synchronized void init() {
+		if (!initialized) {
+			Config.FILESYSTEM_ENABLED = true;
+			F.initSymbols(null, null, true);
+			initialized = true;
+		}
+	}
+
+	/**
+	 * Create the expression for one of the shapes <code>wide, deep, packed, bigint</code>.
+	 * 
+	 * @param shape
+	 * @return
+	 */
+	public static IExpr create(String shape) {
+		if (shape.equals("wide")) {
+			return wide(10000);
+		}
+		if (shape.equals("deep")) {
+			return deep(1000);
+		}
+		if (shape.equals("packed")) {
+			return packed(100000);
+		}
+		if (shape.equals("bigint")) {
+			return bigIntegers(1000, 1000);
+		}
+		throw new IllegalArgumentException("Unknown shape: " + shape);
+	}
+
+	/**
+	 * A polynomial <code>1*x^1 + 2*x^2 + ... + n*x^n</code> with <code>n</code> terms.
+	 * 
+	 * @param n
+	 * @return
+	 */
+	public static IExpr wide(int n) {
+		IASTAppendable plus = F.ast(F.Plus, n, false);
+		for (int i = 1; i <= n; i++) {
+			plus.append(F.Times(F.integer(i), F.Power(F.x, F.integer(i))));
+		}
+		return plus;
+	}
+
+	/**
+	 * A continued fraction <code>1/(1+1/(1+...))</code> nested <code>depth</code> levels.
+	 * 
+	 * @param depth
+	 * @return
+	 */
+	public static IExpr deep(int depth) {
+		IExpr expr = F.x;
+		for (int i = 0; i < depth; i++) {
+			expr = F.Power(F.Plus(F.C1, expr), F.CN1);
+		}
+		return expr;
+	}
+
+	/**
+	 * A <code>List</code> of <code>n</code> machine real numbers.
+	 * 
+	 * @param n
+	 * @return
+	 */
+	public static IExpr packed(int n) {
+		IASTAppendable list = F.ListAlloc(n);
+		for (int i = 0; i < n; i++) {
+			list.append(F.num(Math.sin(i)));
+		}
+		return list;
+	}
+
+	/**
+	 * A <code>List</code> of <code>n</code> integers with about <code>digits</code> decimal digits.
+	 * 
+	 * @param n
+	 * @param digits
+	 * @return
+	 */
+	public static IExpr bigIntegers(int n, int digits) {
+		BigInteger base = BigInteger.TEN.pow(digits);
+		IASTAppendable list = F.ListAlloc(n);
+		for (int i = 0; i < n; i++) {
+			list.append(F.integer(base.add(BigInteger.valueOf(i))));
+		}
+		return list;
+	}
+
+	/**
+	 * A small symbolic request like the ones sent by batch jobs: <code>D(Sin(x)^2, x)</code>.
+	 * 
+	 * @return
+	 */
+	public static IExpr smallRequest() {
+		return F.D(F.Power(F.Sin(F.x), F.C2), F.x);
+	}
+
+	/**
+	 * A request whose evaluation fails: <code>Abort()</code> throws an <code>AbortException</code> in the engine.
+	 * 
+	 * @return
+	 */
+	public static IExpr failingRequest() {
+		return F.ast(F.Abort);
+	}
+}
@@ -0,0 +1,94 @@
+package org.matheclipse.core.grpc.benchmarks;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.matheclipse.core.grpc.PBExpr;
+import org.matheclipse.core.grpc.convert.IExpr2Protobuf;
+import org.matheclipse.core.grpc.convert.Protobuf2IExpr;
+import org.matheclipse.core.interfaces.IExpr;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.CodedInputStream;
+
+/**
+ * Throughput of <code>IExpr2Protobuf</code> and <code>Protobuf2IExpr</code> on the shapes of
+ * {@link BenchmarkExpressions}. The serialized sizes of the plain and the shared encoding are printed at setup.
+ * <code>serializeDirect</code> and <code>decodeDirect</code> measure the direct codec of the gRPC marshallers, which
+ * skips the generated message objects.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ConversionBenchmark {
+
+	@Param({ "wide", "deep", "packed", "bigint" })
+	public String shape;
+
+	private IExpr fExpr;
+
+	private PBExpr fMessage;
+
+	private byte[] fBytes;
+
+	@Setup
+	public void setup() {
+		BenchmarkExpressions.init();
+		fExpr = BenchmarkExpressions.create(shape);
+		fMessage = IExpr2Protobuf.CONST.convert(fExpr);
+		fBytes = fMessage.toByteArray();
+		if (!IExpr2Protobuf.CONST.encode(fExpr).toByteString().equals(ByteString.copyFrom(fBytes))) {
+			throw new IllegalStateException("The direct encoding of " + shape + " differs from the generated one");
+		}
+		System.out.println();
+		System.out.println("Serialized size of " + shape + ": " + fBytes.length + " bytes, shared encoding: "
+				+ IExpr2Protobuf.CONST.convertShared(fExpr).getSerializedSize() + " bytes");
+	}
+
+	@Benchmark
+	public PBExpr encode() {
+		return IExpr2Protobuf.CONST.convert(fExpr);
+	}
+
+	@Benchmark
+	public IExpr decode() {
+		return Protobuf2IExpr.CONST.convert(fMessage);
+	}
+
+	@Benchmark
+	public byte[] encodeAndSerialize() {
+		return IExpr2Protobuf.CONST.convert(fExpr).toByteArray();
+	}
+
+	@Benchmark
+	public IExpr parseAndDecode() throws IOException {
+		CodedInputStream input = CodedInputStream.newInstance(fBytes);
+		// the deep shape exceeds the default nesting limit of 100
+		input.setRecursionLimit(Integer.MAX_VALUE);
+		return Protobuf2IExpr.CONST.convert(PBExpr.parseFrom(input));
+	}
+
+	@Benchmark
+	public ByteString serializeDirect() {
+		return IExpr2Protobuf.CONST.encode(fExpr).toByteString();
+	}
+
+	@Benchmark
+	public IExpr decodeDirect() throws IOException {
+		return Protobuf2IExpr.CONST.convert(CodedInputStream.newInstance(fBytes));
+	}
+}
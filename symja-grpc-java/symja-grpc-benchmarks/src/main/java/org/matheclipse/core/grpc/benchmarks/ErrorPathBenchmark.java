@@ -0,0 +1,102 @@
+package org.matheclipse.core.grpc.benchmarks;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.matheclipse.core.grpc.PBError;
+import org.matheclipse.core.grpc.PBExpr;
+import org.matheclipse.core.grpc.SymjaServiceGrpc;
+import org.matheclipse.core.grpc.convert.IExpr2Protobuf;
+import org.matheclipse.core.grpc.samples.server.EvalErrors;
+import org.matheclipse.core.grpc.samples.server.EvaluatorPool;
+import org.matheclipse.core.grpc.samples.server.ServerOptions;
+import org.matheclipse.core.grpc.samples.server.SymjaServiceImpl;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import io.grpc.ManagedChannel;
+import io.grpc.Server;
+import io.grpc.StatusRuntimeException;
+import io.grpc.inprocess.InProcessChannelBuilder;
+import io.grpc.inprocess.InProcessServerBuilder;
+
+/**
+ * Latency of a failed <code>eval</code> call compared with a successful one. A failed call classifies the exception,
+ * sends the <code>PBError</code> in the trailers and is decoded again by the client. The <code>errorlog</code>
+ * parameter is the maximum number of logged errors per second: <code>0</code> measures the error path without logging,
+ * the default rate of <code>10</code> shows the cost of the rate limited log when errors arrive faster than that.
+ */
+@State(Scope.Benchmark)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ErrorPathBenchmark {
+
+	@Param({ "0", "10" })
+	public int errorlog;
+
+	private Server fServer;
+
+	private ManagedChannel fChannel;
+
+	private SymjaServiceImpl fService;
+
+	private SymjaServiceGrpc.SymjaServiceBlockingStub fStub;
+
+	private PBExpr fRequest;
+
+	private PBExpr fFailingRequest;
+
+	@Setup(Level.Trial)
+	public void setup() throws IOException {
+		BenchmarkExpressions.init();
+		String name = "symja-error-benchmark-" + System.nanoTime();
+		ServerOptions options = new ServerOptions();
+		options.setErrorLogRate(errorlog);
+		EvaluatorPool pool = new EvaluatorPool(options.getPoolSize());
+		pool.warmUp();
+		fService = new SymjaServiceImpl(pool, options);
+		fServer = InProcessServerBuilder.forName(name).addService(fService).build().start();
+		fChannel = InProcessChannelBuilder.forName(name).build();
+		fStub = SymjaServiceGrpc.newBlockingStub(fChannel);
+		fRequest = IExpr2Protobuf.CONST.convert(BenchmarkExpressions.smallRequest());
+		fFailingRequest = IExpr2Protobuf.CONST.convert(BenchmarkExpressions.failingRequest());
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws InterruptedException {
+		fChannel.shutdownNow().awaitTermination(5, TimeUnit.SECONDS);
+		fServer.shutdownNow().awaitTermination(5, TimeUnit.SECONDS);
+		fService.shutdown();
+	}
+
+	@Benchmark
+	@BenchmarkMode(Mode.SampleTime)
+	@OutputTimeUnit(TimeUnit.MICROSECONDS)
+	public PBExpr success() {
+		return fStub.eval(fRequest);
+	}
+
+	@Benchmark
+	@BenchmarkMode(Mode.SampleTime)
+	@OutputTimeUnit(TimeUnit.MICROSECONDS)
+	public PBError error() {
+		try {
+			fStub.eval(fFailingRequest);
+			return null;
+		} catch (StatusRuntimeException sre) {
+			return EvalErrors.errorOf(sre);
+		}
+	}
+}
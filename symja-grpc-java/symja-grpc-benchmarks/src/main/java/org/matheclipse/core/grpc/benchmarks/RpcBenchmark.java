@@ -0,0 +1,132 @@
+package org.matheclipse.core.grpc.benchmarks;
+
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.matheclipse.core.grpc.PBEvalRequest;
+import org.matheclipse.core.grpc.PBEvalResponse;
+import org.matheclipse.core.grpc.PBExpr;
+import org.matheclipse.core.grpc.SymjaServiceGrpc;
+import org.matheclipse.core.grpc.convert.IExpr2Protobuf;
+import org.matheclipse.core.grpc.samples.server.EvaluatorPool;
+import org.matheclipse.core.grpc.samples.server.ServerOptions;
+import org.matheclipse.core.grpc.samples.server.SymjaServiceImpl;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import io.grpc.ManagedChannel;
+import io.grpc.Server;
+import io.grpc.inprocess.InProcessChannelBuilder;
+import io.grpc.inprocess.InProcessServerBuilder;
+import io.grpc.stub.StreamObserver;
+
+/**
+ * End-to-end latency of the <code>eval</code> and <code>evalStream</code> RPCs against an in-process server, so the
+ * benchmark runs without network access. <code>SampleTime</code> mode reports the latency percentiles; the
+ * <code>throughput</code> benchmark is run with different thread counts by {@link ScalingRunner}.
+ */
+@State(Scope.Benchmark)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RpcBenchmark {
+
+	/**
+	 * Number of requests sent in one <code>evalStream</code> call.
+	 */
+	static final int BATCH = 100;
+
+	private Server fServer;
+
+	private ManagedChannel fChannel;
+
+	private SymjaServiceImpl fService;
+
+	private PBExpr fRequest;
+
+	@State(Scope.Thread)
+	public static class Client {
+		SymjaServiceGrpc.SymjaServiceBlockingStub fBlockingStub;
+		SymjaServiceGrpc.SymjaServiceStub fAsyncStub;
+
+		@Setup
+		public void setup(RpcBenchmark benchmark) {
+			fBlockingStub = SymjaServiceGrpc.newBlockingStub(benchmark.fChannel);
+			fAsyncStub = SymjaServiceGrpc.newStub(benchmark.fChannel);
+		}
+	}
+
+	@Setup(Level.Trial)
+	public void setup() throws IOException {
+		BenchmarkExpressions.init();
+		String name = "symja-benchmark-" + System.nanoTime();
+		ServerOptions options = new ServerOptions();
+		EvaluatorPool pool = new EvaluatorPool(options.getPoolSize());
+		pool.warmUp();
+		fService = new SymjaServiceImpl(pool, options);
+		fServer = InProcessServerBuilder.forName(name).addService(fService).build().start();
+		fChannel = InProcessChannelBuilder.forName(name).build();
+		fRequest = IExpr2Protobuf.CONST.convert(BenchmarkExpressions.smallRequest());
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws InterruptedException {
+		fChannel.shutdownNow().awaitTermination(5, TimeUnit.SECONDS);
+		fServer.shutdownNow().awaitTermination(5, TimeUnit.SECONDS);
+		fService.shutdown();
+	}
+
+	@Benchmark
+	@BenchmarkMode(Mode.SampleTime)
+	@OutputTimeUnit(TimeUnit.MICROSECONDS)
+	public PBExpr unary(Client client) {
+		return client.fBlockingStub.eval(fRequest);
+	}
+
+	@Benchmark
+	@BenchmarkMode(Mode.SampleTime)
+	@OutputTimeUnit(TimeUnit.MICROSECONDS)
+	@OperationsPerInvocation(BATCH)
+	public void streaming(Client client) throws InterruptedException {
+		final CountDownLatch finished = new CountDownLatch(1);
+		StreamObserver<PBEvalRequest> requests = client.fAsyncStub.evalStream(new StreamObserver<PBEvalResponse>() {
+			@Override
+			public void onNext(PBEvalResponse value) {
+			}
+
+			@Override
+			public void onError(Throwable t) {
+				finished.countDown();
+			}
+
+			@Override
+			public void onCompleted() {
+				finished.countDown();
+			}
+		});
+		for (int i = 0; i < BATCH; i++) {
+			requests.onNext(PBEvalRequest.newBuilder().setId(i).setExpr(fRequest).build());
+		}
+		requests.onCompleted();
+		finished.await();
+	}
+
+	@Benchmark
+	@BenchmarkMode(Mode.Throughput)
+	@OutputTimeUnit(TimeUnit.SECONDS)
+	public PBExpr throughput(Client client) {
+		return client.fBlockingStub.eval(fRequest);
+	}
+}
@@ -0,0 +1,39 @@
+package org.matheclipse.core.grpc.benchmarks;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+import org.openjdk.jmh.results.RunResult;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs {@link RpcBenchmark#throughput} with 1, 2, 4, ... client threads up to twice the number of cores and prints
+ * the server throughput for each thread count.
+ */
+public class ScalingRunner {
+
+	public static void main(String[] args) throws RunnerException {
+		int maxThreads = 2 * Runtime.getRuntime().availableProcessors();
+		List<String> lines = new ArrayList<String>();
+		for (int threads = 1; threads <= maxThreads; threads *= 2) {
+			Options options = new OptionsBuilder().//
+					include(RpcBenchmark.class.getName() + ".throughput").//
+					threads(threads).//
+					build();
+			Collection<RunResult> results = new Runner(options).run();
+			for (RunResult result : results) {
+				lines.add(String.format("%3d threads: %12.1f %s", threads, result.getPrimaryResult().getScore(),
+						result.getPrimaryResult().getScoreUnit()));
+			}
+		}
+		System.out.println();
+		System.out.println("Server throughput scaling:");
+		for (String line : lines) {
+			System.out.println(line);
+		}
+	}
+}
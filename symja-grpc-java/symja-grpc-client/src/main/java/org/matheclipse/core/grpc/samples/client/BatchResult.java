@@ -0,0 +1,62 @@
+package org.matheclipse.core.grpc.samples.client;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.matheclipse.core.grpc.PBError;
+import org.matheclipse.core.interfaces.IExpr;
+
+/**
+ * The results of {@link SymjaClientPool#evalBatch(List)} in the order of the expressions. The result of a failed
+ * evaluation is <code>$Aborted</code>; the error which the server sent for it, for example a timeout or a syntax
+ * error, is kept with its index.
+ */
+public class BatchResult {
+
+	private final IExpr[] fResults;
+
+	private final PBError[] fErrors;
+
+	BatchResult(IExpr[] results, PBError[] errors) {
+		fResults = results;
+		fErrors = errors;
+	}
+
+	/**
+	 * @return the results, one per expression
+	 */
+	public List<IExpr> getResults() {
+		return Arrays.asList(fResults);
+	}
+
+	/**
+	 * @param index
+	 *            the index of an expression
+	 * @return <code>true</code> if the evaluation failed
+	 */
+	public boolean isError(int index) {
+		return fErrors[index] != null;
+	}
+
+	/**
+	 * @param index
+	 *            the index of an expression
+	 * @return the error of the failed evaluation or <code>null</code> if it succeeded
+	 */
+	public PBError getError(int index) {
+		return fErrors[index];
+	}
+
+	/**
+	 * @return the number of failed evaluations
+	 */
+	public int errorCount() {
+		int count = 0;
+		for (PBError error : fErrors) {
+			if (error != null) {
+				count++;
+			}
+		}
+		return count;
+	}
+}
@@ -0,0 +1,138 @@
+package org.matheclipse.core.grpc.samples.client;
+
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+
+import org.matheclipse.core.expression.F;
+import org.matheclipse.core.grpc.PBChunkBytes;
+import org.matheclipse.core.grpc.PBChunkHeaderBytes;
+import org.matheclipse.core.grpc.convert.Protobuf2IExpr;
+import org.matheclipse.core.interfaces.IASTAppendable;
+import org.matheclipse.core.interfaces.IExpr;
+
+import com.google.protobuf.ByteString;
+
+import io.grpc.Status;
+import io.grpc.StatusRuntimeException;
+import io.grpc.stub.ClientCallStreamObserver;
+import io.grpc.stub.ClientResponseObserver;
+
+/**
+ * Reassembles the result of an <code>evalChunked</code> call. Every batch is converted and appended as soon as it
+ * arrives, so the protocol buffer messages of the earlier batches can be collected while the rest is still received.
+ * The expressions are decoded directly from their bytes, so their depth isn't limited.
+ * <p>
+ * An invalid chunk completes the result exceptionally with status <code>INTERNAL</code> and cancels the call; the
+ * following chunks are ignored.
+ */
+public class ChunkAssembler implements ClientResponseObserver<ByteString, PBChunkBytes> {
+
+	private final CompletableFuture<IExpr> fResult = new CompletableFuture<IExpr>();
+
+	/**
+	 * The request side of the call, which cancels it; <code>null</code> if the call wasn't started with this observer.
+	 */
+	private ClientCallStreamObserver<ByteString> fCall = null;
+
+	private IExpr fExpr = null;
+
+	private IASTAppendable fAST = null;
+
+	private int fArgCount = 0;
+
+	private final Protobuf2IExpr fDecoder;
+
+	public ChunkAssembler() {
+		this(Protobuf2IExpr.CONST);
+	}
+
+	/**
+	 * 
+	 * @param decoder
+	 *            the decoder of the received expressions
+	 */
+	public ChunkAssembler(Protobuf2IExpr decoder) {
+		fDecoder = decoder;
+	}
+
+	/**
+	 * @return the future result, completed after the trailer was received
+	 */
+	public CompletableFuture<IExpr> getResult() {
+		return fResult;
+	}
+
+	@Override
+	public void beforeStart(ClientCallStreamObserver<ByteString> requestStream) {
+		fCall = requestStream;
+	}
+
+	@Override
+	public void onNext(PBChunkBytes chunk) {
+		if (fResult.isDone()) {
+			return;
+		}
+		try {
+			append(chunk);
+		} catch (StatusRuntimeException sre) {
+			fResult.completeExceptionally(sre);
+			if (fCall != null) {
+				fCall.cancel("invalid chunked result", sre);
+			}
+		}
+	}
+
+	private void append(PBChunkBytes chunk) {
+		switch (chunk.getPartCase()) {
+		case HEADER:
+			PBChunkHeaderBytes header = chunk.getHeader();
+			if (header.getHead().isEmpty()) {
+				fExpr = decode(header.getExpr());
+			} else {
+				fAST = F.ast(decode(header.getHead()), header.getArgCount() + 1, false);
+				fExpr = fAST;
+			}
+			break;
+		case BATCH:
+			if (fAST == null) {
+				throw Status.INTERNAL.withDescription("batch without AST header").asRuntimeException();
+			}
+			for (ByteString arg : chunk.getBatch().getArgList()) {
+				fAST.append(decode(arg));
+				fArgCount++;
+			}
+			break;
+		case TRAILER:
+			if (chunk.getTrailer().getArgCount() != fArgCount) {
+				throw Status.INTERNAL.withDescription("expected " + chunk.getTrailer().getArgCount()
+						+ " arguments, received " + fArgCount).asRuntimeException();
+			}
+			fResult.complete(fExpr);
+			break;
+		default:
+		}
+	}
+
+	private IExpr decode(ByteString expr) {
+		try {
+			return fDecoder.convert(expr);
+		} catch (IOException e) {
+			throw Status.INTERNAL.withDescription("Invalid protobuf byte sequence").withCause(e).asRuntimeException();
+		} catch (IllegalArgumentException | NullPointerException e) {
+			throw Status.INTERNAL.withDescription("Invalid expression").withCause(e).asRuntimeException();
+		}
+	}
+
+	@Override
+	public void onError(Throwable t) {
+		fResult.completeExceptionally(t);
+	}
+
+	@Override
+	public void onCompleted() {
+		if (!fResult.isDone()) {
+			fResult.completeExceptionally(
+					Status.INTERNAL.withDescription("chunked result without trailer").asRuntimeException());
+		}
+	}
+}
@@ -0,0 +1,50 @@
+package org.matheclipse.core.grpc.samples.client;
+
+import java.util.BitSet;
+
+/**
+ * The results of {@link SymjaClientPool#map(org.matheclipse.core.interfaces.IExpr, double[])} in the order of the
+ * input. An element whose result isn't a real number, or whose part of the input wasn't evaluated because the server
+ * was saturated, is NaN and marked as an error.
+ */
+public class MapResult {
+
+	private final double[] fValues;
+
+	private final BitSet fErrors;
+
+	MapResult(double[] values, BitSet errors) {
+		fValues = values;
+		fErrors = errors;
+	}
+
+	/**
+	 * @return the results, one per input value
+	 */
+	public double[] getValues() {
+		return fValues;
+	}
+
+	/**
+	 * @param index
+	 *            the index of an input value
+	 * @return <code>true</code> if the element failed
+	 */
+	public boolean isError(int index) {
+		return fErrors.get(index);
+	}
+
+	/**
+	 * @return the number of failed elements
+	 */
+	public int errorCount() {
+		return fErrors.cardinality();
+	}
+
+	/**
+	 * @return the indices of the failed elements in ascending order
+	 */
+	public int[] getErrorIndices() {
+		return fErrors.stream().toArray();
+	}
+}
@@ -0,0 +1,67 @@
+package org.matheclipse.core.grpc.samples.client;
+
+import org.matheclipse.core.grpc.PBExecuteRequest;
+import org.matheclipse.core.grpc.PBPackedIntVector;
+import org.matheclipse.core.grpc.PBPackedVector;
+import org.matheclipse.core.grpc.PBPrepareRequestBytes;
+
+/**
+ * A template expression which was prepared on the server. The template is kept, so that it can be prepared again on
+ * another server or after the server evicted it.
+ */
+public class PreparedExpr {
+
+	private final PBPrepareRequestBytes fRequest;
+
+	private final long fHandle;
+
+	PreparedExpr(PBPrepareRequestBytes request, long handle) {
+		fRequest = request;
+		fHandle = handle;
+	}
+
+	PBPrepareRequestBytes getRequest() {
+		return fRequest;
+	}
+
+	public long getHandle() {
+		return fHandle;
+	}
+
+	/**
+	 * @return the number of slots of the template
+	 */
+	public int slotCount() {
+		return fRequest.getSlotCount();
+	}
+
+	/**
+	 * Create the request of an execution with machine number slot values.
+	 *
+	 * @param values
+	 *            one value per slot
+	 * @return
+	 */
+	public PBExecuteRequest bind(double... values) {
+		PBPackedVector.Builder packed = PBPackedVector.newBuilder();
+		for (double value : values) {
+			packed.addValue(value);
+		}
+		return PBExecuteRequest.newBuilder().setHandle(fHandle).setRealValues(packed).build();
+	}
+
+	/**
+	 * Create the request of an execution with integer slot values.
+	 *
+	 * @param values
+	 *            one value per slot
+	 * @return
+	 */
+	public PBExecuteRequest bind(long... values) {
+		PBPackedIntVector.Builder packed = PBPackedIntVector.newBuilder();
+		for (long value : values) {
+			packed.addValue(value);
+		}
+		return PBExecuteRequest.newBuilder().setHandle(fHandle).setIntValues(packed).build();
+	}
+}
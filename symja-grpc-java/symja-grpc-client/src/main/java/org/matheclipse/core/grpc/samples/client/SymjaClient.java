@@ -28,6 +28,9 @@ import java.io.StringWriter;
 import java.nio.charset.StandardCharsets;
 import java.text.DecimalFormat;
 import java.text.DecimalFormatSymbols;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
 import java.util.Locale;
 import java.util.concurrent.TimeUnit;
 
@@ -40,17 +43,14 @@ import org.matheclipse.core.expression.F;
 import org.matheclipse.core.form.Documentation;
 import org.matheclipse.core.form.output.ASCIIPrettyPrinter3;
 import org.matheclipse.core.form.output.OutputFormFactory;
-import org.matheclipse.core.grpc.PBExpr;
-import org.matheclipse.core.grpc.SymjaServiceGrpc;
-import org.matheclipse.core.grpc.convert.IExpr2Protobuf;
-import org.matheclipse.core.grpc.convert.Protobuf2IExpr;
+import org.matheclipse.core.grpc.PBError;
+import org.matheclipse.core.grpc.samples.server.EvalErrors;
 import org.matheclipse.core.interfaces.IExpr;
 import org.matheclipse.parser.client.Scanner;
 import org.matheclipse.parser.client.SyntaxError;
 import org.matheclipse.parser.client.math.MathException;
 
-import io.grpc.ManagedChannel;
-import io.grpc.ManagedChannelBuilder;
+import io.grpc.StatusRuntimeException;
 
 public class SymjaClient {
 
@@ -79,13 +79,17 @@ public class SymjaClient {
 
 	private static int COUNTER = 1;
 
-	private static ManagedChannel channel;
+	private static SymjaClientPool pool;
 
 	public static void main(final String args[]) {
 		Config.FILESYSTEM_ENABLED = true;
 		F.initSymbols(null, null, true);
-		// Create a channel
-		channel = ManagedChannelBuilder.forAddress(HOST, PORT).usePlaintext(true).build();
+		try {
+			pool = createPool(args);
+		} catch (final IOException | IllegalArgumentException e) {
+			System.out.println(e.getMessage());
+			return;
+		}
 
 		SymjaClient console;
 		try {
@@ -97,6 +101,7 @@ public class SymjaClient {
 		String inputExpression = null;
 		String trimmedInput = null;
 		console.setArgs(args);
+		pool.setTimeout(console.fSeconds, TimeUnit.SECONDS);
 
 		final File file = console.getFile();
 		if (file != null) {
@@ -144,11 +149,13 @@ public class SymjaClient {
 								&& trimmedInput.toLowerCase(Locale.ENGLISH).substring(0, 10).equals("timeoutoff")) {
 							System.out.println("Disabling timeout for evaluation");
 							console.fSeconds = -1;
+							pool.setTimeout(0, TimeUnit.SECONDS);
 							continue;
 						} else if ((trimmedInput.length() >= 9)
 								&& trimmedInput.toLowerCase(Locale.ENGLISH).substring(0, 9).equals("timeouton")) {
 							System.out.println("Enabling timeout for evaluation to 60 seconds.");
 							console.fSeconds = 60;
+							pool.setTimeout(console.fSeconds, TimeUnit.SECONDS);
 							continue;
 						} else if (trimmedInput.length() > 1 && trimmedInput.charAt(0) == '?') {
 							Documentation.findDocumentation(System.out, trimmedInput);
@@ -176,7 +183,7 @@ public class SymjaClient {
 			}
 		} finally {
 			try {
-				channel.shutdown().awaitTermination(5, TimeUnit.SECONDS);
+				pool.close();
 			} catch (InterruptedException e) {
 				// TODO Auto-generated catch block
 				e.printStackTrace();
@@ -236,6 +243,10 @@ public class SymjaClient {
 		msg.append("        -file <filename>                      use given file as input script" + lineSeparator);
 		msg.append("  -d or -default <filename>                   use given textfile for system rules" + lineSeparator);
 		msg.append("  -pp                                         enable pretty printer" + lineSeparator);
+		msg.append("  -targets <host:port,...> or <filename>      server nodes (default localhost:50051)"
+				+ lineSeparator);
+		msg.append("  -policy <name>                              pick_first, round_robin or least_loaded"
+				+ lineSeparator);
 
 		msg.append("To stop the program type: exit<RETURN>" + lineSeparator);
 		msg.append("To continue an input line type: \\<RETURN>" + lineSeparator);
@@ -257,6 +268,34 @@ public class SymjaClient {
 		fOutputFactory = OutputFormFactory.get(true, false, decimalFormat);
 	}
 
+	/**
+	 * Create the reusable client. The <code>-targets</code> argument is a comma separated list of
+	 * <code>host:port</code> server nodes or the name of a file with one node per line; the default is a single channel
+	 * to <code>localhost:50051</code>.
+	 *
+	 * @param args
+	 *            the arguments of the program
+	 * @return
+	 * @throws IOException
+	 *             if the targets file can't be read
+	 */
+	private static SymjaClientPool createPool(final String args[]) throws IOException {
+		List<String> targets = Collections.singletonList(HOST + ":" + PORT);
+		SymjaClientPool.Selection selection = SymjaClientPool.Selection.ROUND_ROBIN;
+		for (int i = 0; i < args.length - 1; i++) {
+			if (args[i].equals("-targets")) {
+				File file = new File(args[i + 1]);
+				targets = file.isFile() ? SymjaClientPool.readTargets(file) : Arrays.asList(args[i + 1].split(","));
+			} else if (args[i].equals("-policy")) {
+				selection = SymjaClientPool.Selection.valueOf(args[i + 1].toUpperCase(Locale.ENGLISH));
+			}
+		}
+		if (targets.isEmpty()) {
+			throw new IllegalArgumentException("No targets specified");
+		}
+		return SymjaClientPool.forTargets(targets, 16, selection);
+	}
+
 	/**
 	 * Sets the arguments for the <code>main</code> method
 	 * 
@@ -342,6 +381,9 @@ public class SymjaClient {
 				}
 			} else if (arg.equals("-pp")) {
 				fPrettyPrinter = true;
+			} else if (arg.equals("-targets") || arg.equals("-policy")) {
+				// already used in createPool()
+				i++;
 			} else if (arg.charAt(0) == '-') {
 				// we don't have any more args to recognize!
 				final String msg = "Unknown arg: " + arg;
@@ -366,14 +408,8 @@ public class SymjaClient {
 		try {
 
 			IExpr inputExpr = fEvaluator.parse(inputExpression);
-			// Create a blocking stub with the channel
-			SymjaServiceGrpc.SymjaServiceBlockingStub stub = SymjaServiceGrpc.newBlockingStub(channel);
-			// PBExpr request = IExpr2Protobuf.CONST.convert(F.Factorial(F.C10));
-			PBExpr request = IExpr2Protobuf.CONST.convert(inputExpr);
-
-			// Send the request using the stub
-			PBExpr pbResult = stub.eval(request);
-			result = Protobuf2IExpr.CONST.convert(pbResult);
+			// Send the request with the reusable client
+			result = pool.eval(inputExpr);
 
 			// if (fSeconds <= 0) {
 			// result = fEvaluator.eval(inputExpression);
@@ -395,6 +431,9 @@ public class SymjaClient {
 			System.err.println();
 			System.err.println(msg);
 			return "";
+		} catch (final StatusRuntimeException sre) {
+			printError(sre);
+			return "";
 		} catch (final RuntimeException re) {
 			Throwable me = re.getCause();
 			if (me instanceof MathException) {
@@ -416,6 +455,21 @@ public class SymjaClient {
 		return buf.toString();
 	}
 
+	/**
+	 * Print the error of a failed call; a failed evaluation is printed with its error code.
+	 *
+	 * @param sre
+	 */
+	private static void printError(StatusRuntimeException sre) {
+		PBError error = EvalErrors.errorOf(sre);
+		System.err.println();
+		if (error != null) {
+			System.err.println(error.getCode() + ": " + error.getMessage());
+		} else {
+			System.err.println(sre.getStatus().getCode() + ": " + sre.getStatus().getDescription());
+		}
+	}
+
 	private String printResult(IExpr result) throws IOException {
 		if (result.equals(F.Null)) {
 			return "";
@@ -435,14 +489,8 @@ public class SymjaClient {
 		final StringWriter buf = new StringWriter();
 		try {
 			IExpr inputExpr = fEvaluator.parse(inputExpression);
-			// Create a blocking stub with the channel
-			SymjaServiceGrpc.SymjaServiceBlockingStub stub = SymjaServiceGrpc.newBlockingStub(channel);
-			// PBExpr request = IExpr2Protobuf.CONST.convert(F.Factorial(F.C10));
-			PBExpr request = IExpr2Protobuf.CONST.convert(inputExpr);
-
-			// Send the request using the stub
-			PBExpr pbResult = stub.eval(request);
-			result = Protobuf2IExpr.CONST.convert(pbResult);
+			// Send the request with the reusable client
+			result = pool.eval(inputExpr);
 			// if (fSeconds <= 0) {
 			// result = fEvaluator.eval(inputExpression);
 			// } else {
@@ -461,6 +509,9 @@ public class SymjaClient {
 			System.err.println();
 			System.err.println(msg);
 			return null;
+		} catch (final StatusRuntimeException sre) {
+			printError(sre);
+			return null;
 		} catch (final RuntimeException re) {
 			Throwable me = re.getCause();
 			if (me instanceof MathException) {
@@ -0,0 +1,1127 @@
+package org.matheclipse.core.grpc.samples.client;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+import org.matheclipse.core.expression.F;
+import org.matheclipse.core.grpc.PBChunkBytes;
+import org.matheclipse.core.grpc.PBError;
+import org.matheclipse.core.grpc.PBEvalRequestBytes;
+import org.matheclipse.core.grpc.PBEvalResponseBytes;
+import org.matheclipse.core.grpc.PBExecuteRequest;
+import org.matheclipse.core.grpc.PBExpr;
+import org.matheclipse.core.grpc.PBMapRequestBytes;
+import org.matheclipse.core.grpc.PBMapResponse;
+import org.matheclipse.core.grpc.PBPackedVector;
+import org.matheclipse.core.grpc.PBPrepareRequestBytes;
+import org.matheclipse.core.grpc.PBPrepared;
+import org.matheclipse.core.grpc.PBSymbolTable;
+import org.matheclipse.core.grpc.SymjaServiceGrpc;
+import org.matheclipse.core.grpc.convert.IExpr2Protobuf;
+import org.matheclipse.core.grpc.convert.IExprMarshaller;
+import org.matheclipse.core.grpc.convert.Protobuf2IExpr;
+import org.matheclipse.core.grpc.convert.SymbolTable;
+import org.matheclipse.core.grpc.convert.WireMethods;
+import org.matheclipse.core.grpc.samples.server.ResponseCompression;
+import org.matheclipse.core.grpc.samples.server.ResultCache;
+import org.matheclipse.core.interfaces.IExpr;
+
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.protobuf.ByteString;
+
+import io.grpc.CallOptions;
+import io.grpc.ClientCall;
+import io.grpc.ManagedChannel;
+import io.grpc.ManagedChannelBuilder;
+import io.grpc.MethodDescriptor;
+import io.grpc.Status;
+import io.grpc.StatusRuntimeException;
+import io.grpc.health.v1.HealthCheckRequest;
+import io.grpc.health.v1.HealthCheckResponse;
+import io.grpc.health.v1.HealthGrpc;
+import io.grpc.inprocess.InProcessChannelBuilder;
+import io.grpc.stub.ClientCallStreamObserver;
+import io.grpc.stub.ClientCalls;
+import io.grpc.stub.ClientResponseObserver;
+import io.grpc.stub.StreamObserver;
+
+/**
+ * A reusable client for one or more Symja servers which keeps many evaluations in flight. The pool holds one or more
+ * channels per server node and selects one of them for every call. The number of concurrent calls per channel is
+ * limited; calls above the limit wait in a queue and are started when a call finishes.
+ * <p>
+ * A channel whose call fails with <code>UNAVAILABLE</code> is marked as unhealthy and isn't selected again until a
+ * periodic health check succeeds. Side-effect free evaluations (see {@link ResultCache#isSideEffectFree(PBExpr)})
+ * which fail with <code>UNAVAILABLE</code> are retried on another channel.
+ * <p>
+ * The pool exchanges the ids of the built-in symbols with every server once per connection (the
+ * <code>symbolTable</code> RPC). Expressions are encoded with the ids known to all servers and decoded with the
+ * longest table, so clients and servers with a newer <code>PBBuiltinSymbol</code> enum work together. A server whose
+ * table contradicts the table of this client isn't selected.
+ */
+public class SymjaClientPool implements AutoCloseable {
+
+	/**
+	 * How a channel is selected for the next call.
+	 */
+	public enum Selection {
+		/** use the first healthy channel in the order of the targets, the others are only used for failover */
+		PICK_FIRST,
+		/** use the channels one after the other */
+		ROUND_ROBIN,
+		/** use the channel with the fewest running calls */
+		LEAST_LOADED
+	}
+
+	/**
+	 * A call which is started on the channel selected for it.
+	 */
+	private interface Call {
+		void start(PooledChannel channel);
+	}
+
+	/**
+	 * Prefix of in-process targets, for example <code>in-process:node1</code>.
+	 */
+	public static final String IN_PROCESS = "in-process:";
+
+	/**
+	 * Default interval of the health checks in milliseconds.
+	 */
+	public static final long HEALTH_CHECK_INTERVAL = 5000L;
+
+	/**
+	 * Maximum number of input values of a single <code>evalMap</code> request, so that request and response stay
+	 * below the default maximum message size.
+	 */
+	public static final int MAP_BATCH = 128 * 1024;
+
+	private static final HealthCheckRequest HEALTH_CHECK = HealthCheckRequest.newBuilder()
+			.setService(SymjaServiceGrpc.SERVICE_NAME).build();
+
+	/**
+	 * Evaluated by the health check of servers without the gRPC health service.
+	 */
+	private static final PBExpr HEALTH_CHECK_EXPR = IExpr2Protobuf.CONST.convert(F.C1);
+
+	/**
+	 * The handshake request, the server only sends its names if its table has a different version.
+	 */
+	private static final PBSymbolTable SYMBOL_TABLE_REQUEST = SymbolTable.DEFAULT.toMessage(false);
+
+	/**
+	 * Encodes all built-in symbols by their names, so that any server can decode them.
+	 */
+	private static final IExpr2Protobuf NAME_ENCODER = new IExpr2Protobuf(SymbolTable.DEFAULT, 0);
+
+	private static final Logger LOGGER = Logger.getLogger(SymjaClientPool.class.getName());
+
+	private class PooledChannel {
+		final ManagedChannel fChannel;
+		final String fTarget;
+		final Semaphore fPermits;
+		final AtomicInteger fOutstanding = new AtomicInteger();
+		volatile boolean fHealthy = true;
+
+		/**
+		 * The symbol table of the server; <code>null</code> until the handshake succeeded.
+		 */
+		volatile SymbolTable fSymbols = null;
+
+		/**
+		 * <code>false</code> if the symbol table of the server contradicts the tables of this client or the other
+		 * servers.
+		 */
+		volatile boolean fCompatible = true;
+
+		PooledChannel(ManagedChannel channel) {
+			fChannel = channel;
+			fTarget = channel.authority();
+			fPermits = new Semaphore(fMaxConcurrentPerChannel);
+		}
+
+		CallOptions callOptions() {
+			return fTimeoutMillis > 0 ? CallOptions.DEFAULT.withDeadlineAfter(fTimeoutMillis, TimeUnit.MILLISECONDS)
+					: CallOptions.DEFAULT;
+		}
+
+		<ReqT, RespT> ClientCall<ReqT, RespT> newCall(MethodDescriptor<ReqT, RespT> method) {
+			return fChannel.newCall(method, callOptions());
+		}
+
+		/**
+		 * 
+		 * @param anyHealthy
+		 *            <code>true</code> if any compatible channel is healthy
+		 * @return <code>true</code> if a call may be started on this channel
+		 */
+		boolean isCandidate(boolean anyHealthy) {
+			return fCompatible && (fHealthy || !anyHealthy);
+		}
+
+		/**
+		 * Called when a call on this channel is finished.
+		 */
+		void finished() {
+			fOutstanding.decrementAndGet();
+			fPermits.release();
+			dispatch();
+		}
+
+		/**
+		 * Called when a call on this channel failed. Marks the channel as unhealthy if the server is not reachable.
+		 *
+		 * @param t
+		 * @return <code>true</code> if the call may be retried on another channel
+		 */
+		boolean failed(Throwable t) {
+			if (Status.fromThrowable(t).getCode() == Status.Code.UNAVAILABLE) {
+				fHealthy = false;
+				return true;
+			}
+			return false;
+		}
+
+		/**
+		 * Ask the gRPC health service of the server whether it is serving. A server which is still starting reports
+		 * <code>NOT_SERVING</code>.
+		 */
+		void checkHealth() {
+			if (fSymbols == null) {
+				handshake();
+			}
+			ListenableFuture<HealthCheckResponse> future = HealthGrpc.newFutureStub(fChannel)
+					.withDeadlineAfter(fHealthCheckTimeoutMillis, TimeUnit.MILLISECONDS).check(HEALTH_CHECK);
+			Futures.addCallback(future, new FutureCallback<HealthCheckResponse>() {
+				@Override
+				public void onSuccess(HealthCheckResponse response) {
+					setHealthy(response.getStatus() == HealthCheckResponse.ServingStatus.SERVING);
+				}
+
+				@Override
+				public void onFailure(Throwable t) {
+					if (Status.fromThrowable(t).getCode() == Status.Code.UNIMPLEMENTED) {
+						checkEval();
+					} else {
+						setHealthy(false);
+					}
+				}
+			}, MoreExecutors.directExecutor());
+		}
+
+		/**
+		 * The health check of servers without the gRPC health service: evaluate a constant.
+		 */
+		private void checkEval() {
+			ListenableFuture<PBExpr> future = SymjaServiceGrpc.newFutureStub(fChannel)
+					.withDeadlineAfter(fHealthCheckTimeoutMillis, TimeUnit.MILLISECONDS).eval(HEALTH_CHECK_EXPR);
+			Futures.addCallback(future, new FutureCallback<PBExpr>() {
+				@Override
+				public void onSuccess(PBExpr value) {
+					setHealthy(true);
+				}
+
+				@Override
+				public void onFailure(Throwable t) {
+					setHealthy(false);
+				}
+			}, MoreExecutors.directExecutor());
+		}
+
+		/**
+		 * Exchange the symbol tables with the server. A server without the <code>symbolTable</code> RPC uses the
+		 * generated table; after other failures the handshake is repeated with the next health check.
+		 */
+		void handshake() {
+			ListenableFuture<PBSymbolTable> future = SymjaServiceGrpc.newFutureStub(fChannel)
+					.withDeadlineAfter(fHealthCheckTimeoutMillis, TimeUnit.MILLISECONDS)
+					.symbolTable(SYMBOL_TABLE_REQUEST);
+			final PooledChannel channel = this;
+			Futures.addCallback(future, new FutureCallback<PBSymbolTable>() {
+				@Override
+				public void onSuccess(PBSymbolTable response) {
+					if (response.getNameCount() == 0 && response.getVersion() == SymbolTable.DEFAULT.getVersion()) {
+						setSymbols(channel, SymbolTable.DEFAULT);
+					} else {
+						setSymbols(channel, SymbolTable.of(response));
+					}
+				}
+
+				@Override
+				public void onFailure(Throwable t) {
+					if (Status.fromThrowable(t).getCode() == Status.Code.UNIMPLEMENTED) {
+						setSymbols(channel, SymbolTable.DEFAULT);
+					}
+				}
+			}, MoreExecutors.directExecutor());
+		}
+
+		private void setHealthy(boolean healthy) {
+			boolean recovered = healthy && !fHealthy;
+			fHealthy = healthy;
+			if (recovered) {
+				// the server may have been restarted with another version
+				handshake();
+				dispatch();
+			}
+		}
+	}
+
+	private final List<PooledChannel> fChannels;
+
+	private final int fMaxConcurrentPerChannel;
+
+	private final Selection fSelection;
+
+	private final ConcurrentLinkedQueue<Call> fPending = new ConcurrentLinkedQueue<Call>();
+
+	private final AtomicInteger fNext = new AtomicInteger();
+
+	private final AtomicLong fRetries = new AtomicLong();
+
+	private final ScheduledExecutorService fHealthChecker;
+
+	private ScheduledFuture<?> fHealthCheck;
+
+	/**
+	 * Deadline of a single call in milliseconds. <code>0</code> means no deadline.
+	 */
+	private volatile long fTimeoutMillis = 0L;
+
+	/**
+	 * Maximum number of attempts of a side-effect free evaluation.
+	 */
+	private volatile int fMaxAttempts = 3;
+
+	private volatile long fHealthCheckTimeoutMillis = 1000L;
+
+	/**
+	 * Encodes with the ids which all servers know; sends the names of all built-in symbols until every handshake
+	 * succeeded.
+	 */
+	private volatile IExpr2Protobuf fEncoder = NAME_ENCODER;
+
+	/**
+	 * Decodes with the longest symbol table of all servers.
+	 */
+	private volatile Protobuf2IExpr fDecoder = Protobuf2IExpr.CONST;
+
+	/**
+	 * The <code>eval</code> method, which encodes and decodes the expressions without the generated message objects.
+	 */
+	private volatile MethodDescriptor<IExpr, IExpr> fEvalMethod = evalMethod(
+			new IExprMarshaller(NAME_ENCODER, Protobuf2IExpr.CONST));
+
+	/**
+	 * Create a pool of plaintext channels to one server.
+	 *
+	 * @param host
+	 * @param port
+	 * @param channels
+	 *            the number of channels
+	 * @param maxConcurrentPerChannel
+	 *            the maximum number of running calls per channel
+	 * @param selection
+	 */
+	public SymjaClientPool(String host, int port, int channels, int maxConcurrentPerChannel, Selection selection) {
+		this(createChannels(host, port, channels), maxConcurrentPerChannel, selection);
+	}
+
+	/**
+	 * Create a pool with one plaintext channel per server node.
+	 *
+	 * @param targets
+	 *            the server nodes in the form <code>host:port</code> or <code>in-process:name</code>
+	 * @param maxConcurrentPerChannel
+	 *            the maximum number of running calls per channel
+	 * @param selection
+	 * @return
+	 * @throws IllegalArgumentException
+	 *             if a target is invalid
+	 */
+	public static SymjaClientPool forTargets(List<String> targets, int maxConcurrentPerChannel, Selection selection) {
+		List<ManagedChannel> channels = new ArrayList<ManagedChannel>(targets.size());
+		for (String target : targets) {
+			channels.add(createChannel(target));
+		}
+		return new SymjaClientPool(channels, maxConcurrentPerChannel, selection);
+	}
+
+	/**
+	 * Create a pool with one plaintext channel per server node listed in the file. The file contains one target per
+	 * line (see {@link #forTargets(List, int, Selection)}); empty lines and lines starting with <code>#</code> are
+	 * ignored.
+	 *
+	 * @param file
+	 * @param maxConcurrentPerChannel
+	 *            the maximum number of running calls per channel
+	 * @param selection
+	 * @return
+	 * @throws IOException
+	 */
+	public static SymjaClientPool fromFile(File file, int maxConcurrentPerChannel, Selection selection)
+			throws IOException {
+		return forTargets(readTargets(file), maxConcurrentPerChannel, selection);
+	}
+
+	/**
+	 * Read the targets from the file, one per line.
+	 *
+	 * @param file
+	 * @return
+	 * @throws IOException
+	 */
+	public static List<String> readTargets(File file) throws IOException {
+		List<String> targets = new ArrayList<String>();
+		BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+		try {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				line = line.trim();
+				if (line.length() > 0 && line.charAt(0) != '#') {
+					targets.add(line);
+				}
+			}
+		} finally {
+			reader.close();
+		}
+		return targets;
+	}
+
+	/**
+	 * Create a pool of existing channels, for example in-process channels. The pool takes ownership of the channels
+	 * and shuts them down in {@link #close()}.
+	 *
+	 * @param channels
+	 * @param maxConcurrentPerChannel
+	 *            the maximum number of running calls per channel
+	 * @param selection
+	 */
+	public SymjaClientPool(List<ManagedChannel> channels, int maxConcurrentPerChannel, Selection selection) {
+		if (channels.isEmpty() || maxConcurrentPerChannel < 1) {
+			throw new IllegalArgumentException("A pool needs at least one channel and one call per channel");
+		}
+		fMaxConcurrentPerChannel = maxConcurrentPerChannel;
+		fSelection = selection;
+		List<PooledChannel> list = new ArrayList<PooledChannel>(channels.size());
+		for (ManagedChannel channel : channels) {
+			list.add(new PooledChannel(channel));
+		}
+		fChannels = Collections.unmodifiableList(list);
+		fHealthChecker = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "symja-health-check");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		setHealthCheckInterval(HEALTH_CHECK_INTERVAL, TimeUnit.MILLISECONDS);
+		for (PooledChannel channel : fChannels) {
+			channel.handshake();
+		}
+	}
+
+	private static List<ManagedChannel> createChannels(String host, int port, int count) {
+		ManagedChannel[] channels = new ManagedChannel[count];
+		for (int i = 0; i < count; i++) {
+			channels[i] = configure(ManagedChannelBuilder.forAddress(host, port).usePlaintext(true)).build();
+		}
+		return Arrays.asList(channels);
+	}
+
+	private static ManagedChannel createChannel(String target) {
+		if (target.startsWith(IN_PROCESS)) {
+			return configure(InProcessChannelBuilder.forName(target.substring(IN_PROCESS.length()))).build();
+		}
+		int index = target.lastIndexOf(':');
+		if (index <= 0) {
+			throw new IllegalArgumentException("Target must have the form host:port: " + target);
+		}
+		try {
+			int port = Integer.parseInt(target.substring(index + 1));
+			return configure(ManagedChannelBuilder.forAddress(target.substring(0, index), port).usePlaintext(true))
+					.build();
+		} catch (NumberFormatException nfe) {
+			throw new IllegalArgumentException("Target must have the form host:port: " + target);
+		}
+	}
+
+	/**
+	 * Register the codecs of the server, so that large responses can be sent compressed.
+	 *
+	 * @param builder
+	 * @return
+	 */
+	private static ManagedChannelBuilder<?> configure(ManagedChannelBuilder<?> builder) {
+		return builder.compressorRegistry(ResponseCompression.compressors())
+				.decompressorRegistry(ResponseCompression.decompressors());
+	}
+
+	/**
+	 * Store the symbol table of a server and update the encoder and decoder of the pool. Until the handshake of every
+	 * server succeeded, the built-in symbols are sent by their names, because a server may not know all ids of the
+	 * generated table.
+	 *
+	 * @param channel
+	 * @param symbols
+	 */
+	private void setSymbols(PooledChannel channel, SymbolTable symbols) {
+		synchronized (this) {
+			channel.fSymbols = symbols;
+			SymbolTable longest = SymbolTable.DEFAULT;
+			for (PooledChannel c : fChannels) {
+				SymbolTable table = c.fSymbols;
+				if (table != null && table.size() > longest.size() && isCompatible(table, SymbolTable.DEFAULT)) {
+					longest = table;
+				}
+			}
+			int limit = SymbolTable.DEFAULT.size();
+			for (PooledChannel c : fChannels) {
+				SymbolTable table = c.fSymbols;
+				boolean compatible = table == null || isCompatible(table, longest);
+				if (table == null) {
+					limit = 0;
+				} else if (compatible) {
+					limit = Math.min(limit, table.size());
+				} else if (c.fCompatible) {
+					LOGGER.warning("The built-in symbols of " + c.fTarget + " contradict the symbols of this client");
+				}
+				c.fCompatible = compatible;
+			}
+			if (longest == SymbolTable.DEFAULT && limit == SymbolTable.DEFAULT.size()) {
+				fEncoder = IExpr2Protobuf.CONST;
+				fDecoder = Protobuf2IExpr.CONST;
+				fEvalMethod = evalMethod(IExprMarshaller.CONST);
+			} else {
+				fEncoder = new IExpr2Protobuf(longest, limit);
+				fDecoder = new Protobuf2IExpr(longest);
+				fEvalMethod = evalMethod(new IExprMarshaller(fEncoder, fDecoder));
+			}
+		}
+		dispatch();
+	}
+
+	private static MethodDescriptor<IExpr, IExpr> evalMethod(IExprMarshaller marshaller) {
+		return SymjaServiceGrpc.METHOD_EVAL.toBuilder(marshaller, marshaller).build();
+	}
+
+	/**
+	 * 
+	 * @param table1
+	 * @param table2
+	 * @return <code>true</code> if one table is a prefix of the other
+	 */
+	private static boolean isCompatible(SymbolTable table1, SymbolTable table2) {
+		return table1.commonPrefix(table2) == Math.min(table1.size(), table2.size());
+	}
+
+	/**
+	 * Set the deadline of every following call.
+	 *
+	 * @param timeout
+	 *            <code>0</code> for no deadline
+	 * @param unit
+	 */
+	public void setTimeout(long timeout, TimeUnit unit) {
+		fTimeoutMillis = unit.toMillis(timeout);
+	}
+
+	/**
+	 * Set the maximum number of attempts of a side-effect free evaluation which fails because its server node is not
+	 * available.
+	 *
+	 * @param maxAttempts
+	 *            <code>1</code> disables retries
+	 */
+	public void setMaxAttempts(int maxAttempts) {
+		fMaxAttempts = Math.max(1, maxAttempts);
+	}
+
+	/**
+	 * Check the health of every channel periodically. An unhealthy channel is selected again after a successful
+	 * check.
+	 *
+	 * @param interval
+	 *            <code>0</code> disables the health checks
+	 * @param unit
+	 */
+	public synchronized void setHealthCheckInterval(long interval, TimeUnit unit) {
+		if (fHealthCheck != null) {
+			fHealthCheck.cancel(false);
+			fHealthCheck = null;
+		}
+		long millis = unit.toMillis(interval);
+		if (millis > 0) {
+			fHealthCheckTimeoutMillis = Math.min(millis, 1000L);
+			fHealthCheck = fHealthChecker.scheduleWithFixedDelay(new Runnable() {
+				@Override
+				public void run() {
+					for (PooledChannel channel : fChannels) {
+						channel.checkHealth();
+					}
+				}
+			}, millis, millis, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	/**
+	 * Evaluate an expression on the server.
+	 *
+	 * @param expr
+	 * @return the future result
+	 */
+	public CompletableFuture<IExpr> evalAsync(IExpr expr) {
+		int maxAttempts = fMaxAttempts > 1 && ResultCache.isSideEffectFree(expr) ? fMaxAttempts : 1;
+		return unary(fEvalMethod, expr, maxAttempts);
+	}
+
+	/**
+	 * Send an encoded expression to the servers <code>eval</code> RPC.
+	 *
+	 * @param request
+	 * @return the future encoded result
+	 */
+	public CompletableFuture<PBExpr> evalAsync(final PBExpr request) {
+		int maxAttempts = fMaxAttempts > 1 && ResultCache.isSideEffectFree(request) ? fMaxAttempts : 1;
+		return unary(SymjaServiceGrpc.METHOD_EVAL, request, maxAttempts);
+	}
+
+	/**
+	 * Start a unary call on the selected channel. A call which fails because its server node is not available is
+	 * retried on another channel.
+	 *
+	 * @param method
+	 * @param request
+	 * @param maxAttempts
+	 *            <code>1</code> if the call must not be retried
+	 * @return the future response
+	 */
+	private <ReqT, RespT> CompletableFuture<RespT> unary(final MethodDescriptor<ReqT, RespT> method,
+			final ReqT request, final int maxAttempts) {
+		final CompletableFuture<RespT> result = new CompletableFuture<RespT>();
+		submit(new Call() {
+			int fAttempts = 0;
+
+			@Override
+			public void start(final PooledChannel channel) {
+				final Call call = this;
+				fAttempts++;
+				ListenableFuture<RespT> future = ClientCalls
+						.futureUnaryCall(channel.fChannel.newCall(method, channel.callOptions()), request);
+				Futures.addCallback(future, new FutureCallback<RespT>() {
+					@Override
+					public void onSuccess(RespT value) {
+						channel.finished();
+						result.complete(value);
+					}
+
+					@Override
+					public void onFailure(Throwable t) {
+						boolean retry = channel.failed(t) && fAttempts < maxAttempts;
+						channel.finished();
+						if (retry) {
+							fRetries.incrementAndGet();
+							submit(call);
+						} else {
+							result.completeExceptionally(t);
+						}
+					}
+				}, MoreExecutors.directExecutor());
+			}
+		});
+		return result;
+	}
+
+	/**
+	 * Evaluate an expression on the server and wait for the result.
+	 *
+	 * @param expr
+	 * @return
+	 * @throws io.grpc.StatusRuntimeException
+	 *             if the call failed
+	 */
+	public IExpr eval(IExpr expr) {
+		try {
+			return evalAsync(expr).join();
+		} catch (CompletionException ce) {
+			if (ce.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) ce.getCause();
+			}
+			throw ce;
+		}
+	}
+
+	/**
+	 * Evaluate an expression with the <code>evalChunked</code> RPC. The arguments of a large result are received in
+	 * batches, so the result may be larger than the maximum message size.
+	 *
+	 * @param expr
+	 * @return the future result
+	 */
+	public CompletableFuture<IExpr> evalChunked(IExpr expr) {
+		final ByteString request = fEncoder.encode(expr).toByteString();
+		final ChunkAssembler assembler = new ChunkAssembler(fDecoder);
+		submit(new Call() {
+			@Override
+			public void start(final PooledChannel channel) {
+				ClientResponseObserver<ByteString, PBChunkBytes> observer;
+				observer = new ClientResponseObserver<ByteString, PBChunkBytes>() {
+					@Override
+					public void beforeStart(ClientCallStreamObserver<ByteString> requestStream) {
+						assembler.beforeStart(requestStream);
+					}
+
+					@Override
+					public void onNext(PBChunkBytes chunk) {
+						assembler.onNext(chunk);
+					}
+
+					@Override
+					public void onError(Throwable t) {
+						channel.failed(t);
+						channel.finished();
+						assembler.onError(t);
+					}
+
+					@Override
+					public void onCompleted() {
+						channel.finished();
+						assembler.onCompleted();
+					}
+				};
+				ClientCalls.asyncServerStreamingCall(channel.newCall(WireMethods.EVAL_CHUNKED), request, observer);
+			}
+		});
+		return assembler.getResult();
+	}
+
+	/**
+	 * Evaluate <code>function(x)</code> for every value of the input. The input is split into requests of at most
+	 * {@link #MAP_BATCH} values which are sent in parallel, possibly to different server nodes.
+	 *
+	 * @param function
+	 *            for example <code>N(BesselJ(0, #))&amp;</code>
+	 * @param input
+	 * @return the future results; an element which didn't evaluate to a real number is NaN and marked as an error
+	 */
+	public CompletableFuture<MapResult> map(IExpr function, final double[] input) {
+		ByteString pbFunction = fEncoder.encode(function).toByteString();
+		final double[] output = new double[input.length];
+		final BitSet errors = new BitSet(input.length);
+		List<CompletableFuture<?>> parts = new ArrayList<CompletableFuture<?>>();
+		for (int from = 0; from < input.length; from += MAP_BATCH) {
+			final int offset = from;
+			int to = Math.min(input.length, from + MAP_BATCH);
+			PBPackedVector.Builder packed = PBPackedVector.newBuilder();
+			for (int i = from; i < to; i++) {
+				packed.addValue(input[i]);
+			}
+			final PBMapRequestBytes request = PBMapRequestBytes.newBuilder().//
+					setFunction(pbFunction).//
+					setRealInput(packed).//
+					build();
+			final CompletableFuture<Void> part = new CompletableFuture<Void>();
+			parts.add(part);
+			submit(new Call() {
+				@Override
+				public void start(final PooledChannel channel) {
+					ListenableFuture<PBMapResponse> future = ClientCalls
+							.futureUnaryCall(channel.newCall(WireMethods.EVAL_MAP), request);
+					Futures.addCallback(future, new FutureCallback<PBMapResponse>() {
+						@Override
+						public void onSuccess(PBMapResponse value) {
+							channel.finished();
+							PBPackedVector values = value.getValue();
+							for (int i = 0; i < values.getValueCount(); i++) {
+								output[offset + i] = values.getValue(i);
+							}
+							synchronized (errors) {
+								for (int index : value.getErrorIndexList()) {
+									errors.set(offset + index);
+								}
+							}
+							part.complete(null);
+						}
+
+						@Override
+						public void onFailure(Throwable t) {
+							channel.failed(t);
+							channel.finished();
+							part.completeExceptionally(t);
+						}
+					}, MoreExecutors.directExecutor());
+				}
+			});
+		}
+		return CompletableFuture.allOf(parts.toArray(new CompletableFuture<?>[parts.size()]))
+				.thenApply(v -> new MapResult(output, errors));
+	}
+
+	/**
+	 * Store a template on the server. The slots are the user symbols with the given names; their values are passed to
+	 * {@link #execute(PreparedExpr, PBExecuteRequest)}.
+	 *
+	 * @param template
+	 * @param slots
+	 *            the names of the slot symbols
+	 * @return the future prepared template
+	 */
+	public CompletableFuture<PreparedExpr> prepare(IExpr template, String... slots) {
+		PBPrepareRequestBytes.Builder builder = PBPrepareRequestBytes.newBuilder();
+		builder.setTemplate(fEncoder.encode(template).toByteString());
+		for (String slot : slots) {
+			builder.addSlot(slot);
+		}
+		final PBPrepareRequestBytes request = builder.build();
+		final CompletableFuture<PreparedExpr> result = new CompletableFuture<PreparedExpr>();
+		submit(new Call() {
+			@Override
+			public void start(final PooledChannel channel) {
+				ListenableFuture<PBPrepared> future = ClientCalls
+						.futureUnaryCall(channel.newCall(WireMethods.PREPARE), request);
+				Futures.addCallback(future, new FutureCallback<PBPrepared>() {
+					@Override
+					public void onSuccess(PBPrepared value) {
+						channel.finished();
+						result.complete(new PreparedExpr(request, value.getHandle()));
+					}
+
+					@Override
+					public void onFailure(Throwable t) {
+						channel.failed(t);
+						channel.finished();
+						result.completeExceptionally(t);
+					}
+				}, MoreExecutors.directExecutor());
+			}
+		});
+		return result;
+	}
+
+	/**
+	 * Evaluate a prepared template with the slot values of the request. If the selected server doesn't know the
+	 * template, it is prepared there again before the execution.
+	 *
+	 * @param prepared
+	 * @param request
+	 *            created by one of the <code>bind()</code> methods of the prepared template
+	 * @return the future result
+	 */
+	public CompletableFuture<IExpr> execute(final PreparedExpr prepared, final PBExecuteRequest request) {
+		final CompletableFuture<IExpr> result = new CompletableFuture<IExpr>();
+		final Protobuf2IExpr decoder = fDecoder;
+		submit(new Call() {
+			@Override
+			public void start(final PooledChannel channel) {
+				execute(channel, true);
+			}
+
+			private void execute(final PooledChannel channel, final boolean mayPrepare) {
+				ListenableFuture<ByteString> future = ClientCalls
+						.futureUnaryCall(channel.newCall(WireMethods.EXECUTE), request);
+				Futures.addCallback(future, new FutureCallback<ByteString>() {
+					@Override
+					public void onSuccess(ByteString value) {
+						channel.finished();
+						try {
+							result.complete(decoder.convert(value));
+						} catch (IOException e) {
+							result.completeExceptionally(invalidMessage(e));
+						}
+					}
+
+					@Override
+					public void onFailure(Throwable t) {
+						if (mayPrepare && Status.fromThrowable(t).getCode() == Status.Code.NOT_FOUND) {
+							prepareAndExecute(channel);
+							return;
+						}
+						channel.failed(t);
+						channel.finished();
+						result.completeExceptionally(t);
+					}
+				}, MoreExecutors.directExecutor());
+			}
+
+			private void prepareAndExecute(final PooledChannel channel) {
+				ListenableFuture<PBPrepared> future = ClientCalls
+						.futureUnaryCall(channel.newCall(WireMethods.PREPARE), prepared.getRequest());
+				Futures.addCallback(future, new FutureCallback<PBPrepared>() {
+					@Override
+					public void onSuccess(PBPrepared value) {
+						execute(channel, false);
+					}
+
+					@Override
+					public void onFailure(Throwable t) {
+						channel.failed(t);
+						channel.finished();
+						result.completeExceptionally(t);
+					}
+				}, MoreExecutors.directExecutor());
+			}
+		});
+		return result;
+	}
+
+	/**
+	 * Open a session on the healthy server node with the fewest running calls. All calls of the session go to this
+	 * node; they are neither limited by the pool nor retried on another node, because the definitions of the session
+	 * only exist on its node.
+	 *
+	 * @return
+	 * @throws io.grpc.StatusRuntimeException
+	 *             if the session can't be opened
+	 */
+	public SymjaSession openSession() {
+		PooledChannel best = null;
+		for (PooledChannel channel : fChannels) {
+			if (!channel.fCompatible) {
+				continue;
+			}
+			if (best == null || (channel.fHealthy && !best.fHealthy)
+					|| (channel.fHealthy == best.fHealthy && channel.fOutstanding.get() < best.fOutstanding.get())) {
+				best = channel;
+			}
+		}
+		if (best == null) {
+			throw Status.UNAVAILABLE.withDescription("no server with compatible built-in symbols").asRuntimeException();
+		}
+		SymjaSession session = new SymjaSession(best.fChannel, fEncoder, fDecoder);
+		session.setTimeout(fTimeoutMillis, TimeUnit.MILLISECONDS);
+		return session;
+	}
+
+	/**
+	 * Evaluate all expressions in one <code>evalStream</code> call. The server evaluates them in parallel.
+	 *
+	 * @param exprs
+	 * @return the future results in the order of the expressions with the errors of the failed evaluations; an
+	 *         invalid response completes the future exceptionally with status <code>INTERNAL</code> and cancels the
+	 *         call
+	 */
+	public CompletableFuture<BatchResult> evalBatch(final List<? extends IExpr> exprs) {
+		final CompletableFuture<BatchResult> result = new CompletableFuture<BatchResult>();
+		if (exprs.isEmpty()) {
+			result.complete(new BatchResult(new IExpr[0], new PBError[0]));
+			return result;
+		}
+		final IExpr2Protobuf encoder = fEncoder;
+		final Protobuf2IExpr decoder = fDecoder;
+		submit(new Call() {
+			@Override
+			public void start(final PooledChannel channel) {
+				final IExpr[] results = new IExpr[exprs.size()];
+				final PBError[] errors = new PBError[exprs.size()];
+				ClientResponseObserver<PBEvalRequestBytes, PBEvalResponseBytes> observer;
+				observer = new ClientResponseObserver<PBEvalRequestBytes, PBEvalResponseBytes>() {
+					private ClientCallStreamObserver<PBEvalRequestBytes> fCall;
+
+					@Override
+					public void beforeStart(ClientCallStreamObserver<PBEvalRequestBytes> requestStream) {
+						fCall = requestStream;
+					}
+
+					@Override
+					public void onNext(PBEvalResponseBytes response) {
+						if (result.isDone()) {
+							return;
+						}
+						// an exception thrown from here would end the call with CANCELLED, not with INTERNAL
+						try {
+							long id = response.getId();
+							if (id < 0 || id >= results.length) {
+								throw Status.INTERNAL.withDescription("Unknown response id: " + id)
+										.asRuntimeException();
+							}
+							if (response.hasError()) {
+								errors[(int) id] = response.getError();
+								results[(int) id] = F.$Aborted;
+							} else {
+								results[(int) id] = decode(decoder, response.getResult());
+							}
+						} catch (StatusRuntimeException sre) {
+							result.completeExceptionally(sre);
+							fCall.cancel("invalid batch result", sre);
+						}
+					}
+
+					@Override
+					public void onError(Throwable t) {
+						channel.failed(t);
+						channel.finished();
+						result.completeExceptionally(t);
+					}
+
+					@Override
+					public void onCompleted() {
+						channel.finished();
+						result.complete(new BatchResult(results, errors));
+					}
+				};
+				StreamObserver<PBEvalRequestBytes> requests = ClientCalls
+						.asyncBidiStreamingCall(channel.newCall(WireMethods.EVAL_STREAM), observer);
+				for (int i = 0; i < results.length; i++) {
+					requests.onNext(PBEvalRequestBytes.newBuilder().//
+							setId(i).//
+							setExpr(encoder.encode(exprs.get(i)).toByteString()).//
+							build());
+				}
+				requests.onCompleted();
+			}
+		});
+		return result;
+	}
+
+	private static IExpr decode(Protobuf2IExpr decoder, ByteString expr) {
+		try {
+			return decoder.convert(expr);
+		} catch (IOException e) {
+			throw invalidMessage(e);
+		} catch (IllegalArgumentException | NullPointerException e) {
+			throw Status.INTERNAL.withDescription("Invalid expression").withCause(e).asRuntimeException();
+		}
+	}
+
+	private static StatusRuntimeException invalidMessage(IOException e) {
+		return Status.INTERNAL.withDescription("Invalid protobuf byte sequence").withCause(e).asRuntimeException();
+	}
+
+	private void submit(Call call) {
+		fPending.add(call);
+		dispatch();
+	}
+
+	/**
+	 * Start pending calls as long as a channel has a free slot.
+	 */
+	private void dispatch() {
+		while (!fPending.isEmpty()) {
+			PooledChannel channel = acquireChannel();
+			if (channel == null) {
+				return;
+			}
+			Call call = fPending.poll();
+			if (call == null) {
+				channel.fPermits.release();
+				return;
+			}
+			channel.fOutstanding.incrementAndGet();
+			try {
+				call.start(channel);
+			} catch (RuntimeException rex) {
+				channel.finished();
+				throw rex;
+			}
+		}
+	}
+
+	/**
+	 * Select a healthy channel with a free slot and take the slot. If no channel is healthy, all channels are
+	 * candidates, so that calls fail fast instead of waiting for a health check. Channels with contradicting symbol
+	 * tables are never selected.
+	 *
+	 * @return <code>null</code> if all candidates are busy
+	 */
+	private PooledChannel acquireChannel() {
+		boolean anyHealthy = false;
+		for (PooledChannel channel : fChannels) {
+			if (channel.fHealthy && channel.fCompatible) {
+				anyHealthy = true;
+				break;
+			}
+		}
+		int size = fChannels.size();
+		if (fSelection == Selection.PICK_FIRST) {
+			for (PooledChannel channel : fChannels) {
+				if (channel.isCandidate(anyHealthy)) {
+					return channel.fPermits.tryAcquire() ? channel : null;
+				}
+			}
+		} else if (fSelection == Selection.LEAST_LOADED) {
+			PooledChannel best = null;
+			for (PooledChannel channel : fChannels) {
+				if (channel.isCandidate(anyHealthy)
+						&& (best == null || channel.fOutstanding.get() < best.fOutstanding.get())) {
+					best = channel;
+				}
+			}
+			if (best != null && best.fPermits.tryAcquire()) {
+				return best;
+			}
+		}
+		int start = Math.abs(fNext.getAndIncrement() % size);
+		for (int i = 0; i < size; i++) {
+			PooledChannel channel = fChannels.get((start + i) % size);
+			if (channel.isCandidate(anyHealthy) && channel.fPermits.tryAcquire()) {
+				return channel;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * @return the number of calls waiting for a free slot
+	 */
+	public int pending() {
+		return fPending.size();
+	}
+
+	/**
+	 * @return the number of evaluations which were sent again after their server node was not available
+	 */
+	public long retryCount() {
+		return fRetries.get();
+	}
+
+	/**
+	 * @return the targets of the channels which are currently healthy and have compatible symbol tables
+	 */
+	public List<String> healthyTargets() {
+		List<String> targets = new ArrayList<String>();
+		for (PooledChannel channel : fChannels) {
+			if (channel.fHealthy && channel.fCompatible) {
+				targets.add(channel.fTarget);
+			}
+		}
+		return targets;
+	}
+
+	/**
+	 * Shut down all channels and wait up to 5 seconds for running calls.
+	 */
+	@Override
+	public void close() throws InterruptedException {
+		fHealthChecker.shutdownNow();
+		for (PooledChannel channel : fChannels) {
+			channel.fChannel.shutdown();
+		}
+		for (PooledChannel channel : fChannels) {
+			channel.fChannel.awaitTermination(5, TimeUnit.SECONDS);
+		}
+	}
+}
@@ -0,0 +1,116 @@
+package org.matheclipse.core.grpc.samples.client;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.matheclipse.core.grpc.PBOpenSessionRequest;
+import org.matheclipse.core.grpc.PBSession;
+import org.matheclipse.core.grpc.PBSessionEvalRequestBytes;
+import org.matheclipse.core.grpc.SymjaServiceGrpc;
+import org.matheclipse.core.grpc.convert.IExpr2Protobuf;
+import org.matheclipse.core.grpc.convert.Protobuf2IExpr;
+import org.matheclipse.core.grpc.convert.WireMethods;
+import org.matheclipse.core.interfaces.IExpr;
+
+import com.google.protobuf.ByteString;
+
+import io.grpc.Channel;
+import io.grpc.Status;
+import io.grpc.stub.ClientCalls;
+
+/**
+ * An evaluation session on one Symja server. Definitions evaluated in the session are kept on the server, so they
+ * don't have to be sent again with every request. The server closes a session which isn't used for its idle timeout.
+ */
+public class SymjaSession implements AutoCloseable {
+
+	private final SymjaServiceGrpc.SymjaServiceBlockingStub fStub;
+
+	private final PBSession fSession;
+
+	private final IExpr2Protobuf fEncoder;
+
+	private final Protobuf2IExpr fDecoder;
+
+	private volatile long fTimeoutMillis = 0L;
+
+	/**
+	 * Open a new session on the server of the channel.
+	 *
+	 * @param channel
+	 * @throws io.grpc.StatusRuntimeException
+	 *             with status <code>RESOURCE_EXHAUSTED</code> if the server has too many open sessions
+	 */
+	public SymjaSession(Channel channel) {
+		this(channel, IExpr2Protobuf.CONST, Protobuf2IExpr.CONST);
+	}
+
+	/**
+	 * Open a new session on the server of the channel.
+	 *
+	 * @param channel
+	 * @param encoder
+	 *            the encoder for the symbol table of the server
+	 * @param decoder
+	 *            the decoder for the symbol table of the server
+	 * @throws io.grpc.StatusRuntimeException
+	 *             with status <code>RESOURCE_EXHAUSTED</code> if the server has too many open sessions
+	 */
+	public SymjaSession(Channel channel, IExpr2Protobuf encoder, Protobuf2IExpr decoder) {
+		fEncoder = encoder;
+		fDecoder = decoder;
+		fStub = SymjaServiceGrpc.newBlockingStub(channel);
+		fSession = fStub.openSession(PBOpenSessionRequest.getDefaultInstance());
+	}
+
+	/**
+	 * Set the deadline of every following call.
+	 *
+	 * @param timeout
+	 *            <code>0</code> for no deadline
+	 * @param unit
+	 */
+	public void setTimeout(long timeout, TimeUnit unit) {
+		fTimeoutMillis = unit.toMillis(timeout);
+	}
+
+	/**
+	 * Evaluate an expression in this session. The expression and the result are encoded and decoded directly, so their
+	 * depth isn't limited.
+	 *
+	 * @param expr
+	 * @return
+	 * @throws io.grpc.StatusRuntimeException
+	 *             with status <code>NOT_FOUND</code> if the session was closed by the server
+	 */
+	public IExpr eval(IExpr expr) {
+		PBSessionEvalRequestBytes request = PBSessionEvalRequestBytes.newBuilder().//
+				setSessionId(fSession.getId()).//
+				setExpr(fEncoder.encode(expr).toByteString()).//
+				build();
+		SymjaServiceGrpc.SymjaServiceBlockingStub stub = stub();
+		ByteString response = ClientCalls.blockingUnaryCall(stub.getChannel(), WireMethods.EVAL_IN_SESSION,
+				stub.getCallOptions(), request);
+		try {
+			return fDecoder.convert(response);
+		} catch (IOException e) {
+			throw Status.INTERNAL.withDescription("Invalid protobuf byte sequence").withCause(e).asRuntimeException();
+		}
+	}
+
+	public String getId() {
+		return fSession.getId();
+	}
+
+	private SymjaServiceGrpc.SymjaServiceBlockingStub stub() {
+		return fTimeoutMillis > 0 ? fStub.withDeadlineAfter(fTimeoutMillis, TimeUnit.MILLISECONDS) : fStub;
+	}
+
+	/**
+	 * Close the session on the server. The channel stays open.
+	 */
+	@Override
+	public void close() {
+		stub().closeSession(fSession);
+	}
+}
@@ -0,0 +1,41 @@
+package org.matheclipse.core.grpc.convert;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import com.google.common.io.ByteStreams;
+import com.google.protobuf.ByteString;
+import com.google.protobuf.UnsafeByteOperations;
+
+import io.grpc.KnownLength;
+import io.grpc.MethodDescriptor;
+import io.grpc.Status;
+
+/**
+ * A gRPC marshaller which passes the serialized messages through unparsed. A server uses it to decode a request later
+ * with {@link Protobuf2IExpr#convert(com.google.protobuf.CodedInputStream)}, when the engine of its evaluator is bound
+ * to the thread.
+ */
+public class ByteStringMarshaller implements MethodDescriptor.Marshaller<ByteString> {
+	public static final ByteStringMarshaller CONST = new ByteStringMarshaller();
+
+	@Override
+	public InputStream stream(ByteString value) {
+		return value.newInput();
+	}
+
+	@Override
+	public ByteString parse(InputStream stream) {
+		try {
+			if (stream instanceof KnownLength) {
+				// read into an array of the exact size, which is wrapped without copying
+				byte[] bytes = new byte[stream.available()];
+				ByteStreams.readFully(stream, bytes);
+				return UnsafeByteOperations.unsafeWrap(bytes);
+			}
+			return ByteString.readFrom(stream);
+		} catch (IOException e) {
+			throw Status.INTERNAL.withDescription("Failed to read the message").withCause(e).asRuntimeException();
+		}
+	}
+}
@@ -0,0 +1,290 @@
+package org.matheclipse.core.grpc.convert;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.function.Function;
+
+import org.matheclipse.core.grpc.PBAST;
+import org.matheclipse.core.grpc.PBExpr;
+import org.matheclipse.core.interfaces.IAST;
+import org.matheclipse.core.interfaces.IBuiltInSymbol;
+import org.matheclipse.core.interfaces.IExpr;
+import org.matheclipse.core.interfaces.IInteger;
+import org.matheclipse.core.interfaces.INum;
+import org.matheclipse.core.interfaces.ISymbol;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.CodedOutputStream;
+import com.google.protobuf.UnsafeByteOperations;
+import com.google.protobuf.WireFormat;
+
+/**
+ * An expression which is written as a <code>PBExpr</code> directly to a <code>CodedOutputStream</code>. A
+ * length-delimited field is preceded by its size, so the sizes of all nodes are computed once in advance and stored in
+ * pre-order; writing traverses the expression again in the same order. ASTs, symbols, machine reals and integers which
+ * fit into 64 bits are written without message objects, the other atoms and packed lists are converted by
+ * {@link IExpr2Protobuf}.
+ * <p>
+ * The expression must not be modified until it was written.
+ */
+public final class EncodedExpr {
+
+	/**
+	 * An AST whose head and arguments are measured or written one after the other. Index <code>0</code> is the head.
+	 */
+	private static class Frame {
+		final IAST fAST;
+		final int fNode;
+		int fChild = 0;
+		int fSize = 0;
+
+		Frame(IAST ast, int node) {
+			fAST = ast;
+			fNode = node;
+		}
+	}
+
+	private final IExpr fExpr;
+
+	private final IExpr2Protobuf fEncoder;
+
+	/**
+	 * Replaces subexpressions below the root by reference messages or <code>null</code>.
+	 */
+	private final Function<IExpr, PBExpr> fReferences;
+
+	/**
+	 * The size of every node in pre-order: the size of the <code>PBAST</code> message for ASTs, otherwise the size of
+	 * the <code>PBExpr</code> message.
+	 */
+	private int[] fSizes = new int[16];
+
+	/**
+	 * The message of every node which is written by its message object, <code>null</code> for the others.
+	 */
+	private PBExpr[] fMessages = new PBExpr[16];
+
+	private int fNodeCount = 0;
+
+	EncodedExpr(IExpr2Protobuf encoder, IExpr x) {
+		this(encoder, x, null);
+	}
+
+	/**
+	 * 
+	 * @param encoder
+	 * @param x
+	 * @param references
+	 *            returns the reference message of a subexpression of <code>x</code> which is sent elsewhere, for
+	 *            example a <code>node_ref</code>, or <code>null</code> if the subexpression is encoded in place; the
+	 *            root itself is always encoded
+	 */
+	EncodedExpr(IExpr2Protobuf encoder, IExpr x, Function<IExpr, PBExpr> references) {
+		fExpr = x;
+		fEncoder = encoder;
+		fReferences = references;
+		measure();
+	}
+
+	private void measure() {
+		ArrayDeque<Frame> stack = new ArrayDeque<Frame>();
+		Frame root = measureNode(fExpr);
+		if (root != null) {
+			stack.push(root);
+		}
+		while (!stack.isEmpty()) {
+			Frame frame = stack.peek();
+			if (frame.fChild < frame.fAST.size()) {
+				IExpr child = frame.fAST.get(frame.fChild++);
+				int node = fNodeCount;
+				Frame childFrame = measureNode(child);
+				if (childFrame != null) {
+					stack.push(childFrame);
+				} else {
+					frame.fSize += fieldSize(fSizes[node]);
+				}
+				continue;
+			}
+			stack.pop();
+			fSizes[frame.fNode] = frame.fSize;
+			if (!stack.isEmpty()) {
+				stack.peek().fSize += fieldSize(astExprSize(frame.fSize));
+			}
+		}
+	}
+
+	/**
+	 * Assign the next node index to the expression and measure it, if it isn't an AST.
+	 *
+	 * @param x
+	 * @return the frame of an AST whose arguments must be measured or <code>null</code> if the size of the node is
+	 *         known
+	 */
+	private Frame measureNode(final IExpr x) {
+		int node = fNodeCount++;
+		if (node == fSizes.length) {
+			fSizes = Arrays.copyOf(fSizes, 2 * node);
+			fMessages = Arrays.copyOf(fMessages, 2 * node);
+		}
+		PBExpr message = node > 0 && fReferences != null ? fReferences.apply(x) : null;
+		if (message == null && x instanceof IAST) {
+			message = fEncoder.convertPacked((IAST) x);
+			if (message == null) {
+				return new Frame((IAST) x, node);
+			}
+		} else if (message == null && x instanceof IBuiltInSymbol) {
+			message = fEncoder.convertBuiltInExpr((IBuiltInSymbol) x);
+		}
+		if (message == null) {
+			if (x instanceof ISymbol) {
+				fSizes[node] = fieldSize(symbolSize((ISymbol) x));
+				return null;
+			}
+			if (x instanceof INum) {
+				fSizes[node] = fieldSize(numSize((INum) x));
+				return null;
+			}
+			if (x instanceof IInteger && ((IInteger) x).bitLength() < 64) {
+				fSizes[node] = fieldSize(integerSize(((IInteger) x).longValue()));
+				return null;
+			}
+			message = fEncoder.convertAtom(x);
+			if (message == null) {
+				throw new IllegalArgumentException("Unsupported expression type: " + x.getClass().getName());
+			}
+		}
+		fMessages[node] = message;
+		fSizes[node] = message.getSerializedSize();
+		return null;
+	}
+
+	/**
+	 * The size of a length-delimited field with a one byte tag.
+	 *
+	 * @param size
+	 *            the size of the value
+	 * @return
+	 */
+	private static int fieldSize(int size) {
+		return 1 + CodedOutputStream.computeUInt32SizeNoTag(size) + size;
+	}
+
+	private static int astExprSize(int astSize) {
+		return fieldSize(astSize);
+	}
+
+	private static int symbolSize(ISymbol symbol) {
+		String name = symbol.getSymbolName();
+		return name.isEmpty() ? 0 : CodedOutputStream.computeStringSize(1, name);
+	}
+
+	private static int numSize(INum num) {
+		return Double.doubleToRawLongBits(num.getReal()) != 0L ? CodedOutputStream.computeDoubleSize(1, 0.0) : 0;
+	}
+
+	private static int integerSize(long value) {
+		return CodedOutputStream.computeSInt64Size(2, value);
+	}
+
+	/**
+	 * @return the size of the <code>PBExpr</code> message in bytes
+	 */
+	public int getSerializedSize() {
+		return exprSize(fExpr, 0);
+	}
+
+	private int exprSize(IExpr x, int node) {
+		return fMessages[node] == null && x instanceof IAST ? astExprSize(fSizes[node]) : fSizes[node];
+	}
+
+	/**
+	 * Write the <code>PBExpr</code> message. The stream is not flushed.
+	 *
+	 * @param output
+	 * @throws IOException
+	 */
+	public void writeTo(CodedOutputStream output) throws IOException {
+		ArrayDeque<Frame> stack = new ArrayDeque<Frame>();
+		int node = 0;
+		if (writeNode(fExpr, node++, output)) {
+			stack.push(new Frame((IAST) fExpr, 0));
+		}
+		while (!stack.isEmpty()) {
+			Frame frame = stack.peek();
+			if (frame.fChild == frame.fAST.size()) {
+				stack.pop();
+				continue;
+			}
+			IExpr child = frame.fAST.get(frame.fChild);
+			int field = frame.fChild == 0 ? PBAST.HEAD_FIELD_NUMBER : PBAST.ARG_FIELD_NUMBER;
+			output.writeTag(field, WireFormat.WIRETYPE_LENGTH_DELIMITED);
+			frame.fChild++;
+			output.writeUInt32NoTag(exprSize(child, node));
+			if (writeNode(child, node++, output)) {
+				stack.push(new Frame((IAST) child, 0));
+			}
+		}
+	}
+
+	/**
+	 * Write the fields of the <code>PBExpr</code> message of a node.
+	 *
+	 * @param x
+	 * @param node
+	 * @param output
+	 * @return <code>true</code> if the node is an AST whose head and arguments must be written next
+	 * @throws IOException
+	 */
+	private boolean writeNode(IExpr x, int node, CodedOutputStream output) throws IOException {
+		PBExpr message = fMessages[node];
+		if (message != null) {
+			message.writeTo(output);
+			return false;
+		}
+		if (x instanceof IAST) {
+			output.writeTag(PBExpr.AST_FIELD_NUMBER, WireFormat.WIRETYPE_LENGTH_DELIMITED);
+			output.writeUInt32NoTag(fSizes[node]);
+			return true;
+		}
+		if (x instanceof ISymbol) {
+			String name = ((ISymbol) x).getSymbolName();
+			output.writeTag(PBExpr.IDENTIFIER_FIELD_NUMBER, WireFormat.WIRETYPE_LENGTH_DELIMITED);
+			output.writeUInt32NoTag(symbolSize((ISymbol) x));
+			if (!name.isEmpty()) {
+				output.writeString(1, name);
+			}
+		} else if (x instanceof INum) {
+			double value = ((INum) x).getReal();
+			output.writeTag(PBExpr.NUMERIC_FIELD_NUMBER, WireFormat.WIRETYPE_LENGTH_DELIMITED);
+			output.writeUInt32NoTag(numSize((INum) x));
+			if (Double.doubleToRawLongBits(value) != 0L) {
+				output.writeDouble(1, value);
+			}
+		} else {
+			long value = ((IInteger) x).longValue();
+			output.writeTag(PBExpr.BIG_INTEGER_FIELD_NUMBER, WireFormat.WIRETYPE_LENGTH_DELIMITED);
+			output.writeUInt32NoTag(integerSize(value));
+			output.writeSInt64(2, value);
+		}
+		return false;
+	}
+
+	/**
+	 * Write the message into a new byte string of the exact size.
+	 *
+	 * @return
+	 */
+	public ByteString toByteString() {
+		byte[] bytes = new byte[getSerializedSize()];
+		CodedOutputStream output = CodedOutputStream.newInstance(bytes);
+		try {
+			writeTo(output);
+		} catch (IOException e) {
+			// not thrown when writing to an array of the exact size
+			throw new IllegalStateException(e);
+		}
+		output.checkNoSpaceLeft();
+		return UnsafeByteOperations.unsafeWrap(bytes);
+	}
+}
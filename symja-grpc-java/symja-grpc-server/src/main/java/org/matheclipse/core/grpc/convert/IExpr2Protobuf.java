@@ -1,5 +1,12 @@
 package org.matheclipse.core.grpc.convert;
 
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+
 import org.matheclipse.core.grpc.PBAST;
 import org.matheclipse.core.grpc.PBBuiltinSymbol;
 import org.matheclipse.core.grpc.PBComplex;
@@ -8,7 +15,14 @@ import org.matheclipse.core.grpc.PBExpr;
 import org.matheclipse.core.grpc.PBFraction;
 import org.matheclipse.core.grpc.PBInteger;
 import org.matheclipse.core.grpc.PBNum;
+import org.matheclipse.core.grpc.PBPackedComplexVector;
+import org.matheclipse.core.grpc.PBPackedIntMatrix;
+import org.matheclipse.core.grpc.PBPackedIntVector;
+import org.matheclipse.core.grpc.PBPackedMatrix;
+import org.matheclipse.core.grpc.PBPackedVector;
 import org.matheclipse.core.grpc.PBPattern;
+import org.matheclipse.core.grpc.PBSharedExpr;
+import org.matheclipse.core.grpc.PBSharedExprBytes;
 import org.matheclipse.core.grpc.PBString;
 import org.matheclipse.core.grpc.PBSymbol;
 import org.matheclipse.core.interfaces.IAST;
@@ -25,16 +39,98 @@ import org.matheclipse.core.interfaces.IRational;
 import org.matheclipse.core.interfaces.IStringX;
 import org.matheclipse.core.interfaces.ISymbol;
 
-import com.google.protobuf.ByteString;
+import com.google.protobuf.UnsafeByteOperations;
 
 public class IExpr2Protobuf {
 	public static IExpr2Protobuf CONST = new IExpr2Protobuf();
 
+	private final SymbolTable fSymbols;
+
+	/**
+	 * The receiver knows the ids below this limit; other built-in symbols are sent by name.
+	 */
+	private final int fSymbolLimit;
+
+	private static final int SMALL_INTEGER_MIN = -128;
+
+	private static final int SMALL_INTEGER_MAX = 1024;
+
+	private static final PBInteger[] SMALL_INTEGERS = new PBInteger[SMALL_INTEGER_MAX - SMALL_INTEGER_MIN + 1];
+
+	static {
+		for (int i = SMALL_INTEGER_MIN; i <= SMALL_INTEGER_MAX; i++) {
+			SMALL_INTEGERS[i - SMALL_INTEGER_MIN] = PBInteger.newBuilder().setSmallValue(i).build();
+		}
+	}
+
+	/**
+	 * An encoder for a receiver with the same symbol table.
+	 */
+	public IExpr2Protobuf() {
+		this(SymbolTable.DEFAULT, SymbolTable.DEFAULT.size());
+	}
+
+	/**
+	 * 
+	 * @param symbols
+	 *            the table whose ids are sent for built-in symbols
+	 * @param symbolLimit
+	 *            the number of ids known to the receiver
+	 */
+	public IExpr2Protobuf(SymbolTable symbols, int symbolLimit) {
+		fSymbols = symbols;
+		fSymbolLimit = Math.min(symbolLimit, symbols.size());
+	}
+
+	/**
+	 * Convert an expression into its protocol buffer message. Nested ASTs are converted with an explicit stack, so
+	 * arbitrarily deep expressions don't overflow the Java stack. Lists of machine numbers and small integers are
+	 * converted into packed vectors and matrices.
+	 * 
+	 * @param x
+	 * @return <code>null</code> if the expression type is not supported
+	 */
 	public PBExpr convert(final IExpr x) {
-		org.matheclipse.core.grpc.PBExpr.Builder exprBuilder = PBExpr.newBuilder();
+		if (x instanceof IAST) {
+			PBExpr packed = convertPacked((IAST) x);
+			if (packed != null) {
+				return packed;
+			}
+			return PBExpr.newBuilder().setAst(convertAST((IAST) x)).build();
+		}
+		return convertAtom(x);
+	}
+
+	/**
+	 * Prepare an expression for writing its <code>PBExpr</code> encoding directly to a <code>CodedOutputStream</code>.
+	 * Unlike {@link #convert(IExpr)}, no message objects are built for the ASTs, the symbols and the machine numbers of
+	 * the expression; the encoded bytes are the same.
+	 * 
+	 * @param x
+	 * @return
+	 * @throws IllegalArgumentException
+	 *             if the expression contains an unsupported type
+	 */
+	public EncodedExpr encode(final IExpr x) {
+		return new EncodedExpr(this, x);
+	}
+
+	/**
+	 * Convert an expression which is not an <code>IAST</code>.
+	 * 
+	 * @param x
+	 * @return <code>null</code> if the expression type is not supported
+	 */
+	PBExpr convertAtom(final IExpr x) {
 		if (x instanceof IBuiltInSymbol) {
-			return exprBuilder.setSymbol(convertBuiltInSymbol((IBuiltInSymbol) x)).build();
-		} else if (x instanceof ISymbol) {
+			PBExpr builtIn = convertBuiltInExpr((IBuiltInSymbol) x);
+			if (builtIn != null) {
+				return builtIn;
+			}
+			// unknown to the receiver, which resolves the name
+		}
+		org.matheclipse.core.grpc.PBExpr.Builder exprBuilder = PBExpr.newBuilder();
+		if (x instanceof ISymbol) {
 			return exprBuilder.setIdentifier(convertSymbol((ISymbol) x)).build();
 		}
 		if (x instanceof INumber) {
@@ -54,9 +150,6 @@ public class IExpr2Protobuf {
 				return exprBuilder.setComplexNumeric(convertComplexNum((IComplexNum) x)).build();
 			}
 		}
-		if (x instanceof IAST) {
-			return exprBuilder.setAst(convertAST((IAST) x)).build();
-		}
 		if (x instanceof IPattern) {
 			return exprBuilder.setPattern(convertPattern((IPattern) x)).build();
 		}
@@ -66,11 +159,27 @@ public class IExpr2Protobuf {
 		return null;
 	}
 
+	/**
+	 * 
+	 * @param val
+	 * @return the message with the id of the symbol or <code>null</code> if the receiver doesn't know the symbol
+	 */
 	public PBBuiltinSymbol convertBuiltInSymbol(final IBuiltInSymbol val) {
-		return PBBuiltinSymbol.//
-				newBuilder().//
-				setIdValue(val.ordinal()).//
-				build();
+		PBExpr builtIn = convertBuiltInExpr(val);
+		return builtIn == null ? null : builtIn.getSymbol();
+	}
+
+	/**
+	 * 
+	 * @param val
+	 * @return the shared message of the symbol or <code>null</code> if the receiver doesn't know the symbol
+	 */
+	PBExpr convertBuiltInExpr(final IBuiltInSymbol val) {
+		int id = fSymbols.id(val);
+		if (id < 0 || id >= fSymbolLimit) {
+			return null;
+		}
+		return fSymbols.expr(id);
 	}
 
 	public PBSymbol convertSymbol(final ISymbol val) {
@@ -80,6 +189,13 @@ public class IExpr2Protobuf {
 				build();
 	}
 
+	/**
+	 * Convert a string. The message keeps the <code>String</code> itself; protobuf encodes it as UTF-8 directly into
+	 * the output stream, so no intermediate byte array is created.
+	 * 
+	 * @param val
+	 * @return
+	 */
 	public PBString convertStringX(final IStringX val) {
 		return PBString.//
 				newBuilder().//
@@ -116,11 +232,25 @@ public class IExpr2Protobuf {
 				build();
 	}
 
+	/**
+	 * Convert an integer. Values which fit into 64 bits use the <code>small_value</code> field, the messages for the
+	 * most common values are cached. The two's-complement array of larger values is wrapped without copying, because
+	 * it is created for this message only and never modified.
+	 * 
+	 * @param val
+	 * @return
+	 */
 	public PBInteger convertInteger(final IInteger val) {
-		ByteString bytes = ByteString.copyFrom(val.toBigNumerator().toByteArray());
+		if (val.bitLength() < 64) {
+			long value = val.longValue();
+			if (value >= SMALL_INTEGER_MIN && value <= SMALL_INTEGER_MAX) {
+				return SMALL_INTEGERS[(int) value - SMALL_INTEGER_MIN];
+			}
+			return PBInteger.newBuilder().setSmallValue(value).build();
+		}
 		return PBInteger.//
 				newBuilder().//
-				setValue(bytes).//
+				setValue(UnsafeByteOperations.unsafeWrap(val.toBigNumerator().toByteArray())).//
 				build();
 	}
 
@@ -145,12 +275,510 @@ public class IExpr2Protobuf {
 				build();
 	}
 
+	/**
+	 * Convert a <code>List</code> of machine real numbers, machine complex numbers or integers which fit into 64 bits
+	 * into a packed vector, and a rectangular <code>List</code> of such real or integer vectors into a packed matrix.
+	 * 
+	 * @param list
+	 * @return <code>null</code> if the AST can't be packed
+	 */
+	public PBExpr convertPacked(final IAST list) {
+		int size = list.size();
+		if (size < 2 || !list.isList()) {
+			return null;
+		}
+		IExpr first = list.get(1);
+		if (first instanceof INum) {
+			PBPackedVector.Builder builder = PBPackedVector.newBuilder();
+			for (int i = 1; i < size; i++) {
+				IExpr arg = list.get(i);
+				if (!(arg instanceof INum)) {
+					return null;
+				}
+				builder.addValue(((INum) arg).getReal());
+			}
+			return PBExpr.newBuilder().setPackedVector(builder).build();
+		}
+		if (first instanceof IInteger) {
+			PBPackedIntVector.Builder builder = PBPackedIntVector.newBuilder();
+			for (int i = 1; i < size; i++) {
+				IExpr arg = list.get(i);
+				if (!isLong(arg)) {
+					return null;
+				}
+				builder.addValue(((IInteger) arg).longValue());
+			}
+			return PBExpr.newBuilder().setPackedIntVector(builder).build();
+		}
+		if (first instanceof IComplexNum) {
+			PBPackedComplexVector.Builder builder = PBPackedComplexVector.newBuilder();
+			for (int i = 1; i < size; i++) {
+				IExpr arg = list.get(i);
+				if (!(arg instanceof IComplexNum)) {
+					return null;
+				}
+				builder.addReValue(((IComplexNum) arg).getReal());
+				builder.addImValue(((IComplexNum) arg).getImaginary());
+			}
+			return PBExpr.newBuilder().setPackedComplexVector(builder).build();
+		}
+		if (first instanceof IAST) {
+			return convertPackedMatrix(list);
+		}
+		return null;
+	}
+
+	private PBExpr convertPackedMatrix(final IAST list) {
+		int rows = list.size() - 1;
+		IAST firstRow = (IAST) list.get(1);
+		int columnsPlusOne = firstRow.size();
+		if (columnsPlusOne < 2 || !firstRow.isList()) {
+			return null;
+		}
+		IExpr first = firstRow.get(1);
+		if (first instanceof INum) {
+			PBPackedMatrix.Builder builder = PBPackedMatrix.newBuilder();
+			builder.setRows(rows);
+			builder.setColumns(columnsPlusOne - 1);
+			for (int i = 1; i <= rows; i++) {
+				IExpr row = list.get(i);
+				if (!(row instanceof IAST) || !row.isList() || ((IAST) row).size() != columnsPlusOne) {
+					return null;
+				}
+				for (int j = 1; j < columnsPlusOne; j++) {
+					IExpr arg = ((IAST) row).get(j);
+					if (!(arg instanceof INum)) {
+						return null;
+					}
+					builder.addValue(((INum) arg).getReal());
+				}
+			}
+			return PBExpr.newBuilder().setPackedMatrix(builder).build();
+		}
+		if (first instanceof IInteger) {
+			PBPackedIntMatrix.Builder builder = PBPackedIntMatrix.newBuilder();
+			builder.setRows(rows);
+			builder.setColumns(columnsPlusOne - 1);
+			for (int i = 1; i <= rows; i++) {
+				IExpr row = list.get(i);
+				if (!(row instanceof IAST) || !row.isList() || ((IAST) row).size() != columnsPlusOne) {
+					return null;
+				}
+				for (int j = 1; j < columnsPlusOne; j++) {
+					IExpr arg = ((IAST) row).get(j);
+					if (!isLong(arg)) {
+						return null;
+					}
+					builder.addValue(((IInteger) arg).longValue());
+				}
+			}
+			return PBExpr.newBuilder().setPackedIntMatrix(builder).build();
+		}
+		return null;
+	}
+
+	/**
+	 * Test if the expression is an integer which fits into a <code>long</code> value.
+	 * 
+	 * @param x
+	 * @return
+	 */
+	private static boolean isLong(final IExpr x) {
+		return x instanceof IInteger && ((IInteger) x).bitLength() < 64;
+	}
+
+	/**
+	 * An AST whose head and arguments are converted one after the other. Index <code>0</code> is the head.
+	 */
+	private static class ASTFrame {
+		final IAST fAST;
+		final PBAST.Builder fBuilder = PBAST.newBuilder();
+		int fIndex = 0;
+
+		ASTFrame(IAST ast) {
+			fAST = ast;
+		}
+
+		void add(PBExpr expr) {
+			if (fIndex == 0) {
+				fBuilder.setHead(expr);
+			} else {
+				fBuilder.addArg(expr);
+			}
+			fIndex++;
+		}
+	}
+
 	public PBAST convertAST(final IAST val) {
-		org.matheclipse.core.grpc.PBAST.Builder localBuilder = PBAST.newBuilder().setHead(convert(val.head()));
-		for (int i = 1; i < val.size(); i++) {
-			PBExpr temp = convert(val.get(i));
-			localBuilder.addArg(temp);
+		ArrayDeque<ASTFrame> stack = new ArrayDeque<ASTFrame>();
+		stack.push(new ASTFrame(val));
+		while (true) {
+			ASTFrame frame = stack.peek();
+			if (frame.fIndex < frame.fAST.size()) {
+				IExpr child = frame.fAST.get(frame.fIndex);
+				if (child instanceof IAST) {
+					PBExpr packed = convertPacked((IAST) child);
+					if (packed != null) {
+						frame.add(packed);
+					} else {
+						stack.push(new ASTFrame((IAST) child));
+					}
+				} else {
+					frame.add(convertAtom(child));
+				}
+				continue;
+			}
+			stack.pop();
+			PBAST ast = frame.fBuilder.build();
+			if (stack.isEmpty()) {
+				return ast;
+			}
+			stack.peek().add(PBExpr.newBuilder().setAst(ast).build());
+		}
+	}
+
+	/**
+	 * Convert an expression into a <code>PBSharedExpr</code>. User symbols are sent once in the symbol table and every
+	 * subexpression which occurs more than once is sent once as a node and referenced by its index.
+	 * 
+	 * @param x
+	 * @return
+	 */
+	public PBSharedExpr convertShared(final IExpr x) {
+		return new SharedEncoder().encode(x);
+	}
+
+	/**
+	 * Encode an expression like {@link #convertShared(IExpr)}, but write its nodes and its root with
+	 * {@link EncodedExpr}, so that no nested message objects are built and serialized for deep expressions.
+	 * 
+	 * @param x
+	 * @return
+	 * @throws IllegalArgumentException
+	 *             if the expression contains an unsupported type
+	 */
+	public PBSharedExprBytes encodeShared(final IExpr x) {
+		return new SharedEncoder().encodeBytes(x);
+	}
+
+	/**
+	 * The ids of the head and the arguments of an AST, which identify the AST up to structural equality.
+	 */
+	private static final class NodeKey {
+		final int[] fIds;
+
+		final int fHash;
+
+		NodeKey(int[] ids) {
+			fIds = ids;
+			fHash = Arrays.hashCode(ids);
+		}
+
+		@Override
+		public int hashCode() {
+			return fHash;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			return obj instanceof NodeKey && Arrays.equals(fIds, ((NodeKey) obj).fIds);
+		}
+	}
+
+	/**
+	 * Encoder state of a single <code>convertShared()</code> or <code>encodeShared()</code> call.
+	 */
+	private class SharedEncoder {
+		/**
+		 * The id of every AST instance. Structurally equal ASTs get the same id, because the id is assigned bottom-up
+		 * from the ids of the head and the arguments; so comparing two ASTs costs <code>O(arity)</code> and never
+		 * recurses through their subtrees.
+		 */
+		private final IdentityHashMap<IExpr, Integer> fIds = new IdentityHashMap<IExpr, Integer>();
+
+		/**
+		 * The id of every atom, every {@link NodeKey} and every packed message.
+		 */
+		private final HashMap<Object, Integer> fKeys = new HashMap<Object, Integer>();
+
+		/**
+		 * Number of occurrences of the AST with the id.
+		 */
+		private int[] fCounts = new int[16];
+
+		/**
+		 * The index of the encoded node of the AST with the id or <code>-1</code>.
+		 */
+		private int[] fNodeIndex = new int[16];
+
+		/**
+		 * The packed vector or matrix of the AST with the id or <code>null</code> if it isn't packed.
+		 */
+		private PBExpr[] fPacked = new PBExpr[16];
+
+		private final HashMap<String, Integer> fSymbolIndex = new HashMap<String, Integer>();
+
+		private final PBSharedExpr.Builder fBuilder = PBSharedExpr.newBuilder();
+
+		SharedEncoder() {
+			Arrays.fill(fNodeIndex, -1);
+		}
+
+		PBSharedExpr encode(final IExpr x) {
+			countSubtrees(x);
+			fBuilder.setRoot(encodeExpr(x));
+			return fBuilder.build();
+		}
+
+		PBSharedExprBytes encodeBytes(final IExpr x) {
+			countSubtrees(x);
+			PBSharedExprBytes.Builder builder = PBSharedExprBytes.newBuilder();
+			for (IAST node : sharedSubtrees(x)) {
+				builder.addNode(new EncodedExpr(IExpr2Protobuf.this, node, this::referenceBytes).toByteString());
+				fNodeIndex[id(node)] = builder.getNodeCount() - 1;
+			}
+			builder.setRoot(new EncodedExpr(IExpr2Protobuf.this, x, this::referenceBytes).toByteString());
+			return builder.addAllSymbol(fBuilder.getSymbolList()).build();
+		}
+
+		/**
+		 * The ASTs which occur more than once in post-order, so that a node only contains references to nodes with a
+		 * smaller index. The rows of a packed matrix are never referenced, so they aren't visited.
+		 * 
+		 * @param x
+		 * @return
+		 */
+		private List<IAST> sharedSubtrees(final IExpr x) {
+			List<IAST> nodes = new ArrayList<IAST>();
+			boolean[] visited = new boolean[fKeys.size()];
+			// an AST is pushed twice: before its arguments are visited and after them (marked by TRUE)
+			ArrayDeque<IExpr> stack = new ArrayDeque<IExpr>();
+			ArrayDeque<Boolean> exits = new ArrayDeque<Boolean>();
+			stack.push(x);
+			exits.push(Boolean.FALSE);
+			while (!stack.isEmpty()) {
+				IExpr expr = stack.pop();
+				if (exits.pop()) {
+					if (fCounts[id(expr)] > 1) {
+						nodes.add((IAST) expr);
+					}
+				} else if (expr instanceof IAST && !visited[id(expr)]) {
+					int id = id(expr);
+					visited[id] = true;
+					stack.push(expr);
+					exits.push(Boolean.TRUE);
+					if (fPacked[id] == null) {
+						IAST ast = (IAST) expr;
+						for (int i = ast.size() - 1; i >= 0; i--) {
+							stack.push(ast.get(i));
+							exits.push(Boolean.FALSE);
+						}
+					}
+				}
+			}
+			return nodes;
+		}
+
+		/**
+		 * The references of {@link #encodeBytes(IExpr)}.
+		 * 
+		 * @param x
+		 * @return a reference to an encoded node or to a user symbol, the packed message of an AST, otherwise
+		 *         <code>null</code>
+		 */
+		private PBExpr referenceBytes(final IExpr x) {
+			if (x instanceof IAST) {
+				PBExpr reference = reference(x);
+				return reference != null ? reference : fPacked[id(x)];
+			}
+			if (x instanceof ISymbol && !(x instanceof IBuiltInSymbol)) {
+				return encodeAtom(x);
+			}
+			return null;
+		}
+
+		/**
+		 * Count the occurrences of all ASTs. The arguments of an AST which was already seen are not counted again,
+		 * because they are sent only once inside the shared node, and the arguments of a packed AST aren't counted at
+		 * all.
+		 * 
+		 * @param x
+		 */
+		private void countSubtrees(final IExpr x) {
+			assignIds(x);
+			ArrayDeque<IExpr> stack = new ArrayDeque<IExpr>();
+			stack.push(x);
+			while (!stack.isEmpty()) {
+				IExpr expr = stack.pop();
+				if (expr instanceof IAST) {
+					int id = id(expr);
+					if (fCounts[id]++ == 0 && fPacked[id] == null) {
+						IAST ast = (IAST) expr;
+						for (int i = 0; i < ast.size(); i++) {
+							stack.push(ast.get(i));
+						}
+					}
+				}
+			}
+		}
+
+		/**
+		 * Assign the ids of all ASTs bottom-up. An AST which can be packed gets the id of its packed message, its
+		 * arguments get no ids.
+		 * 
+		 * @param x
+		 */
+		private void assignIds(final IExpr x) {
+			ArrayDeque<IExpr> stack = new ArrayDeque<IExpr>();
+			ArrayDeque<Boolean> exits = new ArrayDeque<Boolean>();
+			stack.push(x);
+			exits.push(Boolean.FALSE);
+			while (!stack.isEmpty()) {
+				IExpr expr = stack.pop();
+				if (exits.pop()) {
+					IAST ast = (IAST) expr;
+					int[] ids = new int[ast.size()];
+					for (int i = 0; i < ids.length; i++) {
+						IExpr arg = ast.get(i);
+						ids[i] = arg instanceof IAST ? id(arg) : keyId(arg);
+					}
+					fIds.put(ast, keyId(new NodeKey(ids)));
+				} else if (expr instanceof IAST && !fIds.containsKey(expr)) {
+					PBExpr packed = convertPacked((IAST) expr);
+					if (packed != null) {
+						int id = keyId(packed);
+						fPacked[id] = packed;
+						fIds.put(expr, id);
+						continue;
+					}
+					stack.push(expr);
+					exits.push(Boolean.TRUE);
+					IAST ast = (IAST) expr;
+					for (int i = 0; i < ast.size(); i++) {
+						stack.push(ast.get(i));
+						exits.push(Boolean.FALSE);
+					}
+				}
+			}
+		}
+
+		/**
+		 * 
+		 * @param key
+		 *            an atom, a {@link NodeKey} or a packed message
+		 * @return the id of the key, a new id if the key wasn't seen before
+		 */
+		private int keyId(final Object key) {
+			Integer id = fKeys.get(key);
+			if (id != null) {
+				return id;
+			}
+			int next = fKeys.size();
+			fKeys.put(key, next);
+			if (next == fCounts.length) {
+				fCounts = Arrays.copyOf(fCounts, 2 * next);
+				fPacked = Arrays.copyOf(fPacked, 2 * next);
+				int[] nodeIndex = Arrays.copyOf(fNodeIndex, 2 * next);
+				Arrays.fill(nodeIndex, next, nodeIndex.length, -1);
+				fNodeIndex = nodeIndex;
+			}
+			return next;
+		}
+
+		/**
+		 * 
+		 * @param ast
+		 *            an AST which was visited by {@link #assignIds(IExpr)}
+		 * @return
+		 */
+		private int id(final IExpr ast) {
+			return fIds.get(ast);
+		}
+
+		private PBExpr encodeExpr(final IExpr x) {
+			if (!(x instanceof IAST)) {
+				return encodeAtom(x);
+			}
+			PBExpr packed = fPacked[id(x)];
+			if (packed != null) {
+				return packed;
+			}
+			ArrayDeque<ASTFrame> stack = new ArrayDeque<ASTFrame>();
+			stack.push(new ASTFrame((IAST) x));
+			while (true) {
+				ASTFrame frame = stack.peek();
+				if (frame.fIndex < frame.fAST.size()) {
+					IExpr child = frame.fAST.get(frame.fIndex);
+					if (child instanceof IAST) {
+						PBExpr reference = reference(child);
+						if (reference != null) {
+							frame.add(reference);
+						} else {
+							PBExpr packed = fPacked[id(child)];
+							if (packed != null) {
+								frame.add(share((IAST) child, packed));
+							} else {
+								stack.push(new ASTFrame((IAST) child));
+							}
+						}
+					} else {
+						frame.add(encodeAtom(child));
+					}
+					continue;
+				}
+				stack.pop();
+				PBExpr expr = share(frame.fAST, PBExpr.newBuilder().setAst(frame.fBuilder.build()).build());
+				if (stack.isEmpty()) {
+					return expr;
+				}
+				stack.peek().add(expr);
+			}
+		}
+
+		/**
+		 * 
+		 * @param ast
+		 * @return a reference to an already encoded node or <code>null</code>
+		 */
+		private PBExpr reference(final IExpr ast) {
+			int index = fNodeIndex[id(ast)];
+			if (index < 0) {
+				return null;
+			}
+			return PBExpr.newBuilder().setNodeRef(index).build();
+		}
+
+		/**
+		 * If the AST occurs more than once, add the encoded AST to the node list and return a reference to it.
+		 * 
+		 * @param ast
+		 * @param expr
+		 *            the encoded AST
+		 * @return
+		 */
+		private PBExpr share(final IAST ast, final PBExpr expr) {
+			int id = id(ast);
+			if (fCounts[id] > 1) {
+				int index = fBuilder.getNodeCount();
+				fBuilder.addNode(expr);
+				fNodeIndex[id] = index;
+				return PBExpr.newBuilder().setNodeRef(index).build();
+			}
+			return expr;
+		}
+
+		private PBExpr encodeAtom(final IExpr x) {
+			if (x instanceof ISymbol && !(x instanceof IBuiltInSymbol)) {
+				String name = ((ISymbol) x).getSymbolName();
+				Integer index = fSymbolIndex.get(name);
+				if (index == null) {
+					index = fBuilder.getSymbolCount();
+					fBuilder.addSymbol(name);
+					fSymbolIndex.put(name, index);
+				}
+				return PBExpr.newBuilder().setSymbolRef(index).build();
+			}
+			return convertAtom(x);
 		}
-		return localBuilder.build();
 	}
 }
@@ -0,0 +1,121 @@
+package org.matheclipse.core.grpc.convert;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import org.matheclipse.core.interfaces.IExpr;
+
+import com.google.common.io.ByteStreams;
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.CodedOutputStream;
+
+import io.grpc.Drainable;
+import io.grpc.KnownLength;
+import io.grpc.MethodDescriptor;
+import io.grpc.Status;
+
+/**
+ * A gRPC marshaller which reads and writes <code>PBExpr</code> messages directly from and to expressions, without
+ * building the generated message objects (see {@link Protobuf2IExpr#convert(CodedInputStream)} and
+ * {@link EncodedExpr}). The bytes on the wire are the same, so the marshaller can be used with a server which uses the
+ * generated classes and vice versa.
+ * <p>
+ * Decoding creates user symbols, so it must run where the calls result is consumed, for example in a client. A server
+ * decodes its requests with the engine of its evaluator instead, see {@link ByteStringMarshaller}.
+ */
+public class IExprMarshaller implements MethodDescriptor.Marshaller<IExpr> {
+	public static final IExprMarshaller CONST = new IExprMarshaller(IExpr2Protobuf.CONST, Protobuf2IExpr.CONST);
+
+	private final IExpr2Protobuf fEncoder;
+
+	private final Protobuf2IExpr fDecoder;
+
+	/**
+	 *
+	 * @param encoder
+	 *            the encoder of the sent expressions
+	 * @param decoder
+	 *            the decoder of the received messages
+	 */
+	public IExprMarshaller(IExpr2Protobuf encoder, Protobuf2IExpr decoder) {
+		fEncoder = encoder;
+		fDecoder = decoder;
+	}
+
+	@Override
+	public InputStream stream(IExpr value) {
+		return new EncodedStream(fEncoder.encode(value));
+	}
+
+	@Override
+	public IExpr parse(InputStream stream) {
+		CodedInputStream input = CodedInputStream.newInstance(stream);
+		// the size is limited by the maximum message size of the channel
+		input.setSizeLimit(Integer.MAX_VALUE);
+		try {
+			return fDecoder.convert(input);
+		} catch (IOException e) {
+			throw Status.INTERNAL.withDescription("Invalid protobuf byte sequence").withCause(e).asRuntimeException();
+		}
+	}
+
+	/**
+	 * The stream of an encoded expression. gRPC drains it into its own buffers, so the message is written without an
+	 * intermediate byte array; only an explicit {@link #read()} writes it into an array first.
+	 */
+	private static final class EncodedStream extends InputStream implements Drainable, KnownLength {
+		private EncodedExpr fExpr;
+
+		private ByteArrayInputStream fPartial = null;
+
+		EncodedStream(EncodedExpr expr) {
+			fExpr = expr;
+		}
+
+		@Override
+		public int drainTo(OutputStream target) throws IOException {
+			if (fExpr != null) {
+				int size = fExpr.getSerializedSize();
+				CodedOutputStream output = CodedOutputStream.newInstance(target, CodedOutputStream.DEFAULT_BUFFER_SIZE);
+				fExpr.writeTo(output);
+				output.flush();
+				fExpr = null;
+				return size;
+			}
+			if (fPartial != null) {
+				int size = (int) ByteStreams.copy(fPartial, target);
+				fPartial = null;
+				return size;
+			}
+			return 0;
+		}
+
+		@Override
+		public int read() throws IOException {
+			return partial().read();
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			return partial().read(b, off, len);
+		}
+
+		@Override
+		public int available() throws IOException {
+			if (fExpr != null) {
+				return fExpr.getSerializedSize();
+			}
+			return fPartial != null ? fPartial.available() : 0;
+		}
+
+		private InputStream partial() {
+			if (fExpr != null) {
+				fPartial = new ByteArrayInputStream(fExpr.toByteString().toByteArray());
+				fExpr = null;
+			}
+			return fPartial != null ? fPartial : new ByteArrayInputStream(new byte[0]);
+		}
+	}
+}
@@ -1,9 +1,13 @@
 package org.matheclipse.core.grpc.convert;
 
+import java.io.IOException;
 import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
 
+import org.matheclipse.core.expression.ASTRealMatrix;
+import org.matheclipse.core.expression.ASTRealVector;
 import org.matheclipse.core.expression.F;
-import org.matheclipse.core.expression.BuiltIns;
 import org.matheclipse.core.grpc.PBAST;
 import org.matheclipse.core.grpc.PBBuiltinSymbol;
 import org.matheclipse.core.grpc.PBComplex;
@@ -13,7 +17,14 @@ import org.matheclipse.core.grpc.PBExpr.AtomCase;
 import org.matheclipse.core.grpc.PBFraction;
 import org.matheclipse.core.grpc.PBInteger;
 import org.matheclipse.core.grpc.PBNum;
+import org.matheclipse.core.grpc.PBPackedComplexVector;
+import org.matheclipse.core.grpc.PBPackedIntMatrix;
+import org.matheclipse.core.grpc.PBPackedIntVector;
+import org.matheclipse.core.grpc.PBPackedMatrix;
+import org.matheclipse.core.grpc.PBPackedVector;
 import org.matheclipse.core.grpc.PBPattern;
+import org.matheclipse.core.grpc.PBSharedExpr;
+import org.matheclipse.core.grpc.PBSharedExprBytes;
 import org.matheclipse.core.grpc.PBString;
 import org.matheclipse.core.grpc.PBSymbol;
 import org.matheclipse.core.interfaces.IAST;
@@ -28,23 +39,431 @@ import org.matheclipse.core.interfaces.IPattern;
 import org.matheclipse.core.interfaces.IStringX;
 import org.matheclipse.core.interfaces.ISymbol;
 
+import com.google.protobuf.ByteOutput;
 import com.google.protobuf.ByteString;
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.ExtensionRegistryLite;
+import com.google.protobuf.UnsafeByteOperations;
+import com.google.protobuf.WireFormat;
 
 public class Protobuf2IExpr {
 	public static Protobuf2IExpr CONST = new Protobuf2IExpr();
 
+	private final SymbolTable fSymbols;
+
 	// private static org.matheclipse.core.grpc.PBSymbol.Builder symbolBuilder = PBSymbol.newBuilder();
 	// private static org.matheclipse.core.grpc.PBExpr.Builder exprBuilder = PBExpr.newBuilder();
 	// private static org.matheclipse.core.grpc.PBInteger.Builder intBuilder = PBInteger.newBuilder();
 	// private static org.matheclipse.core.grpc.PBFraction.Builder fractionBuilder = PBFraction.newBuilder();
 	// private static org.matheclipse.core.grpc.PBAST.Builder astBuilder = PBAST.newBuilder();
 
+	/**
+	 * A decoder for a sender with the same symbol table.
+	 */
+	public Protobuf2IExpr() {
+		this(SymbolTable.DEFAULT);
+	}
+
+	/**
+	 * 
+	 * @param symbols
+	 *            the table of the ids of the built-in symbols sent by the sender
+	 */
+	public Protobuf2IExpr(SymbolTable symbols) {
+		fSymbols = symbols;
+	}
+
+	/**
+	 * Convert a protocol buffer message into an expression. Nested ASTs are converted with an explicit stack, so
+	 * arbitrarily deep messages don't overflow the Java stack.
+	 * 
+	 * @param message
+	 * @return <code>null</code> if the message is empty
+	 */
 	public IExpr convert(final PBExpr message) {
+		return convert(message, null);
+	}
+
+	/**
+	 * Read a <code>PBExpr</code> message from the stream and convert it into an expression without creating the
+	 * generated message objects of its ASTs, symbols, strings and numbers. Nested ASTs are read with an explicit stack
+	 * and the limits of the stream, so the recursion limit of the stream doesn't restrict the depth of the expression.
+	 * 
+	 * @param input
+	 *            a stream positioned at the start of the message; the message ends at the current limit of the stream
+	 * @return <code>null</code> if the message is empty
+	 * @throws IOException
+	 *             if the stream can't be read or doesn't contain a valid message
+	 */
+	public IExpr convert(final CodedInputStream input) throws IOException {
+		return convert(input, null);
+	}
+
+	/**
+	 * Decode a serialized <code>PBExpr</code> message with {@link #convert(CodedInputStream)}.
+	 * 
+	 * @param message
+	 * @return <code>null</code> if the message is empty
+	 * @throws IOException
+	 *             if the bytes don't contain a valid message
+	 */
+	public IExpr convert(final ByteString message) throws IOException {
+		return convert(newInput(message), null);
+	}
+
+	private static CodedInputStream newInput(final ByteString message) {
+		CodedInputStream input = message.newCodedInput();
+		input.enableAliasing(true);
+		input.setSizeLimit(Integer.MAX_VALUE);
+		return input;
+	}
+
+	/**
+	 * 
+	 * @param input
+	 * @param table
+	 *            the table of the enclosing <code>PBSharedExpr</code> or <code>null</code>
+	 * @return
+	 * @throws IOException
+	 */
+	private IExpr convert(final CodedInputStream input, final SharedTable table) throws IOException {
+		ArrayDeque<ReadFrame> stack = new ArrayDeque<ReadFrame>();
+		stack.push(new ReadFrame(false, 0, -1));
+		while (true) {
+			ReadFrame frame = stack.peek();
+			int tag = input.readTag();
+			if (tag == 0) {
+				stack.pop();
+				if (frame.fOldLimit >= 0) {
+					input.popLimit(frame.fOldLimit);
+				}
+				if (stack.isEmpty()) {
+					return frame.fExpr;
+				}
+				stack.peek().add(frame);
+				continue;
+			}
+			int field = WireFormat.getTagFieldNumber(tag);
+			if (WireFormat.getTagWireType(tag) != WireFormat.WIRETYPE_LENGTH_DELIMITED) {
+				boolean isReference = !frame.fIsAST
+						&& (field == PBExpr.SYMBOL_REF_FIELD_NUMBER || field == PBExpr.NODE_REF_FIELD_NUMBER);
+				if (isReference && table == null) {
+					throw new IllegalArgumentException("Reference outside of PBSharedExpr");
+				}
+				if (isReference && WireFormat.getTagWireType(tag) == WireFormat.WIRETYPE_VARINT) {
+					int index = input.readInt32();
+					frame.fExpr = field == PBExpr.SYMBOL_REF_FIELD_NUMBER ? table.symbol(index) : table.node(index);
+				} else {
+					input.skipField(tag);
+				}
+			} else if (frame.fIsAST) {
+				if (field == PBAST.HEAD_FIELD_NUMBER || field == PBAST.ARG_FIELD_NUMBER) {
+					stack.push(new ReadFrame(false, field, pushMessage(input)));
+				} else {
+					input.skipField(tag);
+				}
+			} else if (field == PBExpr.AST_FIELD_NUMBER) {
+				stack.push(new ReadFrame(true, field, pushMessage(input)));
+			} else {
+				frame.fExpr = readAtom(field, tag, input);
+			}
+		}
+	}
+
+	/**
+	 * A <code>PBExpr</code> or <code>PBAST</code> message which is read from a <code>CodedInputStream</code>.
+	 */
+	private static class ReadFrame {
+		final boolean fIsAST;
+		/**
+		 * The field number of the message in its parent message.
+		 */
+		final int fField;
+		/**
+		 * The limit of the stream to restore at the end of the message; <code>-1</code> for the outermost message.
+		 */
+		final int fOldLimit;
+		/**
+		 * The expression of the message; for a <code>PBAST</code> the AST which is allocated after its head was read.
+		 */
+		IExpr fExpr = null;
+
+		ReadFrame(boolean isAST, int field, int oldLimit) {
+			fIsAST = isAST;
+			fField = field;
+			fOldLimit = oldLimit;
+		}
+
+		/**
+		 * Add the expression of a completely read child message.
+		 * 
+		 * @param child
+		 * @throws IllegalArgumentException
+		 *             if the head or an argument of an AST has no expression, for example an empty
+		 *             <code>PBExpr</code>
+		 */
+		void add(ReadFrame child) {
+			if (!fIsAST) {
+				// the last field of a oneof wins
+				fExpr = child.fExpr;
+			} else if (child.fExpr == null) {
+				throw new IllegalArgumentException("PBAST with an empty head or argument");
+			} else if (child.fField == PBAST.HEAD_FIELD_NUMBER) {
+				if (fExpr != null) {
+					throw new IllegalArgumentException("PBAST with more than one head");
+				}
+				fExpr = F.ast(child.fExpr, 8, false);
+			} else {
+				if (fExpr == null) {
+					throw new IllegalArgumentException("PBAST argument before its head");
+				}
+				((IASTAppendable) fExpr).append(child.fExpr);
+			}
+		}
+	}
+
+	/**
+	 * Read the length of an embedded message and limit the stream to it.
+	 * 
+	 * @param input
+	 * @return the previous limit
+	 * @throws IOException
+	 */
+	private static int pushMessage(final CodedInputStream input) throws IOException {
+		int length = input.readRawVarint32();
+		return input.pushLimit(length);
+	}
+
+	/**
+	 * Read a length-delimited atom field of a <code>PBExpr</code>. Frequent atoms are read directly, the others are
+	 * parsed into their generated message.
+	 * 
+	 * @param field
+	 * @param tag
+	 * @param input
+	 * @return
+	 * @throws IOException
+	 */
+	private IExpr readAtom(final int field, final int tag, final CodedInputStream input) throws IOException {
+		ExtensionRegistryLite registry = ExtensionRegistryLite.getEmptyRegistry();
+		switch (field) {
+		case PBExpr.SYMBOL_FIELD_NUMBER:
+			long id = readScalar(input, 1, WireFormat.WIRETYPE_VARINT);
+			if (id != (int) id) {
+				// the truncated id could be a valid id of another symbol
+				throw new IllegalArgumentException("Unknown built-in symbol id: " + id);
+			}
+			return fSymbols.symbol((int) id);
+		case PBExpr.IDENTIFIER_FIELD_NUMBER:
+			String name = readString(input);
+			return name.isEmpty() ? null : F.$s(name);
+		case PBExpr.BIG_INTEGER_FIELD_NUMBER:
+			return readInteger(input);
+		case PBExpr.BIG_FRACTION_FIELD_NUMBER:
+			return convertFraction(input.readMessage(PBFraction.parser(), registry));
+		case PBExpr.BIG_COMPLEX_FIELD_NUMBER:
+			return convertComplex(input.readMessage(PBComplex.parser(), registry));
+		case PBExpr.NUMERIC_FIELD_NUMBER:
+			return F.num(Double.longBitsToDouble(readScalar(input, 1, WireFormat.WIRETYPE_FIXED64)));
+		case PBExpr.COMPLEX_NUMERIC_FIELD_NUMBER:
+			return convertComplexNumeric(input.readMessage(PBComplexNum.parser(), registry));
+		case PBExpr.PATTERN_FIELD_NUMBER:
+			return convertPattern(input.readMessage(PBPattern.parser(), registry));
+		case PBExpr.STR_FIELD_NUMBER:
+			return F.$str(readString(input));
+		case PBExpr.PACKED_VECTOR_FIELD_NUMBER:
+			return convertPackedVector(input.readMessage(PBPackedVector.parser(), registry));
+		case PBExpr.PACKED_INT_VECTOR_FIELD_NUMBER:
+			return convertPackedIntVector(input.readMessage(PBPackedIntVector.parser(), registry));
+		case PBExpr.PACKED_MATRIX_FIELD_NUMBER:
+			return convertPackedMatrix(input.readMessage(PBPackedMatrix.parser(), registry));
+		case PBExpr.PACKED_INT_MATRIX_FIELD_NUMBER:
+			return convertPackedIntMatrix(input.readMessage(PBPackedIntMatrix.parser(), registry));
+		case PBExpr.PACKED_COMPLEX_VECTOR_FIELD_NUMBER:
+			return convertPackedComplexVector(input.readMessage(PBPackedComplexVector.parser(), registry));
+		default:
+			input.skipField(tag);
+			return null;
+		}
+	}
+
+	/**
+	 * Read an embedded message with a single scalar field, for example a <code>PBNum</code>.
+	 * 
+	 * @param input
+	 * @param field
+	 *            the field number of the scalar
+	 * @param wireType
+	 *            <code>WIRETYPE_VARINT</code> or <code>WIRETYPE_FIXED64</code>
+	 * @return the raw value of the last occurrence of the field or <code>0</code> if it is missing
+	 * @throws IOException
+	 */
+	private static long readScalar(final CodedInputStream input, final int field, final int wireType)
+			throws IOException {
+		int oldLimit = pushMessage(input);
+		long value = 0L;
+		int tag;
+		while ((tag = input.readTag()) != 0) {
+			if (WireFormat.getTagFieldNumber(tag) == field && WireFormat.getTagWireType(tag) == wireType) {
+				value = wireType == WireFormat.WIRETYPE_FIXED64 ? input.readRawLittleEndian64()
+						: input.readRawVarint64();
+			} else {
+				input.skipField(tag);
+			}
+		}
+		input.popLimit(oldLimit);
+		return value;
+	}
+
+	/**
+	 * Read an embedded message with a single string field, i.e. a <code>PBSymbol</code> or a <code>PBString</code>.
+	 * 
+	 * @param input
+	 * @return the empty string if the field is missing
+	 * @throws IOException
+	 */
+	private static String readString(final CodedInputStream input) throws IOException {
+		int oldLimit = pushMessage(input);
+		String value = "";
+		int tag;
+		while ((tag = input.readTag()) != 0) {
+			if (WireFormat.getTagFieldNumber(tag) == 1
+					&& WireFormat.getTagWireType(tag) == WireFormat.WIRETYPE_LENGTH_DELIMITED) {
+				value = input.readStringRequireUtf8();
+			} else {
+				input.skipField(tag);
+			}
+		}
+		input.popLimit(oldLimit);
+		return value;
+	}
+
+	/**
+	 * Read an embedded <code>PBInteger</code> message. The magnitude of a big integer is copied, because
+	 * <code>BigInteger</code> doesn't share the bytes of the message.
+	 * 
+	 * @param input
+	 * @return
+	 * @throws IOException
+	 */
+	private static IInteger readInteger(final CodedInputStream input) throws IOException {
+		int oldLimit = pushMessage(input);
+		IInteger value = F.C0;
+		int tag;
+		while ((tag = input.readTag()) != 0) {
+			int field = WireFormat.getTagFieldNumber(tag);
+			int wireType = WireFormat.getTagWireType(tag);
+			if (field == PBInteger.SMALL_VALUE_FIELD_NUMBER && wireType == WireFormat.WIRETYPE_VARINT) {
+				value = F.integer(input.readSInt64());
+			} else if (field == PBInteger.VALUE_FIELD_NUMBER && wireType == WireFormat.WIRETYPE_LENGTH_DELIMITED) {
+				value = F.integer(new BigInteger(input.readByteArray()));
+			} else {
+				input.skipField(tag);
+			}
+		}
+		input.popLimit(oldLimit);
+		return value;
+	}
+
+	/**
+	 * Convert a <code>PBSharedExpr</code> message. The nodes are converted in order, so that every node reference
+	 * resolves to an already converted expression, which is shared and not copied.
+	 * 
+	 * @param message
+	 * @return <code>null</code> if the root is empty
+	 */
+	public IExpr convert(final PBSharedExpr message) {
+		SharedTable table = new SharedTable(message.getSymbolCount(), message.getNodeCount());
+		for (int i = 0; i < message.getSymbolCount(); i++) {
+			table.fSymbols[i] = F.$s(message.getSymbol(i));
+		}
+		for (int i = 0; i < message.getNodeCount(); i++) {
+			table.fNodes[i] = convert(message.getNode(i), table);
+			table.fNodeCount++;
+		}
+		return convert(message.getRoot(), table);
+	}
+
+	/**
+	 * Convert the view of a <code>PBSharedExpr</code> whose nodes and root are serialized <code>PBExpr</code>
+	 * messages. Like {@link #convert(CodedInputStream)}, arbitrarily deep nodes don't overflow the Java stack.
+	 * 
+	 * @param message
+	 * @return <code>null</code> if the root is empty
+	 * @throws IOException
+	 *             if a node or the root isn't a valid message
+	 */
+	public IExpr convert(final PBSharedExprBytes message) throws IOException {
+		SharedTable table = new SharedTable(message.getSymbolCount(), message.getNodeCount());
+		for (int i = 0; i < message.getSymbolCount(); i++) {
+			table.fSymbols[i] = F.$s(message.getSymbol(i));
+		}
+		for (int i = 0; i < message.getNodeCount(); i++) {
+			table.fNodes[i] = convert(newInput(message.getNode(i)), table);
+			table.fNodeCount++;
+		}
+		return convert(newInput(message.getRoot()), table);
+	}
+
+	/**
+	 * The symbols and the already converted nodes of a <code>PBSharedExpr</code>.
+	 */
+	private static class SharedTable {
+		final ISymbol[] fSymbols;
+		final IExpr[] fNodes;
+		int fNodeCount = 0;
+
+		SharedTable(int symbolCount, int nodeCount) {
+			fSymbols = new ISymbol[symbolCount];
+			fNodes = new IExpr[nodeCount];
+		}
+
+		ISymbol symbol(int index) {
+			if (index < 0 || index >= fSymbols.length) {
+				throw new IllegalArgumentException("Invalid symbol reference: " + index);
+			}
+			return fSymbols[index];
+		}
+
+		IExpr node(int index) {
+			if (index < 0 || index >= fNodeCount) {
+				throw new IllegalArgumentException("Invalid node reference: " + index);
+			}
+			return fNodes[index];
+		}
+	}
+
+	private IExpr convert(final PBExpr message, final SharedTable table) {
+		if (message.getAtomCase() == AtomCase.AST) {
+			return convertAST(message.getAst(), table);
+		}
+		return convertAtom(message, table);
+	}
+
+	/**
+	 * Convert a message which doesn't contain a <code>PBAST</code>.
+	 * 
+	 * @param message
+	 * @param table
+	 *            the table of the enclosing <code>PBSharedExpr</code> or <code>null</code>
+	 * @return <code>null</code> if the message is empty
+	 */
+	private IExpr convertAtom(final PBExpr message, final SharedTable table) {
 		if (message.equals(PBExpr.getDefaultInstance())) {
 			return null;
 		}
 		AtomCase atomCase = message.getAtomCase();
 		switch (atomCase) {
+		case SYMBOL_REF:
+			if (table == null) {
+				throw new IllegalArgumentException("Symbol reference outside of PBSharedExpr");
+			}
+			return table.symbol(message.getSymbolRef());
+		case NODE_REF:
+			if (table == null) {
+				throw new IllegalArgumentException("Node reference outside of PBSharedExpr");
+			}
+			return table.node(message.getNodeRef());
 		case BIG_INTEGER:
 			return convertInteger(message.getBigInteger());
 		case BIG_FRACTION:
@@ -55,8 +474,6 @@ public class Protobuf2IExpr {
 			return convertNumeric(message.getNumeric());
 		case COMPLEX_NUMERIC:
 			return convertComplexNumeric(message.getComplexNumeric());
-		case AST:
-			return convertAST(message.getAst());
 		case IDENTIFIER:
 			return convertSymbol(message.getIdentifier());
 		case SYMBOL:
@@ -65,6 +482,16 @@ public class Protobuf2IExpr {
 			return convertString(message.getStr());
 		case PATTERN:
 			return convertPattern(message.getPattern());
+		case PACKED_VECTOR:
+			return convertPackedVector(message.getPackedVector());
+		case PACKED_INT_VECTOR:
+			return convertPackedIntVector(message.getPackedIntVector());
+		case PACKED_MATRIX:
+			return convertPackedMatrix(message.getPackedMatrix());
+		case PACKED_INT_MATRIX:
+			return convertPackedIntMatrix(message.getPackedIntMatrix());
+		case PACKED_COMPLEX_VECTOR:
+			return convertPackedComplexVector(message.getPackedComplexVector());
 		}
 		return null;
 	}
@@ -77,7 +504,8 @@ public class Protobuf2IExpr {
 	}
 	
 	ISymbol convertBuiltInSymbol(final PBBuiltinSymbol message) {
-		return BuiltIns.symbol(message.getId().ordinal());
+		// the raw value, because an id which is newer than the generated enum is UNRECOGNIZED
+		return fSymbols.symbol(message.getIdValue());
 	}
 
 	IStringX convertString(final PBString message) {
@@ -97,8 +525,80 @@ public class Protobuf2IExpr {
 	}
 
 	IInteger convertInteger(PBInteger message) {
-		ByteString bytes = message.getValue();
-		return F.integer(new BigInteger(bytes.toByteArray()));
+		switch (message.getNumberCase()) {
+		case SMALL_VALUE:
+			return F.integer(message.getSmallValue());
+		case NUMBER_NOT_SET:
+			return F.C0;
+		default:
+		}
+		// BigInteger only reads the array, so the backing array of the ByteString can be used without a copy
+		return F.integer(new BigInteger(unsafeArray(message.getValue())));
+	}
+
+	/**
+	 * Get the bytes of a <code>ByteString</code> as an array. If the <code>ByteString</code> is backed by exactly one
+	 * array, this array is returned without copying; otherwise (a slice, a rope or a buffer) the bytes are copied. The
+	 * returned array must not be modified.
+	 * 
+	 * @param bytes
+	 * @return
+	 */
+	static byte[] unsafeArray(final ByteString bytes) {
+		ArrayCapture capture = new ArrayCapture();
+		try {
+			UnsafeByteOperations.unsafeWriteTo(bytes, capture);
+		} catch (IOException e) {
+			// not thrown by ArrayCapture
+		}
+		byte[] array = capture.fArray;
+		if (array != null && array.length == bytes.size()) {
+			return array;
+		}
+		return bytes.toByteArray();
+	}
+
+	/**
+	 * Captures the backing array of a <code>ByteString</code> which is written as a single chunk.
+	 */
+	private static final class ArrayCapture extends ByteOutput {
+		byte[] fArray = null;
+
+		private int fChunks = 0;
+
+		@Override
+		public void write(byte value) {
+			other();
+		}
+
+		@Override
+		public void write(byte[] value, int offset, int length) {
+			other();
+		}
+
+		@Override
+		public void writeLazy(byte[] value, int offset, int length) {
+			if (fChunks++ == 0 && offset == 0) {
+				fArray = value;
+			} else {
+				fArray = null;
+			}
+		}
+
+		@Override
+		public void write(ByteBuffer value) {
+			other();
+		}
+
+		@Override
+		public void writeLazy(ByteBuffer value) {
+			other();
+		}
+
+		private void other() {
+			fChunks++;
+			fArray = null;
+		}
 	}
 
 	IFraction convertFraction(PBFraction message) {
@@ -121,14 +621,125 @@ public class Protobuf2IExpr {
 		return F.complexNum(message.getReValue(), message.getImValue());
 	}
 
-	IAST convertAST(final PBAST message) {
-		PBExpr head = message.getHead();
-		int size = message.getArgCount();
-		IASTAppendable ast = F.ast(convert(head), size + 1, false);
+	IAST convertPackedVector(PBPackedVector message) {
+		int size = message.getValueCount();
+		double[] vector = new double[size];
+		for (int i = 0; i < size; i++) {
+			vector[i] = message.getValue(i);
+		}
+		return new ASTRealVector(vector, false);
+	}
+
+	IAST convertPackedIntVector(PBPackedIntVector message) {
+		int size = message.getValueCount();
+		IASTAppendable list = F.ListAlloc(size);
 		for (int i = 0; i < size; i++) {
-			ast.append(convert(message.getArg(i)));
+			list.append(F.integer(message.getValue(i)));
+		}
+		return list;
+	}
+
+	IAST convertPackedMatrix(PBPackedMatrix message) {
+		int rows = message.getRows();
+		int columns = message.getColumns();
+		if (rows < 0 || columns < 0 || (long) rows * columns != message.getValueCount()) {
+			throw new IllegalArgumentException("Packed matrix dimensions don't match its values");
+		}
+		double[][] matrix = new double[rows][columns];
+		int index = 0;
+		for (int i = 0; i < rows; i++) {
+			double[] row = matrix[i];
+			for (int j = 0; j < columns; j++) {
+				row[j] = message.getValue(index++);
+			}
+		}
+		return new ASTRealMatrix(matrix, false);
+	}
+
+	IAST convertPackedIntMatrix(PBPackedIntMatrix message) {
+		int rows = message.getRows();
+		int columns = message.getColumns();
+		if (rows < 0 || columns < 0 || (long) rows * columns != message.getValueCount()) {
+			throw new IllegalArgumentException("Packed matrix dimensions don't match its values");
+		}
+		IASTAppendable matrix = F.ListAlloc(rows);
+		int index = 0;
+		for (int i = 0; i < rows; i++) {
+			IASTAppendable row = F.ListAlloc(columns);
+			for (int j = 0; j < columns; j++) {
+				row.append(F.integer(message.getValue(index++)));
+			}
+			matrix.append(row);
+		}
+		return matrix;
+	}
+
+	IAST convertPackedComplexVector(PBPackedComplexVector message) {
+		int size = message.getReValueCount();
+		if (size != message.getImValueCount()) {
+			throw new IllegalArgumentException("Packed complex vector has unequal numbers of real and imaginary parts");
+		}
+		IASTAppendable list = F.ListAlloc(size);
+		for (int i = 0; i < size; i++) {
+			list.append(F.complexNum(message.getReValue(i), message.getImValue(i)));
+		}
+		return list;
+	}
+
+	/**
+	 * A message whose head and arguments are converted one after the other. Index <code>0</code> is the head, the
+	 * resulting AST is allocated after the head is converted.
+	 */
+	private static class ASTFrame {
+		final PBAST fMessage;
+		IASTAppendable fAST = null;
+		int fIndex = 0;
+
+		ASTFrame(PBAST message) {
+			fMessage = message;
+		}
+
+		PBExpr next() {
+			return fIndex == 0 ? fMessage.getHead() : fMessage.getArg(fIndex - 1);
+		}
+
+		void add(IExpr expr) {
+			if (expr == null) {
+				throw new IllegalArgumentException("PBAST with an empty head or argument");
+			}
+			if (fIndex == 0) {
+				fAST = F.ast(expr, fMessage.getArgCount() + 1, false);
+			} else {
+				fAST.append(expr);
+			}
+			fIndex++;
+		}
+	}
+
+	IAST convertAST(final PBAST message) {
+		return convertAST(message, null);
+	}
+
+	private IAST convertAST(final PBAST message, final SharedTable table) {
+		ArrayDeque<ASTFrame> stack = new ArrayDeque<ASTFrame>();
+		stack.push(new ASTFrame(message));
+		while (true) {
+			ASTFrame frame = stack.peek();
+			if (frame.fIndex <= frame.fMessage.getArgCount()) {
+				PBExpr child = frame.next();
+				if (child.getAtomCase() == AtomCase.AST) {
+					stack.push(new ASTFrame(child.getAst()));
+				} else {
+					frame.add(convertAtom(child, table));
+				}
+				continue;
+			}
+			stack.pop();
+			if (stack.isEmpty()) {
+				return frame.fAST;
+			}
+			stack.peek().add(frame.fAST);
 		}
-		return ast;
 	}
 
 }
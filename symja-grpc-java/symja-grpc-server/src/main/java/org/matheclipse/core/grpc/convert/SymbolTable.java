@@ -0,0 +1,199 @@
+package org.matheclipse.core.grpc.convert;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.matheclipse.core.expression.F;
+import org.matheclipse.core.grpc.PBBuiltinSymbol;
+import org.matheclipse.core.grpc.PBExpr;
+import org.matheclipse.core.grpc.PBSymbolTable;
+import org.matheclipse.core.interfaces.IBuiltInSymbol;
+import org.matheclipse.core.interfaces.ISymbol;
+
+/**
+ * The ids of the built-in symbols on the wire. The {@link #DEFAULT} table is the generated
+ * <code>PBBuiltinSymbol.ID</code> enum. Its first 719 ids (<code>Abort</code> to <code>Zeta</code>) are sorted by
+ * name; this order is frozen, and new symbols are appended after <code>Zeta</code> with the next free id regardless of
+ * their names, so existing ids never change. The ids are mapped by name to the built-in symbols of the local Symja
+ * library, so the ordinals of the library may change without breaking the protocol. Encoding and decoding a symbol are
+ * array lookups.
+ * <p>
+ * A name which isn't a built-in symbol of the local library is decoded as a user symbol, and a local built-in symbol
+ * which isn't in the table is encoded by its name.
+ */
+public final class SymbolTable {
+
+	/**
+	 * The table of the generated <code>PBBuiltinSymbol.ID</code> enum.
+	 */
+	public static final SymbolTable DEFAULT = new SymbolTable(generatedNames());
+
+	private final List<String> fNames;
+
+	/**
+	 * The symbol of every id.
+	 */
+	private final ISymbol[] fSymbols;
+
+	/**
+	 * The encoded message of every id. Messages are immutable, so they are shared by all conversions.
+	 */
+	private final PBExpr[] fExprs;
+
+	/**
+	 * The id of every local built-in symbol, indexed by its ordinal; <code>-1</code> if the symbol isn't in the table.
+	 */
+	private final int[] fIds;
+
+	private final long fVersion;
+
+	/**
+	 *
+	 * @param names
+	 *            the symbol names in the order of their ids
+	 */
+	public SymbolTable(List<String> names) {
+		fNames = Collections.unmodifiableList(new ArrayList<String>(names));
+		int size = names.size();
+		fSymbols = new ISymbol[size];
+		fExprs = new PBExpr[size];
+		int maxOrdinal = -1;
+		for (int i = 0; i < size; i++) {
+			fSymbols[i] = F.$s(names.get(i));
+			fExprs[i] = PBExpr.newBuilder().setSymbol(PBBuiltinSymbol.newBuilder().setIdValue(i)).build();
+			if (fSymbols[i] instanceof IBuiltInSymbol) {
+				maxOrdinal = Math.max(maxOrdinal, ((IBuiltInSymbol) fSymbols[i]).ordinal());
+			}
+		}
+		fIds = new int[maxOrdinal + 1];
+		Arrays.fill(fIds, -1);
+		for (int i = 0; i < size; i++) {
+			if (fSymbols[i] instanceof IBuiltInSymbol) {
+				fIds[((IBuiltInSymbol) fSymbols[i]).ordinal()] = i;
+			}
+		}
+		fVersion = version(names);
+	}
+
+	/**
+	 * Create the table of a <code>symbolTable</code> response which contains the names.
+	 *
+	 * @param message
+	 * @return
+	 */
+	public static SymbolTable of(PBSymbolTable message) {
+		return new SymbolTable(message.getNameList());
+	}
+
+	private static List<String> generatedNames() {
+		PBBuiltinSymbol.ID[] ids = PBBuiltinSymbol.ID.values();
+		String[] names = new String[ids.length - 1];
+		for (PBBuiltinSymbol.ID id : ids) {
+			if (id != PBBuiltinSymbol.ID.UNRECOGNIZED) {
+				names[id.getNumber()] = id.name();
+			}
+		}
+		return Arrays.asList(names);
+	}
+
+	/**
+	 * A 64-bit FNV-1a hash of the names.
+	 *
+	 * @param names
+	 * @return
+	 */
+	private static long version(List<String> names) {
+		long hash = 0xcbf29ce484222325L;
+		for (String name : names) {
+			for (int i = 0; i < name.length(); i++) {
+				hash ^= name.charAt(i);
+				hash *= 0x100000001b3L;
+			}
+			// separator, so that different splits of the same characters differ
+			hash ^= 0xff;
+			hash *= 0x100000001b3L;
+		}
+		return hash;
+	}
+
+	/**
+	 *
+	 * @param symbol
+	 * @return the id of the symbol or <code>-1</code> if it isn't in the table
+	 */
+	public int id(IBuiltInSymbol symbol) {
+		int ordinal = symbol.ordinal();
+		return ordinal < fIds.length ? fIds[ordinal] : -1;
+	}
+
+	/**
+	 *
+	 * @param id
+	 * @return the encoded message of the symbol with the id
+	 */
+	public PBExpr expr(int id) {
+		return fExprs[id];
+	}
+
+	/**
+	 *
+	 * @param id
+	 * @return the symbol with the id
+	 * @throws IllegalArgumentException
+	 *             if the id is not in the table
+	 */
+	public ISymbol symbol(int id) {
+		if (id < 0 || id >= fSymbols.length) {
+			throw new IllegalArgumentException("Unknown built-in symbol id: " + id);
+		}
+		return fSymbols[id];
+	}
+
+	/**
+	 * @return the number of ids
+	 */
+	public int size() {
+		return fSymbols.length;
+	}
+
+	/**
+	 * @return a hash of the names, equal tables have the same version
+	 */
+	public long getVersion() {
+		return fVersion;
+	}
+
+	/**
+	 * The number of leading ids which have the same name in both tables. Both tables are compatible, if this is the
+	 * size of the smaller table.
+	 *
+	 * @param other
+	 * @return
+	 */
+	public int commonPrefix(SymbolTable other) {
+		int size = Math.min(size(), other.size());
+		for (int i = 0; i < size; i++) {
+			if (!fNames.get(i).equals(other.fNames.get(i))) {
+				return i;
+			}
+		}
+		return size;
+	}
+
+	/**
+	 * The message of the <code>symbolTable</code> handshake.
+	 *
+	 * @param withNames
+	 *            include the names; not necessary if the peer has the same version
+	 * @return
+	 */
+	public PBSymbolTable toMessage(boolean withNames) {
+		PBSymbolTable.Builder message = PBSymbolTable.newBuilder().setVersion(fVersion).setSize(size());
+		if (withNames) {
+			message.addAllName(fNames);
+		}
+		return message.build();
+	}
+}
@@ -0,0 +1,71 @@
+package org.matheclipse.core.grpc.convert;
+
+import org.matheclipse.core.grpc.PBChunkBytes;
+import org.matheclipse.core.grpc.PBEvalRequestBytes;
+import org.matheclipse.core.grpc.PBEvalResponseBytes;
+import org.matheclipse.core.grpc.PBExecuteRequest;
+import org.matheclipse.core.grpc.PBMapRequestBytes;
+import org.matheclipse.core.grpc.PBMapResponse;
+import org.matheclipse.core.grpc.PBPrepareRequestBytes;
+import org.matheclipse.core.grpc.PBPrepared;
+import org.matheclipse.core.grpc.PBSessionEvalRequestBytes;
+import org.matheclipse.core.grpc.PBSharedExprBytes;
+import org.matheclipse.core.grpc.SymjaServiceGrpc;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.Message;
+
+import io.grpc.MethodDescriptor;
+import io.grpc.protobuf.ProtoUtils;
+
+/**
+ * The method descriptors of the <code>SymjaService</code> RPCs with the <code>...Bytes</code> views of their messages
+ * (see <code>symja.proto</code>); a <code>PBExpr</code> request or response is passed as its serialized bytes. The
+ * names and the bytes on the wire are those of the generated methods, so server and client can each use either
+ * descriptor. The expressions are decoded with {@link Protobuf2IExpr#convert(ByteString)} and encoded with
+ * {@link EncodedExpr}, so no recursion limit applies to their depth.
+ */
+public final class WireMethods {
+
+	public static final MethodDescriptor<ByteString, ByteString> EVAL = view(SymjaServiceGrpc.METHOD_EVAL,
+			ByteStringMarshaller.CONST, ByteStringMarshaller.CONST);
+
+	public static final MethodDescriptor<PBSharedExprBytes, PBSharedExprBytes> EVAL_SHARED = view(
+			SymjaServiceGrpc.METHOD_EVAL_SHARED, proto(PBSharedExprBytes.getDefaultInstance()),
+			proto(PBSharedExprBytes.getDefaultInstance()));
+
+	public static final MethodDescriptor<PBEvalRequestBytes, PBEvalResponseBytes> EVAL_STREAM = view(
+			SymjaServiceGrpc.METHOD_EVAL_STREAM, proto(PBEvalRequestBytes.getDefaultInstance()),
+			proto(PBEvalResponseBytes.getDefaultInstance()));
+
+	public static final MethodDescriptor<ByteString, PBChunkBytes> EVAL_CHUNKED = view(
+			SymjaServiceGrpc.METHOD_EVAL_CHUNKED, ByteStringMarshaller.CONST, proto(PBChunkBytes.getDefaultInstance()));
+
+	public static final MethodDescriptor<PBMapRequestBytes, PBMapResponse> EVAL_MAP = view(
+			SymjaServiceGrpc.METHOD_EVAL_MAP, proto(PBMapRequestBytes.getDefaultInstance()),
+			proto(PBMapResponse.getDefaultInstance()));
+
+	public static final MethodDescriptor<PBPrepareRequestBytes, PBPrepared> PREPARE = view(
+			SymjaServiceGrpc.METHOD_PREPARE, proto(PBPrepareRequestBytes.getDefaultInstance()),
+			proto(PBPrepared.getDefaultInstance()));
+
+	public static final MethodDescriptor<PBExecuteRequest, ByteString> EXECUTE = view(SymjaServiceGrpc.METHOD_EXECUTE,
+			proto(PBExecuteRequest.getDefaultInstance()), ByteStringMarshaller.CONST);
+
+	public static final MethodDescriptor<PBSessionEvalRequestBytes, ByteString> EVAL_IN_SESSION = view(
+			SymjaServiceGrpc.METHOD_EVAL_IN_SESSION, proto(PBSessionEvalRequestBytes.getDefaultInstance()),
+			ByteStringMarshaller.CONST);
+
+	private static <ReqT, RespT> MethodDescriptor<ReqT, RespT> view(MethodDescriptor<?, ?> method,
+			MethodDescriptor.Marshaller<ReqT> requestMarshaller,
+			MethodDescriptor.Marshaller<RespT> responseMarshaller) {
+		return method.toBuilder(requestMarshaller, responseMarshaller).build();
+	}
+
+	private static <T extends Message> MethodDescriptor.Marshaller<T> proto(T defaultInstance) {
+		return ProtoUtils.marshaller(defaultInstance);
+	}
+
+	private WireMethods() {
+	}
+}
@@ -0,0 +1,529 @@
+package org.matheclipse.core.grpc.samples.server;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.matheclipse.core.grpc.PBError;
+
+import io.grpc.Context;
+import io.grpc.Contexts;
+import io.grpc.Metadata;
+import io.grpc.ServerCall;
+import io.grpc.ServerCallHandler;
+import io.grpc.ServerInterceptor;
+import io.grpc.Status;
+
+/**
+ * Limits the number of evaluations which run at the same time and the number of evaluations which wait for a free
+ * slot, and shares the slots fairly between tenants. If a limit is reached a new evaluation is rejected immediately
+ * with <code>RESOURCE_EXHAUSTED</code>, so that a saturated server answers fast instead of piling up work.
+ * <p>
+ * A call names its tenant and priority in its metadata, see {@link #interceptor()}. Every tenant has its own queue and
+ * its own limits of running and waiting evaluations. A free slot goes to the tenant with the smallest pass value of a
+ * stride scheduler; the pass of a tenant advances by the inverse of its weight for every admitted evaluation. The
+ * weights are configured on the server, so tenants with a higher weight get a proportionally larger share of the slots
+ * while all tenants wait, and a tenant which was idle starts at the current pass, so it can't claim the slots it didn't
+ * use. The priority of a call only orders the evaluations of its own tenant: evaluations with a higher priority start
+ * first, evaluations with the same priority in arrival order.
+ * <p>
+ * A tenant without running or waiting evaluations is forgotten once its pass is no longer ahead of the others, so the
+ * maximum number of tenants bounds the tenants which are active at the same time.
+ */
+public class AdmissionControl {
+
+	public static final Metadata.Key<String> TENANT_KEY = Metadata.Key.of("symja-tenant",
+			Metadata.ASCII_STRING_MARSHALLER);
+
+	public static final Metadata.Key<String> PRIORITY_KEY = Metadata.Key.of("symja-priority",
+			Metadata.ASCII_STRING_MARSHALLER);
+
+	/**
+	 * The tenant of calls without a tenant id and of the tenants which exceed the maximum number of tenants.
+	 */
+	public static final String DEFAULT_TENANT = "default";
+
+	private static final int MAX_TENANT_LENGTH = 64;
+
+	/**
+	 * The pass increment of an evaluation of a tenant with weight <code>1</code>.
+	 */
+	private static final long STRIDE = 1L << 20;
+
+	private static final Context.Key<CallClass> CALL_CLASS = Context.key("symja-call-class");
+
+	/**
+	 * The tenant and priority of a call.
+	 */
+	private static final class CallClass {
+		final String fTenant;
+		final int fPriority;
+
+		CallClass(String tenant, int priority) {
+			fTenant = tenant;
+			fPriority = priority;
+		}
+	}
+
+	/**
+	 * Is notified when a tenant is created or forgotten, for example to register and remove its metrics.
+	 */
+	public interface TenantListener {
+		/**
+		 * @param tenant
+		 *            a new tenant
+		 */
+		void added(Tenant tenant);
+
+		/**
+		 * @param tenant
+		 *            a tenant which was forgotten; a tenant with the same id may be added again later
+		 */
+		void removed(Tenant tenant);
+	}
+
+	/**
+	 * The queue and the counters of one tenant. The counters are written while the lock is held and read by the
+	 * metrics without it.
+	 */
+	public static final class Tenant {
+		private final String fId;
+
+		private final int fWeight;
+
+		private final PriorityQueue<Waiter> fWaiters = new PriorityQueue<Waiter>();
+
+		private long fPass = 0L;
+
+		private volatile int fInFlight = 0;
+
+		private volatile int fQueued = 0;
+
+		Tenant(String id, int weight) {
+			fId = id;
+			fWeight = weight;
+		}
+
+		public String getId() {
+			return fId;
+		}
+
+		/**
+		 * @return the share of the slots of the tenant relative to the other tenants
+		 */
+		public int getWeight() {
+			return fWeight;
+		}
+
+		boolean isIdle() {
+			return fInFlight == 0 && fWaiters.isEmpty();
+		}
+
+		/**
+		 * @return the number of running evaluations of the tenant
+		 */
+		public int inFlight() {
+			return fInFlight;
+		}
+
+		/**
+		 * @return the number of evaluations of the tenant waiting for a free slot
+		 */
+		public int queued() {
+			return fQueued;
+		}
+	}
+
+	/**
+	 * An evaluation waiting for a free slot.
+	 */
+	private static final class Waiter implements Comparable<Waiter> {
+		final int fPriority;
+		final long fSequence;
+		final Condition fAdmitted;
+		boolean fIsAdmitted = false;
+
+		Waiter(int priority, long sequence, Condition admitted) {
+			fPriority = priority;
+			fSequence = sequence;
+			fAdmitted = admitted;
+		}
+
+		@Override
+		public int compareTo(Waiter other) {
+			if (fPriority != other.fPriority) {
+				return fPriority > other.fPriority ? -1 : 1;
+			}
+			return Long.compare(fSequence, other.fSequence);
+		}
+	}
+
+	private final ReentrantLock fLock = new ReentrantLock();
+
+	private final int fMaxInFlight;
+
+	private final int fMaxQueued;
+
+	private final int fTenantMaxInFlight;
+
+	private final int fTenantMaxQueued;
+
+	private final int fMaxTenants;
+
+	private final int fMaxPriority;
+
+	/**
+	 * The weights of the tenants which don't have the weight <code>1</code>.
+	 */
+	private final Map<String, Integer> fWeights;
+
+	private final Map<String, Tenant> fTenants = new HashMap<String, Tenant>();
+
+	/**
+	 * The tenants with waiting evaluations.
+	 */
+	private final List<Tenant> fActive = new ArrayList<Tenant>();
+
+	/**
+	 * The pass of the tenant which got the last slot.
+	 */
+	private long fVirtualTime = 0L;
+
+	private long fSequence = 0L;
+
+	private volatile int fInFlight = 0;
+
+	private volatile int fQueued = 0;
+
+	private TenantListener fTenantListener = null;
+
+	/**
+	 *
+	 * @param maxInFlight
+	 *            the maximum number of evaluations running at the same time
+	 * @param maxQueued
+	 *            the maximum number of evaluations waiting for a free slot
+	 */
+	public AdmissionControl(int maxInFlight, int maxQueued) {
+		this(maxInFlight, maxQueued, maxInFlight, maxQueued, 1, 1, Collections.<String, Integer> emptyMap());
+	}
+
+	/**
+	 *
+	 * @param maxInFlight
+	 *            the maximum number of evaluations running at the same time
+	 * @param maxQueued
+	 *            the maximum number of evaluations waiting for a free slot
+	 * @param tenantMaxInFlight
+	 *            the maximum number of evaluations of one tenant running at the same time
+	 * @param tenantMaxQueued
+	 *            the maximum number of evaluations of one tenant waiting for a free slot
+	 * @param maxTenants
+	 *            the maximum number of distinct tenants; calls of further tenants are counted as the
+	 *            {@link #DEFAULT_TENANT}
+	 * @param maxPriority
+	 *            the maximum priority; higher priorities of calls are lowered to it
+	 * @param weights
+	 *            the weights of tenants by tenant id; the other tenants have the weight <code>1</code>
+	 */
+	public AdmissionControl(int maxInFlight, int maxQueued, int tenantMaxInFlight, int tenantMaxQueued, int maxTenants,
+			int maxPriority, Map<String, Integer> weights) {
+		if (maxInFlight < 1 || maxQueued < 0 || tenantMaxInFlight < 1 || tenantMaxQueued < 0 || maxTenants < 1
+				|| maxPriority < 1) {
+			throw new IllegalArgumentException("Invalid admission limits: " + maxInFlight + ", " + maxQueued + ", "
+					+ tenantMaxInFlight + ", " + tenantMaxQueued + ", " + maxTenants + ", " + maxPriority);
+		}
+		fWeights = new HashMap<String, Integer>();
+		for (Map.Entry<String, Integer> entry : weights.entrySet()) {
+			int weight = entry.getValue();
+			if (weight < 1 || weight > STRIDE) {
+				throw new IllegalArgumentException("Invalid weight of tenant " + entry.getKey() + ": " + weight);
+			}
+			fWeights.put(tenantId(entry.getKey()), weight);
+		}
+		fMaxInFlight = maxInFlight;
+		fMaxQueued = maxQueued;
+		fTenantMaxInFlight = tenantMaxInFlight;
+		fTenantMaxQueued = tenantMaxQueued;
+		fMaxTenants = maxTenants;
+		fMaxPriority = maxPriority;
+		fTenants.put(DEFAULT_TENANT, newTenant(DEFAULT_TENANT));
+	}
+
+	/**
+	 * An interceptor which makes the tenant id and the priority of a call available to
+	 * {@link #acquire(Context, long)}. A tenant id consists of at most 64 letters, digits, <code>'.'</code>,
+	 * <code>'_'</code> and <code>'-'</code>, a priority is a positive number; a call with an invalid value is closed
+	 * with status <code>INVALID_ARGUMENT</code>. The priority doesn't change the share of the tenant.
+	 *
+	 * @return
+	 */
+	public ServerInterceptor interceptor() {
+		return new ServerInterceptor() {
+			@Override
+			public <ReqT, RespT> ServerCall.Listener<ReqT> interceptCall(ServerCall<ReqT, RespT> call,
+					Metadata headers, ServerCallHandler<ReqT, RespT> next) {
+				String tenant = headers.get(TENANT_KEY);
+				String priority = headers.get(PRIORITY_KEY);
+				if (tenant == null && priority == null) {
+					return next.startCall(call, headers);
+				}
+				CallClass callClass;
+				try {
+					callClass = new CallClass(tenant == null ? DEFAULT_TENANT : tenantId(tenant),
+							priority == null ? 1 : priority(priority));
+				} catch (IllegalArgumentException iae) {
+					call.close(Status.INVALID_ARGUMENT.withDescription(iae.getMessage()), new Metadata());
+					return new ServerCall.Listener<ReqT>() {
+					};
+				}
+				return Contexts.interceptCall(Context.current().withValue(CALL_CLASS, callClass), call, headers,
+						next);
+			}
+		};
+	}
+
+	static String tenantId(String value) {
+		if (value.isEmpty() || value.length() > MAX_TENANT_LENGTH) {
+			throw new IllegalArgumentException("Invalid tenant id: " + value);
+		}
+		for (int i = 0; i < value.length(); i++) {
+			char ch = value.charAt(i);
+			if (!(ch >= 'a' && ch <= 'z') && !(ch >= 'A' && ch <= 'Z') && !(ch >= '0' && ch <= '9') && ch != '.'
+					&& ch != '_' && ch != '-') {
+				throw new IllegalArgumentException("Invalid tenant id: " + value);
+			}
+		}
+		return value;
+	}
+
+	private int priority(String value) {
+		try {
+			int priority = Integer.parseInt(value.trim());
+			if (priority >= 1) {
+				return Math.min(priority, fMaxPriority);
+			}
+		} catch (NumberFormatException nfe) {
+			// reported below
+		}
+		throw new IllegalArgumentException("Invalid priority: " + value);
+	}
+
+	/**
+	 * Set the listener which is called when a tenant is added or forgotten, for example to register and remove its
+	 * metrics. It is called for the existing tenants immediately and for the later changes while the lock of the
+	 * admission control is held.
+	 *
+	 * @param listener
+	 */
+	public void setTenantListener(TenantListener listener) {
+		fLock.lock();
+		try {
+			fTenantListener = listener;
+			for (Tenant tenant : fTenants.values()) {
+				listener.added(tenant);
+			}
+		} finally {
+			fLock.unlock();
+		}
+	}
+
+	/**
+	 * Wait for a free evaluation slot. Every successful call must be followed by a call of {@link #release(Tenant)}.
+	 *
+	 * @param callContext
+	 *            the context of the call, which contains its tenant and priority
+	 * @param timeoutNanos
+	 *            the maximum time to wait in nanoseconds
+	 * @return the tenant whose slot was acquired or <code>null</code> if no slot was free before the timeout
+	 * @throws InterruptedException
+	 * @throws io.grpc.StatusRuntimeException
+	 *             with status <code>RESOURCE_EXHAUSTED</code> and a {@link PBError} with code <code>REJECTED</code> if
+	 *             the wait queue of the server or the tenant is full
+	 */
+	public Tenant acquire(Context callContext, long timeoutNanos) throws InterruptedException {
+		CallClass callClass = CALL_CLASS.get(callContext);
+		String id = callClass == null ? DEFAULT_TENANT : callClass.fTenant;
+		int priority = callClass == null ? 1 : callClass.fPriority;
+		fLock.lock();
+		try {
+			Tenant tenant = tenant(id);
+			try {
+				return waitForSlot(tenant, priority, timeoutNanos);
+			} finally {
+				evict(tenant);
+			}
+		} finally {
+			fLock.unlock();
+		}
+	}
+
+	private Tenant waitForSlot(Tenant tenant, int priority, long timeoutNanos) throws InterruptedException {
+		// the waiting evaluations were dispatched, so a free slot isn't claimed by another waiting tenant
+		if (fInFlight < fMaxInFlight && tenant.fInFlight < fTenantMaxInFlight) {
+			start(tenant);
+			return tenant;
+		}
+		if (fQueued >= fMaxQueued) {
+			throw EvalErrors.asException(PBError.Code.REJECTED, "server is saturated, retry later");
+		}
+		if (tenant.fQueued >= fTenantMaxQueued) {
+			throw EvalErrors.asException(PBError.Code.REJECTED,
+					"too many evaluations of tenant " + tenant.fId + " are waiting, retry later");
+		}
+		Waiter waiter = new Waiter(priority, fSequence++, fLock.newCondition());
+		enqueue(tenant, waiter);
+		long remaining = timeoutNanos;
+		try {
+			while (!waiter.fIsAdmitted) {
+				if (remaining <= 0L) {
+					dequeue(tenant, waiter);
+					return null;
+				}
+				remaining = waiter.fAdmitted.awaitNanos(remaining);
+			}
+		} catch (InterruptedException ie) {
+			if (waiter.fIsAdmitted) {
+				finish(tenant);
+			} else {
+				dequeue(tenant, waiter);
+			}
+			throw ie;
+		}
+		return tenant;
+	}
+
+	/**
+	 * Give back the slot of an evaluation and start the next waiting evaluation.
+	 *
+	 * @param tenant
+	 *            the tenant returned by {@link #acquire(Context, long)}
+	 */
+	public void release(Tenant tenant) {
+		fLock.lock();
+		try {
+			finish(tenant);
+			evict(tenant);
+		} finally {
+			fLock.unlock();
+		}
+	}
+
+	private Tenant tenant(String id) {
+		Tenant tenant = fTenants.get(id);
+		if (tenant == null) {
+			if (fTenants.size() >= fMaxTenants) {
+				List<Tenant> tenants = new ArrayList<Tenant>(fTenants.values());
+				for (Tenant idle : tenants) {
+					evict(idle);
+				}
+				if (fTenants.size() >= fMaxTenants) {
+					return fTenants.get(DEFAULT_TENANT);
+				}
+			}
+			tenant = newTenant(id);
+			fTenants.put(id, tenant);
+			if (fTenantListener != null) {
+				fTenantListener.added(tenant);
+			}
+		}
+		return tenant;
+	}
+
+	private Tenant newTenant(String id) {
+		Integer weight = fWeights.get(id);
+		return new Tenant(id, weight == null ? 1 : weight);
+	}
+
+	/**
+	 * Forget a tenant without running or waiting evaluations. A tenant whose pass is ahead of the current pass is kept,
+	 * because it would get back the slots it already used if it returned with a new pass.
+	 */
+	private void evict(Tenant tenant) {
+		if (tenant.isIdle() && tenant.fPass <= fVirtualTime && !tenant.fId.equals(DEFAULT_TENANT)
+				&& fTenants.remove(tenant.fId, tenant) && fTenantListener != null) {
+			fTenantListener.removed(tenant);
+		}
+	}
+
+	private void enqueue(Tenant tenant, Waiter waiter) {
+		if (tenant.fWaiters.isEmpty()) {
+			// a tenant which was idle can't claim the slots it didn't use
+			tenant.fPass = Math.max(tenant.fPass, fVirtualTime);
+			fActive.add(tenant);
+		}
+		tenant.fWaiters.add(waiter);
+		tenant.fQueued++;
+		fQueued++;
+	}
+
+	private void dequeue(Tenant tenant, Waiter waiter) {
+		if (tenant.fWaiters.remove(waiter)) {
+			tenant.fQueued--;
+			fQueued--;
+			if (tenant.fWaiters.isEmpty()) {
+				fActive.remove(tenant);
+			}
+		}
+	}
+
+	/**
+	 * Occupy a slot for an evaluation of the tenant and advance its pass.
+	 */
+	private void start(Tenant tenant) {
+		tenant.fPass = Math.max(tenant.fPass, fVirtualTime);
+		fVirtualTime = tenant.fPass;
+		// the pass of a tenant with a higher weight advances slower
+		tenant.fPass += STRIDE / tenant.fWeight;
+		tenant.fInFlight++;
+		fInFlight++;
+	}
+
+	private void finish(Tenant tenant) {
+		tenant.fInFlight--;
+		fInFlight--;
+		dispatch();
+	}
+
+	/**
+	 * Start waiting evaluations while slots are free. The next evaluation is the first one of the tenant with the
+	 * smallest pass among the tenants below their limit of running evaluations.
+	 */
+	private void dispatch() {
+		while (fInFlight < fMaxInFlight) {
+			Tenant next = null;
+			for (Tenant tenant : fActive) {
+				if (tenant.fInFlight < fTenantMaxInFlight && (next == null || tenant.fPass < next.fPass)) {
+					next = tenant;
+				}
+			}
+			if (next == null) {
+				return;
+			}
+			Waiter waiter = next.fWaiters.peek();
+			dequeue(next, waiter);
+			start(next);
+			waiter.fIsAdmitted = true;
+			waiter.fAdmitted.signal();
+		}
+	}
+
+	/**
+	 * @return the number of running evaluations
+	 */
+	public int inFlight() {
+		return fInFlight;
+	}
+
+	/**
+	 * @return the number of evaluations waiting for a free slot
+	 */
+	public int queued() {
+		return fQueued;
+	}
+}
@@ -0,0 +1,135 @@
+package org.matheclipse.core.grpc.samples.server;
+
+import org.matheclipse.core.grpc.PBChunkBatchBytes;
+import org.matheclipse.core.grpc.PBChunkBytes;
+import org.matheclipse.core.grpc.PBChunkHeaderBytes;
+import org.matheclipse.core.grpc.PBChunkTrailer;
+import org.matheclipse.core.grpc.convert.IExpr2Protobuf;
+import org.matheclipse.core.interfaces.IAST;
+import org.matheclipse.core.interfaces.IExpr;
+
+import com.google.protobuf.ByteString;
+
+import io.grpc.stub.ServerCallStreamObserver;
+
+/**
+ * Sends the result of an <code>evalChunked</code> call as a header, batches of arguments and a trailer. The arguments
+ * are converted only when the transport is ready for the next batch, so at most one batch exists as protocol buffer
+ * message and a slow client slows down the conversion instead of filling the servers memory. The expressions are
+ * written with {@link org.matheclipse.core.grpc.convert.EncodedExpr}, so their depth isn't limited.
+ * <p>
+ * The batches are converted after the evaluator was returned to the pool, while the engine may evaluate the next
+ * request. The conversion only reads the expression tree, never the state of an engine, and the sender keeps its own
+ * copy of the top-level arguments, so that a later evaluation which modifies the result list in place doesn't change
+ * the sent arguments.
+ */
+class ChunkedResultSender implements Runnable {
+
+	private final ServerCallStreamObserver<PBChunkBytes> fObserver;
+
+	private final ResponseCompression fCompression;
+
+	/**
+	 * A batch is sent when the serialized size of its arguments reaches this number of bytes.
+	 */
+	private final int fBatchBytes;
+
+	private IAST fAST = null;
+
+	/**
+	 * Index of the next argument of <code>fAST</code> which must be sent.
+	 */
+	private int fIndex = 1;
+
+	private boolean fStarted = false;
+
+	private boolean fDone = false;
+
+	/**
+	 * Must be called in the call handler before it returns, because the handlers of the observer can't be changed
+	 * later.
+	 *
+	 * @param observer
+	 * @param compression
+	 * @param batchBytes
+	 */
+	ChunkedResultSender(ServerCallStreamObserver<PBChunkBytes> observer, ResponseCompression compression,
+			int batchBytes) {
+		fObserver = observer;
+		fCompression = compression;
+		fBatchBytes = batchBytes;
+		observer.setOnReadyHandler(this);
+		observer.setOnCancelHandler(new Runnable() {
+			@Override
+			public void run() {
+				finish();
+			}
+		});
+		compression.startStream(observer);
+	}
+
+	/**
+	 * Send the header and as many batches as the transport accepts now. The remaining batches are sent when the
+	 * transport is ready again.
+	 *
+	 * @param result
+	 *            the evaluation result
+	 */
+	synchronized void start(IExpr result) {
+		fStarted = true;
+		PBChunkHeaderBytes.Builder header = PBChunkHeaderBytes.newBuilder();
+		if (result.isAST()) {
+			// a shallow copy: the arguments are only referenced
+			fAST = ((IAST) result).copy();
+			header.setHead(IExpr2Protobuf.CONST.encode(fAST.head()).toByteString());
+			header.setArgCount(fAST.size() - 1);
+		} else {
+			header.setExpr(IExpr2Protobuf.CONST.encode(result).toByteString());
+		}
+		send(PBChunkBytes.newBuilder().setHeader(header).build());
+		run();
+	}
+
+	/**
+	 * Called by gRPC when the transport is ready for more messages.
+	 */
+	@Override
+	public synchronized void run() {
+		if (!fStarted || fDone) {
+			return;
+		}
+		while (fObserver.isReady()) {
+			if (fAST != null && fIndex < fAST.size()) {
+				send(PBChunkBytes.newBuilder().setBatch(nextBatch()).build());
+			} else {
+				int argCount = fAST != null ? fAST.size() - 1 : 0;
+				send(PBChunkBytes.newBuilder().setTrailer(PBChunkTrailer.newBuilder().setArgCount(argCount)).build());
+				fObserver.onCompleted();
+				finish();
+				return;
+			}
+		}
+	}
+
+	private PBChunkBatchBytes nextBatch() {
+		PBChunkBatchBytes.Builder batch = PBChunkBatchBytes.newBuilder();
+		long bytes = 0L;
+		while (fIndex < fAST.size() && bytes < fBatchBytes) {
+			ByteString arg = IExpr2Protobuf.CONST.encode(fAST.get(fIndex++)).toByteString();
+			bytes += arg.size();
+			batch.addArg(arg);
+		}
+		return batch.build();
+	}
+
+	private void send(PBChunkBytes chunk) {
+		fCompression.prepareMessage(fObserver, chunk);
+		fObserver.onNext(chunk);
+	}
+
+	private synchronized void finish() {
+		fDone = true;
+		// the result may be large, don't keep it until the call object is collected
+		fAST = null;
+	}
+}
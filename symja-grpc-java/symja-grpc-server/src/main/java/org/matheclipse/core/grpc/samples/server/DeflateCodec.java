@@ -0,0 +1,48 @@
+package org.matheclipse.core.grpc.samples.server;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+import io.grpc.Codec;
+
+/**
+ * The gRPC <code>deflate</code> message encoding (zlib format) with the fastest compression level. It needs much less
+ * CPU time than <code>gzip</code> with the default level and still removes most of the redundancy of large symbolic
+ * results.
+ */
+public class DeflateCodec implements Codec {
+
+	public static final String NAME = "deflate";
+
+	public static final DeflateCodec INSTANCE = new DeflateCodec();
+
+	@Override
+	public String getMessageEncoding() {
+		return NAME;
+	}
+
+	@Override
+	public OutputStream compress(OutputStream os) throws IOException {
+		final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+		return new DeflaterOutputStream(os, deflater, 8192) {
+			@Override
+			public void close() throws IOException {
+				try {
+					super.close();
+				} finally {
+					// a Deflater passed to the constructor isn't released by close()
+					deflater.end();
+				}
+			}
+		};
+	}
+
+	@Override
+	public InputStream decompress(InputStream is) throws IOException {
+		return new InflaterInputStream(is);
+	}
+}
@@ -0,0 +1,74 @@
+package org.matheclipse.core.grpc.samples.server;
+
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.matheclipse.core.grpc.PBError;
+
+/**
+ * Logs failed evaluations with <code>java.util.logging</code>. At most a fixed number of errors is logged per second;
+ * the others are only counted and their number is appended to the next logged error, so a client which sends failing
+ * requests in a loop can't flood the log or slow down the server with stack trace printing.
+ */
+public class ErrorLog {
+
+	private static final Logger LOGGER = Logger.getLogger(SymjaServiceImpl.class.getName());
+
+	private static final long SECOND = TimeUnit.SECONDS.toNanos(1);
+
+	private final int fMaxPerSecond;
+
+	private final boolean fStackTraces;
+
+	private long fWindowStart = System.nanoTime();
+
+	private int fLogged = 0;
+
+	private int fSuppressed = 0;
+
+	/**
+	 *
+	 * @param maxPerSecond
+	 *            the maximum number of logged errors per second; <code>0</code> disables the logging
+	 * @param stackTraces
+	 *            log the stack traces of the exceptions
+	 */
+	public ErrorLog(int maxPerSecond, boolean stackTraces) {
+		fMaxPerSecond = maxPerSecond;
+		fStackTraces = stackTraces;
+	}
+
+	/**
+	 * Log a failed evaluation unless the rate limit is reached.
+	 *
+	 * @param error
+	 * @param t
+	 *            the cause of the error
+	 */
+	public void log(PBError error, Throwable t) {
+		if (fMaxPerSecond <= 0 || !LOGGER.isLoggable(Level.WARNING)) {
+			return;
+		}
+		int suppressed;
+		synchronized (this) {
+			long now = System.nanoTime();
+			if (now - fWindowStart >= SECOND) {
+				fWindowStart = now;
+				fLogged = 0;
+			}
+			if (fLogged >= fMaxPerSecond) {
+				fSuppressed++;
+				return;
+			}
+			fLogged++;
+			suppressed = fSuppressed;
+			fSuppressed = 0;
+		}
+		String msg = "evaluation failed: " + error.getCode() + " " + error.getMessage();
+		if (suppressed > 0) {
+			msg += " (" + suppressed + " more errors not logged)";
+		}
+		LOGGER.log(Level.WARNING, msg, fStackTraces ? t : null);
+	}
+}
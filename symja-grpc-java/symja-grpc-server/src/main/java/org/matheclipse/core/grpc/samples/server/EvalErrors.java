@@ -0,0 +1,180 @@
+package org.matheclipse.core.grpc.samples.server;
+
+import org.matheclipse.core.eval.exception.AbortException;
+import org.matheclipse.core.eval.exception.IterationLimitExceeded;
+import org.matheclipse.core.eval.exception.RecursionLimitExceeded;
+import org.matheclipse.core.grpc.PBError;
+import org.matheclipse.parser.client.SyntaxError;
+import org.matheclipse.parser.client.math.MathException;
+
+import io.grpc.Metadata;
+import io.grpc.Status;
+import io.grpc.StatusRuntimeException;
+import io.grpc.protobuf.ProtoUtils;
+
+/**
+ * Classifies failed evaluations and converts them into gRPC errors. The {@link PBError} is sent in the trailers of the
+ * error status, so clients can distinguish a syntax error from a timeout or an exhausted server without parsing the
+ * status description.
+ */
+public class EvalErrors {
+
+	/**
+	 * The trailer key of the {@link PBError} of a failed evaluation.
+	 */
+	public static final Metadata.Key<PBError> ERROR_KEY = ProtoUtils.keyForProto(PBError.getDefaultInstance());
+
+	/**
+	 * Maximum length of the message of a {@link PBError}.
+	 */
+	private static final int MAX_MESSAGE_LENGTH = 1024;
+
+	private EvalErrors() {
+	}
+
+	/**
+	 * Classify the exception or error thrown by an evaluation.
+	 *
+	 * @param t
+	 * @return
+	 */
+	public static PBError classify(Throwable t) {
+		return newError(code(t), t.getMessage(), t.getClass().getSimpleName());
+	}
+
+	private static PBError.Code code(Throwable t) {
+		if (t instanceof AbortException) {
+			return PBError.Code.ABORTED;
+		}
+		if (t instanceof SyntaxError) {
+			return PBError.Code.SYNTAX;
+		}
+		if (t instanceof RecursionLimitExceeded || t instanceof IterationLimitExceeded) {
+			return PBError.Code.LIMIT_EXCEEDED;
+		}
+		if (t instanceof MathException || t.getCause() instanceof MathException) {
+			return PBError.Code.MATH;
+		}
+		if (t instanceof OutOfMemoryError) {
+			return PBError.Code.OUT_OF_MEMORY;
+		}
+		if (t instanceof StackOverflowError) {
+			return PBError.Code.STACK_OVERFLOW;
+		}
+		return PBError.Code.INTERNAL;
+	}
+
+	/**
+	 *
+	 * @param code
+	 * @param message
+	 *            the message or <code>null</code>; long messages are truncated
+	 * @param exception
+	 *            the simple class name of the exception or <code>null</code>
+	 * @return
+	 */
+	public static PBError newError(PBError.Code code, String message, String exception) {
+		PBError.Builder error = PBError.newBuilder().setCode(code);
+		if (message != null) {
+			error.setMessage(
+					message.length() > MAX_MESSAGE_LENGTH ? message.substring(0, MAX_MESSAGE_LENGTH) : message);
+		}
+		if (exception != null) {
+			error.setException(exception);
+		}
+		return error.build();
+	}
+
+	/**
+	 * The error of a request which failed with a status without a {@link PBError}, for example because its deadline
+	 * expired before it was evaluated.
+	 *
+	 * @param status
+	 * @return
+	 */
+	public static PBError fromStatus(Status status) {
+		return newError(code(status.getCode()), status.getDescription(), null);
+	}
+
+	private static PBError.Code code(Status.Code code) {
+		switch (code) {
+		case INVALID_ARGUMENT:
+			return PBError.Code.SYNTAX;
+		case DEADLINE_EXCEEDED:
+			return PBError.Code.TIMEOUT;
+		case CANCELLED:
+			return PBError.Code.CANCELLED;
+		case RESOURCE_EXHAUSTED:
+		case UNAVAILABLE:
+			return PBError.Code.REJECTED;
+		default:
+			return PBError.Code.INTERNAL;
+		}
+	}
+
+	/**
+	 * The status of a gRPC call which failed with the error.
+	 *
+	 * @param code
+	 * @return
+	 */
+	public static Status status(PBError.Code code) {
+		switch (code) {
+		case SYNTAX:
+		case MATH:
+			return Status.INVALID_ARGUMENT;
+		case ABORTED:
+			return Status.ABORTED;
+		case TIMEOUT:
+			return Status.DEADLINE_EXCEEDED;
+		case CANCELLED:
+			return Status.CANCELLED;
+		case LIMIT_EXCEEDED:
+		case OUT_OF_MEMORY:
+		case STACK_OVERFLOW:
+		case REJECTED:
+			return Status.RESOURCE_EXHAUSTED;
+		default:
+			return Status.INTERNAL;
+		}
+	}
+
+	/**
+	 * Convert the error into an exception whose status matches the error code and whose trailers contain the error.
+	 *
+	 * @param error
+	 * @return
+	 */
+	public static StatusRuntimeException asException(PBError error) {
+		Metadata trailers = new Metadata();
+		trailers.put(ERROR_KEY, error);
+		Status status = status(error.getCode());
+		if (!error.getMessage().isEmpty()) {
+			status = status.withDescription(error.getMessage());
+		}
+		return status.asRuntimeException(trailers);
+	}
+
+	/**
+	 * Create the exception of a failed evaluation.
+	 *
+	 * @param code
+	 * @param message
+	 * @return
+	 */
+	public static StatusRuntimeException asException(PBError.Code code, String message) {
+		return asException(newError(code, message, null));
+	}
+
+	/**
+	 * The error of a failed gRPC call.
+	 *
+	 * @param t
+	 *            the exception of the failed call
+	 * @return the error from the trailers or <code>null</code> if the call didn't fail because of a failed evaluation
+	 */
+	public static PBError errorOf(Throwable t) {
+		Metadata trailers = Status.trailersFromThrowable(t);
+		return trailers == null ? null : trailers.get(ERROR_KEY);
+	}
+}
@@ -0,0 +1,174 @@
+package org.matheclipse.core.grpc.samples.server;
+
+import java.util.Locale;
+
+import org.matheclipse.core.grpc.PBError;
+import org.matheclipse.core.interfaces.IAST;
+import org.matheclipse.core.interfaces.IBuiltInSymbol;
+import org.matheclipse.core.interfaces.IExpr;
+import org.matheclipse.core.interfaces.ISymbol;
+
+/**
+ * The metrics of the evaluation path of <code>SymjaServiceImpl</code>. Requests are counted by head and outcome, the
+ * decode, evaluation and encode phases are recorded in latency histograms by head.
+ */
+public class EvalMetrics {
+
+	public static final String OK = "ok";
+
+	public static final String ABORTED = "aborted";
+
+	public static final String ERROR = "error";
+
+	public static final String DECODE = "decode";
+
+	public static final String EVAL = "eval";
+
+	public static final String ENCODE = "encode";
+
+	/**
+	 * Head tag of a request which couldn't be decoded.
+	 */
+	public static final String UNKNOWN = "unknown";
+
+	static final String REQUESTS = "symja_eval_requests_total";
+
+	static final String PHASE = "symja_eval_phase_seconds";
+
+	private final MetricsRegistry fRegistry;
+
+	/**
+	 *
+	 * @param registry
+	 *            the registry which receives the measurements
+	 * @param pool
+	 *            the evaluator pool whose usage is exported as gauges
+	 * @param cache
+	 *            the result cache whose statistics are exported as gauges or <code>null</code>
+	 */
+	public EvalMetrics(MetricsRegistry registry, final EvaluatorPool pool, final ResultCache cache) {
+		fRegistry = registry;
+		registry.registerGauge("symja_evaluator_pool_size", "Number of pooled evaluators", () -> pool.size());
+		registry.registerGauge("symja_evaluator_pool_available", "Number of idle pooled evaluators",
+				() -> pool.available());
+		if (cache != null) {
+			registry.registerGauge("symja_cache_hits", "Number of result cache hits", () -> cache.hitCount());
+			registry.registerGauge("symja_cache_misses", "Number of result cache misses", () -> cache.missCount());
+			registry.registerGauge("symja_cache_evictions", "Number of evicted result cache entries",
+					() -> cache.evictionCount());
+			registry.registerGauge("symja_cache_uncacheable", "Number of requests which bypassed the result cache",
+					() -> cache.uncacheableCount());
+			registry.registerGauge("symja_cache_entries", "Number of result cache entries", () -> cache.size());
+			registry.registerGauge("symja_cache_bytes", "Serialized size of the result cache entries",
+					() -> cache.weight());
+		}
+	}
+
+	/**
+	 * Export the number of running and waiting evaluations as gauges, in total and per tenant. The gauges of a tenant
+	 * are removed when the admission control forgets it, so a client which sends ever new tenant ids doesn't grow the
+	 * registry.
+	 *
+	 * @param admission
+	 */
+	public void registerAdmission(final AdmissionControl admission) {
+		fRegistry.registerGauge("symja_eval_in_flight", "Number of running evaluations", () -> admission.inFlight());
+		fRegistry.registerGauge("symja_eval_queued", "Number of evaluations waiting for a free slot",
+				() -> admission.queued());
+		admission.setTenantListener(new AdmissionControl.TenantListener() {
+			@Override
+			public void added(AdmissionControl.Tenant tenant) {
+				fRegistry.registerGauge("symja_tenant_in_flight", "Number of running evaluations of a tenant",
+						() -> tenant.inFlight(), "tenant", tenant.getId());
+				fRegistry.registerGauge("symja_tenant_queued",
+						"Number of evaluations of a tenant waiting for a free slot", () -> tenant.queued(), "tenant",
+						tenant.getId());
+			}
+
+			@Override
+			public void removed(AdmissionControl.Tenant tenant) {
+				fRegistry.unregisterGauge("symja_tenant_in_flight", "tenant", tenant.getId());
+				fRegistry.unregisterGauge("symja_tenant_queued", "tenant", tenant.getId());
+			}
+		});
+	}
+
+	/**
+	 * Export the number of open and evicted sessions as gauges.
+	 *
+	 * @param sessions
+	 */
+	public void registerSessions(final SessionManager sessions) {
+		fRegistry.registerGauge("symja_sessions_open", "Number of open sessions", () -> sessions.size());
+		fRegistry.registerGauge("symja_sessions_opened", "Number of opened sessions", () -> sessions.openedCount());
+		fRegistry.registerGauge("symja_sessions_evicted", "Number of sessions closed after the idle timeout",
+				() -> sessions.evictedCount());
+	}
+
+	/**
+	 * Count an evaluation which was rejected because the server is saturated.
+	 */
+	public void countRejected() {
+		fRegistry.incrementCounter("symja_eval_rejected_total", "Number of evaluations rejected by load shedding");
+	}
+
+	/**
+	 * Count a failed evaluation by its error code.
+	 *
+	 * @param code
+	 */
+	public void countError(PBError.Code code) {
+		fRegistry.incrementCounter("symja_eval_errors_total", "Number of failed evaluations", "code",
+				code.name().toLowerCase(Locale.US));
+	}
+
+	public MetricsRegistry getRegistry() {
+		return fRegistry;
+	}
+
+	/**
+	 * Count a finished request.
+	 *
+	 * @param head
+	 *            the head tag from {@link #headTag(IExpr)}
+	 * @param outcome
+	 *            one of {@link #OK}, {@link #ABORTED}, {@link #ERROR}
+	 */
+	public void countRequest(String head, String outcome) {
+		fRegistry.incrementCounter(REQUESTS, "Number of evaluated requests", "head", head, "outcome", outcome);
+	}
+
+	/**
+	 * Record the duration of one phase of a request.
+	 *
+	 * @param phase
+	 *            one of {@link #DECODE}, {@link #EVAL}, {@link #ENCODE}
+	 * @param head
+	 *            the head tag from {@link #headTag(IExpr)}
+	 * @param nanos
+	 */
+	public void recordPhase(String phase, String head, long nanos) {
+		fRegistry.recordNanos(PHASE, "Duration of the evaluation phases", nanos, "phase", phase, "head", head);
+	}
+
+	/**
+	 * The tag of a request: the name of the built-in head symbol, <code>user</code> for user defined functions,
+	 * <code>atom</code> for requests which are not an AST.
+	 *
+	 * @param expr
+	 * @return
+	 */
+	public static String headTag(IExpr expr) {
+		if (expr instanceof IAST) {
+			IExpr head = expr.head();
+			if (head instanceof IBuiltInSymbol) {
+				return ((IBuiltInSymbol) head).getSymbolName();
+			}
+			if (head instanceof ISymbol) {
+				return "user";
+			}
+			return "other";
+		}
+		return expr == null ? UNKNOWN : "atom";
+	}
+}
@@ -0,0 +1,330 @@
+package org.matheclipse.core.grpc.samples.server;
+
+import java.util.ArrayDeque;
+
+import org.matheclipse.core.eval.EvalEngine;
+import org.matheclipse.core.grpc.PBError;
+import org.matheclipse.core.interfaces.IAST;
+import org.matheclipse.core.interfaces.IExpr;
+
+import io.grpc.Context;
+import io.grpc.Contexts;
+import io.grpc.ForwardingServerCall;
+import io.grpc.Metadata;
+import io.grpc.ServerCall;
+import io.grpc.ServerCallHandler;
+import io.grpc.ServerInterceptor;
+import io.grpc.Status;
+
+/**
+ * The resource limits of one evaluation. A client requests limits in the metadata of a call; they are restricted to the
+ * limits of the server, so a client can only lower them. The iteration and recursion limits and the time limit are
+ * enforced cooperatively by the engine during the evaluation. The leaf count of the request is checked before the
+ * evaluation; the leaf count of the result is only checked after the evaluation, so it limits the size of the
+ * response, not the memory used while evaluating. An exceeded limit fails only its own call with status
+ * <code>RESOURCE_EXHAUSTED</code> and a {@link PBError} with code <code>LIMIT_EXCEEDED</code>. The effective limits
+ * are sent back in the response headers.
+ * <p>
+ * A limit of <code>0</code> means no limit. The server resolves its iteration and recursion limits of <code>0</code>
+ * to the limits of its engines (see {@link #engineLimit(int, int)}), so a client can't raise them above the engine
+ * defaults either.
+ */
+public final class EvalQuota {
+
+	public static final Metadata.Key<String> MAX_ITERATIONS_KEY = Metadata.Key.of("symja-max-iterations",
+			Metadata.ASCII_STRING_MARSHALLER);
+
+	public static final Metadata.Key<String> MAX_RECURSION_KEY = Metadata.Key.of("symja-max-recursion",
+			Metadata.ASCII_STRING_MARSHALLER);
+
+	public static final Metadata.Key<String> MAX_LEAVES_KEY = Metadata.Key.of("symja-max-leaves",
+			Metadata.ASCII_STRING_MARSHALLER);
+
+	public static final Metadata.Key<String> MAX_RESULT_LEAVES_KEY = Metadata.Key.of("symja-max-result-leaves",
+			Metadata.ASCII_STRING_MARSHALLER);
+
+	public static final Metadata.Key<String> MAX_TIME_KEY = Metadata.Key.of("symja-max-time-ms",
+			Metadata.ASCII_STRING_MARSHALLER);
+
+	public static final EvalQuota UNLIMITED = new EvalQuota(0, 0, 0L, 0L, 0L);
+
+	private static final Context.Key<EvalQuota> QUOTA = Context.key("symja-quota");
+
+	private final int fIterationLimit;
+
+	private final int fRecursionLimit;
+
+	/**
+	 * Maximum leaf count of a request.
+	 */
+	private final long fMaxLeaves;
+
+	/**
+	 * Maximum leaf count of a result, checked after the evaluation.
+	 */
+	private final long fMaxResultLeaves;
+
+	/**
+	 * Maximum evaluation time in milliseconds.
+	 */
+	private final long fTimeMillis;
+
+	/**
+	 *
+	 * @param iterationLimit
+	 *            the iteration limit of the engine
+	 * @param recursionLimit
+	 *            the recursion limit of the engine
+	 * @param maxLeaves
+	 *            the maximum leaf count of a request
+	 * @param maxResultLeaves
+	 *            the maximum leaf count of a result, which only limits the size of the response
+	 * @param timeMillis
+	 *            the maximum evaluation time in milliseconds
+	 * @throws IllegalArgumentException
+	 *             if a limit is negative
+	 */
+	public EvalQuota(int iterationLimit, int recursionLimit, long maxLeaves, long maxResultLeaves, long timeMillis) {
+		if (iterationLimit < 0 || recursionLimit < 0 || maxLeaves < 0 || maxResultLeaves < 0 || timeMillis < 0) {
+			throw new IllegalArgumentException("Negative evaluation limit");
+		}
+		fIterationLimit = iterationLimit;
+		fRecursionLimit = recursionLimit;
+		fMaxLeaves = maxLeaves;
+		fMaxResultLeaves = maxResultLeaves;
+		fTimeMillis = timeMillis;
+	}
+
+	/**
+	 * The limits requested in the metadata of a call.
+	 *
+	 * @param headers
+	 * @return <code>null</code> if the metadata doesn't contain limits
+	 * @throws IllegalArgumentException
+	 *             if a limit isn't a non-negative number
+	 */
+	public static EvalQuota of(Metadata headers) {
+		if (!headers.containsKey(MAX_ITERATIONS_KEY) && !headers.containsKey(MAX_RECURSION_KEY)
+				&& !headers.containsKey(MAX_LEAVES_KEY) && !headers.containsKey(MAX_RESULT_LEAVES_KEY)
+				&& !headers.containsKey(MAX_TIME_KEY)) {
+			return null;
+		}
+		return new EvalQuota((int) Math.min(value(headers, MAX_ITERATIONS_KEY), Integer.MAX_VALUE),
+				(int) Math.min(value(headers, MAX_RECURSION_KEY), Integer.MAX_VALUE), value(headers, MAX_LEAVES_KEY),
+				value(headers, MAX_RESULT_LEAVES_KEY), value(headers, MAX_TIME_KEY));
+	}
+
+	private static long value(Metadata headers, Metadata.Key<String> key) {
+		String value = headers.get(key);
+		if (value == null) {
+			return 0L;
+		}
+		try {
+			long result = Long.parseLong(value.trim());
+			if (result >= 0) {
+				return result;
+			}
+		} catch (NumberFormatException nfe) {
+			// reported below
+		}
+		throw new IllegalArgumentException("Invalid " + key.name() + " value: " + value);
+	}
+
+	/**
+	 * Write the limits into metadata, so that a client can request them for its calls, for example with
+	 * <code>MetadataUtils.newAttachHeadersInterceptor()</code>. Limits of <code>0</code> are omitted.
+	 *
+	 * @param headers
+	 */
+	public void writeTo(Metadata headers) {
+		put(headers, MAX_ITERATIONS_KEY, fIterationLimit);
+		put(headers, MAX_RECURSION_KEY, fRecursionLimit);
+		put(headers, MAX_LEAVES_KEY, fMaxLeaves);
+		put(headers, MAX_RESULT_LEAVES_KEY, fMaxResultLeaves);
+		put(headers, MAX_TIME_KEY, fTimeMillis);
+	}
+
+	private static void put(Metadata headers, Metadata.Key<String> key, long value) {
+		if (value > 0) {
+			headers.put(key, Long.toString(value));
+		}
+	}
+
+	/**
+	 * Restrict these limits by the requested limits.
+	 *
+	 * @param requested
+	 * @return the smaller of both limits for every resource
+	 */
+	public EvalQuota restrict(EvalQuota requested) {
+		return new EvalQuota((int) min(fIterationLimit, requested.fIterationLimit),
+				(int) min(fRecursionLimit, requested.fRecursionLimit), min(fMaxLeaves, requested.fMaxLeaves),
+				min(fMaxResultLeaves, requested.fMaxResultLeaves), min(fTimeMillis, requested.fTimeMillis));
+	}
+
+	/**
+	 * Resolve a configured iteration or recursion limit against the limit of the engine.
+	 *
+	 * @param limit
+	 *            the configured limit, <code>0</code> for the engines limit
+	 * @param engineLimit
+	 *            the limit of the engine before a call changes it, <code>0</code> or negative for no limit
+	 * @return the configured limit or, if it is <code>0</code>, the engines limit; <code>0</code> if neither is set
+	 */
+	public static int engineLimit(int limit, int engineLimit) {
+		if (limit > 0) {
+			return limit;
+		}
+		return engineLimit > 0 ? engineLimit : 0;
+	}
+
+	/**
+	 * The minimum of two limits where <code>0</code> means no limit.
+	 */
+	private static long min(long limit, long other) {
+		if (limit == 0) {
+			return other;
+		}
+		return other == 0 ? limit : Math.min(limit, other);
+	}
+
+	/**
+	 * An interceptor which makes the limits requested by the client, restricted to these server limits, available to
+	 * {@link #forCall(Context)} and sends the effective limits back in the response headers. A call with invalid limits is
+	 * closed with status <code>INVALID_ARGUMENT</code>.
+	 *
+	 * @return
+	 */
+	public ServerInterceptor interceptor() {
+		return new ServerInterceptor() {
+			@Override
+			public <ReqT, RespT> ServerCall.Listener<ReqT> interceptCall(ServerCall<ReqT, RespT> call,
+					Metadata headers, ServerCallHandler<ReqT, RespT> next) {
+				EvalQuota requested;
+				try {
+					requested = of(headers);
+				} catch (IllegalArgumentException iae) {
+					call.close(Status.INVALID_ARGUMENT.withDescription(iae.getMessage()), new Metadata());
+					return new ServerCall.Listener<ReqT>() {
+					};
+				}
+				if (requested == null) {
+					return next.startCall(call, headers);
+				}
+				final EvalQuota quota = restrict(requested);
+				ServerCall<ReqT, RespT> reporting = new ForwardingServerCall.SimpleForwardingServerCall<ReqT, RespT>(
+						call) {
+					@Override
+					public void sendHeaders(Metadata responseHeaders) {
+						quota.writeTo(responseHeaders);
+						super.sendHeaders(responseHeaders);
+					}
+				};
+				return Contexts.interceptCall(Context.current().withValue(QUOTA, quota), reporting, headers, next);
+			}
+		};
+	}
+
+	/**
+	 * The limits of a call.
+	 *
+	 * @param callContext
+	 *            the context of the call or a context derived from it
+	 * @return the limits requested by the client or these server limits if the client didn't request limits
+	 */
+	EvalQuota forCall(Context callContext) {
+		EvalQuota quota = QUOTA.get(callContext);
+		return quota != null ? quota : this;
+	}
+
+	/**
+	 * Set the iteration and recursion limits of the engine. The caller restores the previous limits after the
+	 * evaluation.
+	 *
+	 * @param engine
+	 */
+	void apply(EvalEngine engine) {
+		if (fIterationLimit > 0) {
+			engine.setIterationLimit(fIterationLimit);
+		}
+		if (fRecursionLimit > 0) {
+			engine.setRecursionLimit(fRecursionLimit);
+		}
+	}
+
+	/**
+	 * Reject a request which is larger than the maximum leaf count before it is evaluated.
+	 *
+	 * @param request
+	 * @throws io.grpc.StatusRuntimeException
+	 *             with a {@link PBError} with code <code>LIMIT_EXCEEDED</code>
+	 */
+	void checkRequest(IExpr request) {
+		if (fMaxLeaves > 0 && leafCount(request, fMaxLeaves) > fMaxLeaves) {
+			throw EvalErrors.asException(PBError.Code.LIMIT_EXCEEDED,
+					"request has more than " + fMaxLeaves + " leaves");
+		}
+	}
+
+	/**
+	 * Reject a result which is larger than the maximum result leaf count before it is encoded. The result is only
+	 * checked after the evaluation finished, so this limits the size of the response; an evaluation which builds a
+	 * large intermediate or final expression is stopped by the iteration, recursion and time limits only.
+	 *
+	 * @param result
+	 * @throws io.grpc.StatusRuntimeException
+	 *             with a {@link PBError} with code <code>LIMIT_EXCEEDED</code>
+	 */
+	void checkResult(IExpr result) {
+		if (fMaxResultLeaves > 0 && leafCount(result, fMaxResultLeaves) > fMaxResultLeaves) {
+			throw EvalErrors.asException(PBError.Code.LIMIT_EXCEEDED,
+					"result has more than " + fMaxResultLeaves + " leaves");
+		}
+	}
+
+	/**
+	 * Count the leaves of an expression with an explicit stack, so that a deep expression doesn't overflow the Java
+	 * stack like the recursive <code>IExpr.leafCount()</code>. The count stops as soon as it exceeds the limit.
+	 *
+	 * @param x
+	 * @param limit
+	 * @return the number of leaves or a number greater than <code>limit</code>
+	 */
+	static long leafCount(IExpr x, long limit) {
+		long leaves = 0;
+		ArrayDeque<IExpr> stack = new ArrayDeque<IExpr>();
+		stack.push(x);
+		while (!stack.isEmpty() && leaves <= limit) {
+			IExpr expr = stack.pop();
+			if (expr instanceof IAST) {
+				IAST ast = (IAST) expr;
+				for (int i = ast.size() - 1; i >= 0; i--) {
+					stack.push(ast.get(i));
+				}
+			} else {
+				leaves += expr.leafCount();
+			}
+		}
+		return leaves;
+	}
+
+	public int getIterationLimit() {
+		return fIterationLimit;
+	}
+
+	public int getRecursionLimit() {
+		return fRecursionLimit;
+	}
+
+	public long getMaxLeaves() {
+		return fMaxLeaves;
+	}
+
+	public long getMaxResultLeaves() {
+		return fMaxResultLeaves;
+	}
+
+	public long getTimeMillis() {
+		return fTimeMillis;
+	}
+}
@@ -0,0 +1,168 @@
+package org.matheclipse.core.grpc.samples.server;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.matheclipse.core.eval.EvalEngine;
+import org.matheclipse.core.eval.ExprEvaluator;
+import org.matheclipse.core.expression.F;
+import org.matheclipse.core.interfaces.IExpr;
+
+/**
+ * A bounded pool of isolated <code>ExprEvaluator</code> instances. Every evaluator owns its own <code>EvalEngine</code>,
+ * so concurrent gRPC calls never share evaluation state. An evaluator is checked out for exactly one call and reset
+ * before it is handed to the next caller.
+ */
+public class EvaluatorPool {
+
+	/**
+	 * Expressions which are evaluated once on every evaluator at startup, so that the first real requests don't pay for
+	 * class loading and rule initialization.
+	 */
+	private static final IExpr[] WARM_UP = new IExpr[] { //
+			F.D(F.Sin(F.Times(F.x, F.x)), F.x), //
+			F.Expand(F.Power(F.Plus(F.x, F.y, F.C1), F.C3)), //
+			F.Factor(F.Plus(F.Power(F.x, F.C2), F.CN1)), //
+			F.Simplify(F.Plus(F.Power(F.Sin(F.x), F.C2), F.Power(F.Cos(F.x), F.C2))) };
+
+	private final BlockingQueue<ExprEvaluator> fIdle;
+
+	private final int fSize;
+
+	private final int fIterationLimit;
+
+	private final int fRecursionLimit;
+
+	/**
+	 * Create a pool with <code>size</code> evaluators.
+	 *
+	 * @param size
+	 *            the maximum number of evaluations which can run at the same time
+	 */
+	public EvaluatorPool(int size) {
+		if (size < 1) {
+			throw new IllegalArgumentException("Evaluator pool size must be positive: " + size);
+		}
+		fSize = size;
+		fIdle = new ArrayBlockingQueue<ExprEvaluator>(size);
+		for (int i = 0; i < size; i++) {
+			fIdle.add(createEvaluator());
+		}
+		EvalEngine engine = fIdle.peek().getEvalEngine();
+		fIterationLimit = engine.getIterationLimit();
+		fRecursionLimit = engine.getRecursionLimit();
+	}
+
+	/**
+	 * Create a new evaluator. The history (<code>Out[]</code> list) is disabled, because it would leak results between
+	 * unrelated calls.
+	 *
+	 * @return
+	 */
+	protected ExprEvaluator createEvaluator() {
+		return new ExprEvaluator(true, 0);
+	}
+
+	/**
+	 * Evaluate the warm-up expressions once on every evaluator of this pool. The first evaluator runs alone, because it
+	 * initializes the rules which all engines share; the other evaluators are warmed up in parallel.
+	 */
+	public void warmUp() {
+		List<ExprEvaluator> evaluators = new ArrayList<ExprEvaluator>(fSize);
+		ExecutorService executor = null;
+		try {
+			for (int i = 0; i < fSize; i++) {
+				evaluators.add(fIdle.take());
+			}
+			warmUp(evaluators.get(0));
+			if (fSize > 1) {
+				// short-lived threads, so no thread keeps a reference to a pooled engine
+				executor = Executors.newFixedThreadPool(fSize - 1);
+				List<Callable<Object>> tasks = new ArrayList<Callable<Object>>(fSize - 1);
+				for (final ExprEvaluator evaluator : evaluators.subList(1, fSize)) {
+					tasks.add(Executors.callable(() -> warmUp(evaluator)));
+				}
+				executor.invokeAll(tasks);
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} finally {
+			if (executor != null) {
+				executor.shutdownNow();
+			}
+			for (ExprEvaluator evaluator : evaluators) {
+				release(evaluator);
+			}
+		}
+	}
+
+	private static void warmUp(ExprEvaluator evaluator) {
+		EvalEngine.set(evaluator.getEvalEngine());
+		for (IExpr expr : WARM_UP) {
+			try {
+				evaluator.eval(expr);
+			} catch (RuntimeException rex) {
+				// warm-up is best effort only
+			}
+		}
+	}
+
+	/**
+	 * Take an idle evaluator from the pool and bind its engine to the current thread. Waits until an evaluator is
+	 * available.
+	 *
+	 * @return the evaluator which must be given back with {@link #release(ExprEvaluator)}
+	 * @throws InterruptedException
+	 */
+	public ExprEvaluator checkout() throws InterruptedException {
+		ExprEvaluator evaluator = fIdle.take();
+		EvalEngine.set(evaluator.getEvalEngine());
+		return evaluator;
+	}
+
+	/**
+	 * Reset the evaluators engine and give it back to the pool.
+	 *
+	 * @param evaluator
+	 *            an evaluator returned from {@link #checkout()}
+	 */
+	public void release(ExprEvaluator evaluator) {
+		evaluator.getEvalEngine().reset();
+		fIdle.offer(evaluator);
+	}
+
+	/**
+	 * @return the number of evaluators which are currently not checked out
+	 */
+	public int available() {
+		return fIdle.size();
+	}
+
+	/**
+	 * @return the total number of evaluators in this pool
+	 */
+	public int size() {
+		return fSize;
+	}
+
+	/**
+	 * @return the iteration limit of the engines of this pool before a call changes it; <code>0</code> or negative
+	 *         for no limit
+	 */
+	public int getIterationLimit() {
+		return fIterationLimit;
+	}
+
+	/**
+	 * @return the recursion limit of the engines of this pool before a call changes it; <code>0</code> or negative
+	 *         for no limit
+	 */
+	public int getRecursionLimit() {
+		return fRecursionLimit;
+	}
+}
@@ -0,0 +1,105 @@
+package org.matheclipse.core.grpc.samples.server;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A lock-free histogram of durations with logarithmic buckets. Every power of two nanoseconds between about 1
+ * microsecond and about 2.4 hours is divided into {@link #SUB_BUCKETS} linear sub-buckets, so recorded values keep a
+ * relative precision of 25%.
+ */
+public class LatencyHistogram {
+
+	/**
+	 * Number of linear sub-buckets per power of two.
+	 */
+	static final int SUB_BUCKETS = 4;
+
+	private static final int POWERS = 33;
+
+	/**
+	 * Durations below <code>2^MIN_POWER</code> nanoseconds are counted in the first bucket.
+	 */
+	private static final int MIN_POWER = 10;
+
+	private final AtomicLongArray fCounts = new AtomicLongArray(POWERS * SUB_BUCKETS);
+
+	private final LongAdder fCount = new LongAdder();
+
+	private final LongAdder fSumNanos = new LongAdder();
+
+	public void record(long nanos) {
+		fCounts.incrementAndGet(bucket(nanos));
+		fCount.increment();
+		fSumNanos.add(nanos);
+	}
+
+	/**
+	 *
+	 * @param nanos
+	 * @return the index of the bucket which contains the duration
+	 */
+	static int bucket(long nanos) {
+		if (nanos < (1L << MIN_POWER)) {
+			return 0;
+		}
+		int power = 63 - Long.numberOfLeadingZeros(nanos);
+		if (power >= MIN_POWER + POWERS) {
+			return POWERS * SUB_BUCKETS - 1;
+		}
+		// the two bits below the leading one bit select the linear sub-bucket
+		int sub = (int) ((nanos >>> (power - 2)) & (SUB_BUCKETS - 1));
+		return (power - MIN_POWER) * SUB_BUCKETS + sub;
+	}
+
+	/**
+	 *
+	 * @param bucket
+	 * @return the exclusive upper bound of the bucket in nanoseconds
+	 */
+	static long upperBoundNanos(int bucket) {
+		int power = MIN_POWER + bucket / SUB_BUCKETS;
+		int sub = bucket % SUB_BUCKETS;
+		long base = 1L << power;
+		return base + (base / SUB_BUCKETS) * (sub + 1);
+	}
+
+	public int bucketCount() {
+		return fCounts.length();
+	}
+
+	public long bucketValue(int bucket) {
+		return fCounts.get(bucket);
+	}
+
+	public long count() {
+		return fCount.sum();
+	}
+
+	public long sumNanos() {
+		return fSumNanos.sum();
+	}
+
+	/**
+	 * Estimate a percentile from the bucket counts.
+	 *
+	 * @param percentile
+	 *            a value between <code>0.0</code> and <code>100.0</code>
+	 * @return the upper bound in nanoseconds of the bucket which contains the percentile
+	 */
+	public long valueAtPercentile(double percentile) {
+		long total = count();
+		if (total == 0) {
+			return 0L;
+		}
+		long rank = (long) Math.ceil(total * percentile / 100.0);
+		long seen = 0;
+		for (int i = 0; i < fCounts.length(); i++) {
+			seen += fCounts.get(i);
+			if (seen >= rank) {
+				return upperBoundNanos(i);
+			}
+		}
+		return upperBoundNanos(fCounts.length() - 1);
+	}
+}
@@ -0,0 +1,56 @@
+package org.matheclipse.core.grpc.samples.server;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.StringWriter;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * A minimal HTTP endpoint which serves the metrics of a <code>MetricsRegistry</code> as plain text at
+ * <code>/metrics</code>.
+ */
+public class MetricsHttpServer {
+
+	private final HttpServer fServer;
+
+	/**
+	 *
+	 * @param port
+	 *            the HTTP port
+	 * @param registry
+	 *            the registry which is scraped
+	 * @throws IOException
+	 */
+	public MetricsHttpServer(int port, final MetricsRegistry registry) throws IOException {
+		fServer = HttpServer.create(new InetSocketAddress(port), 0);
+		fServer.createContext("/metrics", new HttpHandler() {
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+				StringWriter buf = new StringWriter();
+				registry.writeText(buf);
+				byte[] body = buf.toString().getBytes(StandardCharsets.UTF_8);
+				exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+				exchange.sendResponseHeaders(200, body.length);
+				OutputStream out = exchange.getResponseBody();
+				try {
+					out.write(body);
+				} finally {
+					out.close();
+				}
+			}
+		});
+	}
+
+	public void start() {
+		fServer.start();
+	}
+
+	public void stop() {
+		fServer.stop(0);
+	}
+}
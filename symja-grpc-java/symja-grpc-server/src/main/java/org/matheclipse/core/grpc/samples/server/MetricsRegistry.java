@@ -0,0 +1,70 @@
+package org.matheclipse.core.grpc.samples.server;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.function.DoubleSupplier;
+
+/**
+ * Collects the counters, latency histograms and gauges of the server. Labels are given as alternating name and value
+ * strings. Implement this interface to forward the measurements to another monitoring system.
+ */
+public interface MetricsRegistry {
+
+	/**
+	 * Increment a counter by one.
+	 *
+	 * @param name
+	 *            the metric name
+	 * @param help
+	 *            the description of the metric
+	 * @param labels
+	 *            alternating label names and values
+	 */
+	void incrementCounter(String name, String help, String... labels);
+
+	/**
+	 * Record a duration in a latency histogram.
+	 *
+	 * @param name
+	 *            the metric name
+	 * @param help
+	 *            the description of the metric
+	 * @param nanos
+	 *            the duration in nanoseconds
+	 * @param labels
+	 *            alternating label names and values
+	 */
+	void recordNanos(String name, String help, long nanos, String... labels);
+
+	/**
+	 * Register a gauge whose value is read from the supplier at scrape time.
+	 *
+	 * @param name
+	 *            the metric name
+	 * @param help
+	 *            the description of the metric
+	 * @param supplier
+	 *            supplies the current value
+	 * @param labels
+	 *            alternating label names and values
+	 */
+	void registerGauge(String name, String help, DoubleSupplier supplier, String... labels);
+
+	/**
+	 * Remove a gauge, so that it isn't written anymore and its supplier can be collected.
+	 *
+	 * @param name
+	 *            the metric name
+	 * @param labels
+	 *            alternating label names and values of the registered gauge
+	 */
+	void unregisterGauge(String name, String... labels);
+
+	/**
+	 * Write all metrics in the Prometheus text exposition format.
+	 *
+	 * @param out
+	 * @throws IOException
+	 */
+	void writeText(Writer out) throws IOException;
+}
@@ -0,0 +1,173 @@
+package org.matheclipse.core.grpc.samples.server;
+
+import com.google.protobuf.MessageLite;
+
+import io.grpc.Codec;
+import io.grpc.CompressorRegistry;
+import io.grpc.Context;
+import io.grpc.Contexts;
+import io.grpc.DecompressorRegistry;
+import io.grpc.Metadata;
+import io.grpc.ServerCall;
+import io.grpc.ServerCallHandler;
+import io.grpc.ServerInterceptor;
+import io.grpc.stub.ServerCallStreamObserver;
+import io.grpc.stub.StreamObserver;
+
+/**
+ * Compresses responses whose serialized size reaches a threshold. Small responses are sent uncompressed, so they don't
+ * pay any CPU time for compression. The preferred codec is used if the client accepts it, otherwise
+ * <code>gzip</code>; if the client accepts neither, gRPC sends the response uncompressed.
+ * <p>
+ * Server and client must use the registries of {@link #compressors()} and {@link #decompressors()}, so that both know
+ * the {@link DeflateCodec}.
+ */
+public class ResponseCompression {
+
+	public static final String GZIP = "gzip";
+
+	private static final Metadata.Key<String> ACCEPT_ENCODING_KEY = Metadata.Key.of("grpc-accept-encoding",
+			Metadata.ASCII_STRING_MARSHALLER);
+
+	private static final Context.Key<String> ACCEPT_ENCODING = Context.key("symja-accept-encoding");
+
+	private final long fThreshold;
+
+	private final String fCodec;
+
+	/**
+	 *
+	 * @param threshold
+	 *            the minimum serialized size of a compressed response in bytes; <code>0</code> disables compression
+	 * @param codec
+	 *            the preferred codec, <code>deflate</code> or <code>gzip</code>
+	 * @throws IllegalArgumentException
+	 *             if the codec is unknown
+	 */
+	public ResponseCompression(long threshold, String codec) {
+		if (!codec.equals(DeflateCodec.NAME) && !codec.equals(GZIP)) {
+			throw new IllegalArgumentException("Unknown compression codec: " + codec);
+		}
+		fThreshold = threshold;
+		fCodec = codec;
+	}
+
+	/**
+	 * @return a registry with the <code>identity</code>, <code>gzip</code> and <code>deflate</code> compressors
+	 */
+	public static CompressorRegistry compressors() {
+		CompressorRegistry registry = CompressorRegistry.newEmptyInstance();
+		registry.register(Codec.Identity.NONE);
+		registry.register(new Codec.Gzip());
+		registry.register(DeflateCodec.INSTANCE);
+		return registry;
+	}
+
+	/**
+	 * @return the default decompressors and the advertised <code>deflate</code> decompressor
+	 */
+	public static DecompressorRegistry decompressors() {
+		return DecompressorRegistry.getDefaultInstance().with(DeflateCodec.INSTANCE, true);
+	}
+
+	public boolean isEnabled() {
+		return fThreshold > 0;
+	}
+
+	/**
+	 * An interceptor which makes the encodings accepted by the client available to {@link #select()}.
+	 *
+	 * @return
+	 */
+	public ServerInterceptor interceptor() {
+		return new ServerInterceptor() {
+			@Override
+			public <ReqT, RespT> ServerCall.Listener<ReqT> interceptCall(ServerCall<ReqT, RespT> call,
+					Metadata headers, ServerCallHandler<ReqT, RespT> next) {
+				String accepted = headers.get(ACCEPT_ENCODING_KEY);
+				if (accepted == null) {
+					return next.startCall(call, headers);
+				}
+				return Contexts.interceptCall(Context.current().withValue(ACCEPT_ENCODING, accepted), call, headers,
+						next);
+			}
+		};
+	}
+
+	/**
+	 * Select the codec for the current call.
+	 *
+	 * @return <code>null</code> if the client accepts none of the codecs
+	 */
+	String select() {
+		String accepted = ACCEPT_ENCODING.get();
+		if (accepted == null || accepts(accepted, fCodec)) {
+			return fCodec;
+		}
+		return accepts(accepted, GZIP) ? GZIP : null;
+	}
+
+	private static boolean accepts(String accepted, String codec) {
+		for (String encoding : accepted.split(",")) {
+			if (encoding.trim().equals(codec)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Send the single response of a unary call, compressed if it is large enough.
+	 *
+	 * @param observer
+	 * @param response
+	 */
+	public <R extends MessageLite> void sendUnary(StreamObserver<R> observer, R response) {
+		sendUnary(observer, response, response.getSerializedSize());
+	}
+
+	/**
+	 * Send the single response of a unary call which isn't a generated message, compressed if it is large enough.
+	 *
+	 * @param observer
+	 * @param response
+	 * @param serializedSize
+	 *            the size of the serialized response in bytes
+	 */
+	public <R> void sendUnary(StreamObserver<R> observer, R response, int serializedSize) {
+		if (isEnabled() && serializedSize >= fThreshold) {
+			String codec = select();
+			if (codec != null) {
+				((ServerCallStreamObserver<R>) observer).setCompression(codec);
+			}
+		}
+		observer.onNext(response);
+		observer.onCompleted();
+	}
+
+	/**
+	 * Select the codec of a streaming call. Must be called before the first response is sent.
+	 *
+	 * @param observer
+	 */
+	public void startStream(ServerCallStreamObserver<?> observer) {
+		if (isEnabled()) {
+			String codec = select();
+			if (codec != null) {
+				observer.setCompression(codec);
+			}
+		}
+	}
+
+	/**
+	 * Enable the compression of the next response of a streaming call if it is large enough.
+	 *
+	 * @param observer
+	 * @param response
+	 */
+	public void prepareMessage(ServerCallStreamObserver<?> observer, MessageLite response) {
+		if (isEnabled()) {
+			observer.setMessageCompression(response.getSerializedSize() >= fThreshold);
+		}
+	}
+}
@@ -0,0 +1,514 @@
+package org.matheclipse.core.grpc.samples.server;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.EnumSet;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.matheclipse.core.grpc.PBAST;
+import org.matheclipse.core.grpc.PBBuiltinSymbol;
+import org.matheclipse.core.grpc.PBExpr;
+import org.matheclipse.core.grpc.PBPattern;
+import org.matheclipse.core.grpc.PBSymbol;
+import org.matheclipse.core.grpc.convert.SymbolTable;
+import org.matheclipse.core.interfaces.IAST;
+import org.matheclipse.core.interfaces.IBuiltInSymbol;
+import org.matheclipse.core.interfaces.IExpr;
+import org.matheclipse.core.interfaces.IPattern;
+import org.matheclipse.core.interfaces.ISymbol;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.WireFormat;
+
+/**
+ * A least recently used cache of encoded evaluation results. The key is the serialized request, so equal requests
+ * share one entry without decoding them. The cache is bounded by the number of entries and by the total weight
+ * (size of key and value in bytes); entries older than the time to live are treated as missing.
+ * <p>
+ * Requests which contain a side-effecting or non-deterministic built-in function (see {@link #UNCACHEABLE}) are never
+ * cached, whether the function is sent by its id or by its name. Because such a request may change definitions, the
+ * service invalidates the whole cache after evaluating it; a result which was evaluated before the invalidation isn't
+ * cached afterwards (see {@link #generation()}).
+ */
+public class ResultCache {
+
+	/**
+	 * Built-in functions whose result depends on or changes the state of the server.
+	 */
+	public static final EnumSet<PBBuiltinSymbol.ID> UNCACHEABLE = EnumSet.of( //
+			PBBuiltinSymbol.ID.AddTo, //
+			PBBuiltinSymbol.ID.AppendTo, //
+			PBBuiltinSymbol.ID.Clear, //
+			PBBuiltinSymbol.ID.ClearAll, //
+			PBBuiltinSymbol.ID.ClearAttributes, //
+			PBBuiltinSymbol.ID.Decrement, //
+			PBBuiltinSymbol.ID.DivideBy, //
+			PBBuiltinSymbol.ID.Export, //
+			PBBuiltinSymbol.ID.Get, //
+			PBBuiltinSymbol.ID.Import, //
+			PBBuiltinSymbol.ID.Increment, //
+			PBBuiltinSymbol.ID.PreDecrement, //
+			PBBuiltinSymbol.ID.PreIncrement, //
+			PBBuiltinSymbol.ID.PrependTo, //
+			PBBuiltinSymbol.ID.Print, //
+			PBBuiltinSymbol.ID.Put, //
+			PBBuiltinSymbol.ID.Quit, //
+			PBBuiltinSymbol.ID.RandomChoice, //
+			PBBuiltinSymbol.ID.RandomInteger, //
+			PBBuiltinSymbol.ID.RandomReal, //
+			PBBuiltinSymbol.ID.RandomSample, //
+			PBBuiltinSymbol.ID.RandomVariate, //
+			PBBuiltinSymbol.ID.Set, //
+			PBBuiltinSymbol.ID.SetAttributes, //
+			PBBuiltinSymbol.ID.SetDelayed, //
+			PBBuiltinSymbol.ID.SubtractFrom, //
+			PBBuiltinSymbol.ID.TimeConstrained, //
+			PBBuiltinSymbol.ID.TimesBy, //
+			PBBuiltinSymbol.ID.Timing, //
+			PBBuiltinSymbol.ID.Unique, //
+			PBBuiltinSymbol.ID.Unset, //
+			PBBuiltinSymbol.ID.UpSet, //
+			PBBuiltinSymbol.ID.UpSetDelayed);
+
+	/**
+	 * The lower case names of the {@link #UNCACHEABLE} functions. A symbol which is sent by its name is compared
+	 * ignoring case, because the parser may map lower case names to built-in symbols.
+	 */
+	private static final Set<String> UNCACHEABLE_NAMES = new HashSet<String>();
+
+	static {
+		for (PBBuiltinSymbol.ID id : UNCACHEABLE) {
+			UNCACHEABLE_NAMES.add(id.name().toLowerCase(Locale.US));
+		}
+	}
+
+	private static class Entry {
+		final ByteString fValue;
+		final long fWeight;
+		final long fCreated;
+
+		Entry(ByteString value, long weight, long created) {
+			fValue = value;
+			fWeight = weight;
+			fCreated = created;
+		}
+	}
+
+	private final LinkedHashMap<ByteString, Entry> fMap = new LinkedHashMap<ByteString, Entry>(64, 0.75f, true);
+
+	private final int fMaximumSize;
+
+	private final long fMaximumWeight;
+
+	private final long fTimeToLiveMillis;
+
+	private long fWeight = 0L;
+
+	/**
+	 * Incremented by {@link #invalidateAll()}.
+	 */
+	private long fGeneration = 0L;
+
+	private final AtomicLong fHits = new AtomicLong();
+
+	private final AtomicLong fMisses = new AtomicLong();
+
+	private final AtomicLong fEvictions = new AtomicLong();
+
+	private final AtomicLong fUncacheable = new AtomicLong();
+
+	/**
+	 *
+	 * @param maximumSize
+	 *            the maximum number of entries
+	 * @param maximumWeight
+	 *            the maximum sum of the serialized sizes of all keys and values in bytes
+	 * @param timeToLiveMillis
+	 *            entries older than this are evicted on access; <code>0</code> means no expiration
+	 */
+	public ResultCache(int maximumSize, long maximumWeight, long timeToLiveMillis) {
+		fMaximumSize = maximumSize;
+		fMaximumWeight = maximumWeight;
+		fTimeToLiveMillis = timeToLiveMillis;
+	}
+
+	/**
+	 * Test if the result of the request may be cached, i.e. the request doesn't contain a built-in function from
+	 * {@link #UNCACHEABLE}.
+	 *
+	 * @param request
+	 *            the serialized <code>PBExpr</code>
+	 * @return
+	 */
+	public boolean isCacheable(final ByteString request) {
+		if (isSideEffectFree(request)) {
+			return true;
+		}
+		fUncacheable.incrementAndGet();
+		return false;
+	}
+
+	/**
+	 * Test if the request doesn't contain a built-in function from {@link #UNCACHEABLE}, neither as built-in symbol
+	 * nor as identifier with the name of the function. Evaluating such a request again gives the same result and
+	 * doesn't change the state of the server, so clients may also retry it.
+	 *
+	 * @param request
+	 * @return
+	 */
+	public static boolean isSideEffectFree(final PBExpr request) {
+		ArrayDeque<PBExpr> stack = new ArrayDeque<PBExpr>();
+		stack.push(request);
+		while (!stack.isEmpty()) {
+			PBExpr expr = stack.pop();
+			switch (expr.getAtomCase()) {
+			case SYMBOL:
+				if (UNCACHEABLE.contains(expr.getSymbol().getId())) {
+					return false;
+				}
+				break;
+			case IDENTIFIER:
+				if (isUncacheableName(expr.getIdentifier().getName())) {
+					return false;
+				}
+				break;
+			case AST:
+				PBAST ast = expr.getAst();
+				stack.push(ast.getHead());
+				for (int i = 0; i < ast.getArgCount(); i++) {
+					stack.push(ast.getArg(i));
+				}
+				break;
+			case PATTERN:
+				PBPattern pattern = expr.getPattern();
+				stack.push(pattern.getCondition());
+				stack.push(pattern.getDefault());
+				break;
+			default:
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * The kinds of the messages which {@link #isSideEffectFree(ByteString)} reads.
+	 */
+	private static final int EXPR = 0;
+
+	private static final int AST = 1;
+
+	private static final int PATTERN = 2;
+
+	private static final int SYMBOL = 3;
+
+	private static final int IDENTIFIER = 4;
+
+	/**
+	 * Test if the serialized request doesn't contain a built-in function from {@link #UNCACHEABLE}, see
+	 * {@link #isSideEffectFree(PBExpr)}. The bytes are scanned without decoding them and with an explicit stack, so the
+	 * depth of the request isn't limited.
+	 *
+	 * @param request
+	 *            the serialized <code>PBExpr</code>
+	 * @return <code>false</code> if the request isn't a valid message
+	 */
+	public static boolean isSideEffectFree(final ByteString request) {
+		CodedInputStream input = request.newCodedInput();
+		input.setSizeLimit(Integer.MAX_VALUE);
+		// the kind and the limit to restore of every enclosing message
+		ArrayDeque<int[]> parents = new ArrayDeque<int[]>();
+		int kind = EXPR;
+		try {
+			while (true) {
+				int tag = input.readTag();
+				if (tag == 0) {
+					if (parents.isEmpty()) {
+						return true;
+					}
+					int[] parent = parents.pop();
+					input.popLimit(parent[1]);
+					kind = parent[0];
+					continue;
+				}
+				int child = WireFormat.getTagWireType(tag) == WireFormat.WIRETYPE_LENGTH_DELIMITED
+						? childKind(kind, WireFormat.getTagFieldNumber(tag)) : -1;
+				if (child == SYMBOL) {
+					if (UNCACHEABLE.contains(PBBuiltinSymbol.ID.forNumber(readSymbolId(input)))) {
+						return false;
+					}
+				} else if (child == IDENTIFIER) {
+					if (isUncacheableName(readSymbolName(input))) {
+						return false;
+					}
+				} else if (child >= 0) {
+					int length = input.readRawVarint32();
+					parents.push(new int[] { kind, input.pushLimit(length) });
+					kind = child;
+				} else {
+					input.skipField(tag);
+				}
+			}
+		} catch (IOException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * 
+	 * @param kind
+	 *            the kind of a message
+	 * @param field
+	 *            the number of a length-delimited field of the message
+	 * @return the kind of the field or <code>-1</code> if it can't contain a built-in function
+	 */
+	private static int childKind(int kind, int field) {
+		switch (kind) {
+		case EXPR:
+			switch (field) {
+			case PBExpr.AST_FIELD_NUMBER:
+				return AST;
+			case PBExpr.SYMBOL_FIELD_NUMBER:
+				return SYMBOL;
+			case PBExpr.IDENTIFIER_FIELD_NUMBER:
+				return IDENTIFIER;
+			case PBExpr.PATTERN_FIELD_NUMBER:
+				return PATTERN;
+			default:
+				return -1;
+			}
+		case AST:
+			return field == PBAST.HEAD_FIELD_NUMBER || field == PBAST.ARG_FIELD_NUMBER ? EXPR : -1;
+		case PATTERN:
+			return field == PBPattern.CONDITION_FIELD_NUMBER || field == PBPattern.DEFAULT_FIELD_NUMBER ? EXPR : -1;
+		default:
+			return -1;
+		}
+	}
+
+	/**
+	 * Read an embedded <code>PBBuiltinSymbol</code> message.
+	 * 
+	 * @param input
+	 * @return the id of the symbol
+	 * @throws IOException
+	 */
+	private static int readSymbolId(CodedInputStream input) throws IOException {
+		int oldLimit = input.pushLimit(input.readRawVarint32());
+		int id = 0;
+		int tag;
+		while ((tag = input.readTag()) != 0) {
+			if (WireFormat.getTagFieldNumber(tag) == PBBuiltinSymbol.ID_FIELD_NUMBER
+					&& WireFormat.getTagWireType(tag) == WireFormat.WIRETYPE_VARINT) {
+				id = input.readEnum();
+			} else {
+				input.skipField(tag);
+			}
+		}
+		input.popLimit(oldLimit);
+		return id;
+	}
+
+	/**
+	 * Read an embedded <code>PBSymbol</code> message.
+	 * 
+	 * @param input
+	 * @return the name of the symbol
+	 * @throws IOException
+	 */
+	private static String readSymbolName(CodedInputStream input) throws IOException {
+		int oldLimit = input.pushLimit(input.readRawVarint32());
+		String name = "";
+		int tag;
+		while ((tag = input.readTag()) != 0) {
+			if (WireFormat.getTagFieldNumber(tag) == PBSymbol.NAME_FIELD_NUMBER
+					&& WireFormat.getTagWireType(tag) == WireFormat.WIRETYPE_LENGTH_DELIMITED) {
+				name = input.readString();
+			} else {
+				input.skipField(tag);
+			}
+		}
+		input.popLimit(oldLimit);
+		return name;
+	}
+
+	private static boolean isUncacheableName(String name) {
+		return UNCACHEABLE_NAMES.contains(name.toLowerCase(Locale.US));
+	}
+
+	/**
+	 * Test if the decoded request doesn't contain a built-in function from {@link #UNCACHEABLE}, see
+	 * {@link #isSideEffectFree(PBExpr)}.
+	 *
+	 * @param request
+	 * @return
+	 */
+	public static boolean isSideEffectFree(final IExpr request) {
+		ArrayDeque<IExpr> stack = new ArrayDeque<IExpr>();
+		stack.push(request);
+		while (!stack.isEmpty()) {
+			IExpr expr = stack.pop();
+			if (expr instanceof IBuiltInSymbol) {
+				int id = SymbolTable.DEFAULT.id((IBuiltInSymbol) expr);
+				if (id >= 0 && UNCACHEABLE.contains(PBBuiltinSymbol.ID.forNumber(id))) {
+					return false;
+				}
+			} else if (expr instanceof ISymbol) {
+				if (isUncacheableName(((ISymbol) expr).getSymbolName())) {
+					return false;
+				}
+			} else if (expr instanceof IAST) {
+				IAST ast = (IAST) expr;
+				for (int i = 0; i < ast.size(); i++) {
+					stack.push(ast.get(i));
+				}
+			} else if (expr instanceof IPattern) {
+				IPattern pattern = (IPattern) expr;
+				if (pattern.getCondition() != null) {
+					stack.push(pattern.getCondition());
+				}
+				if (pattern.getDefaultValue() != null) {
+					stack.push(pattern.getDefaultValue());
+				}
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Get the cached result for the serialized request.
+	 *
+	 * @param key
+	 *            the serialized request
+	 * @return <code>null</code> if there is no valid entry
+	 */
+	public ByteString get(final ByteString key) {
+		synchronized (fMap) {
+			Entry entry = fMap.get(key);
+			if (entry != null) {
+				if (isExpired(entry, System.currentTimeMillis())) {
+					remove(key, entry);
+				} else {
+					fHits.incrementAndGet();
+					return entry.fValue;
+				}
+			}
+		}
+		fMisses.incrementAndGet();
+		return null;
+	}
+
+	/**
+	 * @return the current generation, which must be read before the evaluation of a result which is passed to
+	 *         {@link #put(ByteString, ByteString, long)}
+	 */
+	public long generation() {
+		synchronized (fMap) {
+			return fGeneration;
+		}
+	}
+
+	/**
+	 * Cache the result for the serialized request. Evicts the least recently used entries until the size and weight
+	 * bounds hold again. The result isn't cached if the cache was invalidated since its evaluation started, because it
+	 * may depend on definitions which were changed in the meantime.
+	 *
+	 * @param key
+	 *            the serialized request
+	 * @param value
+	 *            the serialized result
+	 * @param generation
+	 *            the {@link #generation()} before the evaluation of the result
+	 */
+	public void put(final ByteString key, final ByteString value, final long generation) {
+		long weight = key.size() + value.size();
+		if (weight > fMaximumWeight) {
+			return;
+		}
+		long now = System.currentTimeMillis();
+		synchronized (fMap) {
+			if (generation != fGeneration) {
+				return;
+			}
+			Entry old = fMap.put(key, new Entry(value, weight, now));
+			if (old != null) {
+				fWeight -= old.fWeight;
+			}
+			fWeight += weight;
+			Iterator<Map.Entry<ByteString, Entry>> iter = fMap.entrySet().iterator();
+			while (iter.hasNext() && (fMap.size() > fMaximumSize || fWeight > fMaximumWeight)) {
+				Entry eldest = iter.next().getValue();
+				iter.remove();
+				fWeight -= eldest.fWeight;
+				fEvictions.incrementAndGet();
+			}
+		}
+	}
+
+	/**
+	 * Remove all entries and start a new generation.
+	 */
+	public void invalidateAll() {
+		synchronized (fMap) {
+			fGeneration++;
+			fMap.clear();
+			fWeight = 0L;
+		}
+	}
+
+	private boolean isExpired(Entry entry, long now) {
+		return fTimeToLiveMillis > 0 && now - entry.fCreated > fTimeToLiveMillis;
+	}
+
+	private void remove(ByteString key, Entry entry) {
+		fMap.remove(key);
+		fWeight -= entry.fWeight;
+		fEvictions.incrementAndGet();
+	}
+
+	public long hitCount() {
+		return fHits.get();
+	}
+
+	public long missCount() {
+		return fMisses.get();
+	}
+
+	public long evictionCount() {
+		return fEvictions.get();
+	}
+
+	/**
+	 * @return the number of requests which were rejected by {@link #isCacheable(ByteString)}
+	 */
+	public long uncacheableCount() {
+		return fUncacheable.get();
+	}
+
+	public int size() {
+		synchronized (fMap) {
+			return fMap.size();
+		}
+	}
+
+	/**
+	 * @return the sum of the serialized sizes of all cached keys and values in bytes
+	 */
+	public long weight() {
+		synchronized (fMap) {
+			return fWeight;
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "ResultCache[size=" + size() + ", weight=" + weight() + ", hits=" + hitCount() + ", misses="
+				+ missCount() + ", evictions=" + evictionCount() + ", uncacheable=" + uncacheableCount() + "]";
+	}
+}
@@ -0,0 +1,73 @@
+package org.matheclipse.core.grpc.samples.server;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Creates the executor which runs the gRPC call handlers of the server.
+ */
+public class ServerExecutors {
+
+	public static final String DEFAULT = "default";
+
+	public static final String VIRTUAL = "virtual";
+
+	public static final String FIXED = "fixed";
+
+	public static final String FORKJOIN = "forkjoin";
+
+	/**
+	 * Create the executor selected by {@link ServerOptions#getExecutor()}.
+	 *
+	 * @param options
+	 * @return <code>null</code> for the gRPC default executor
+	 * @throws IllegalArgumentException
+	 *             if the executor type is unknown or not supported by the running JVM
+	 */
+	public static ExecutorService create(ServerOptions options) {
+		String type = options.getExecutor();
+		if (type.equals(DEFAULT)) {
+			return null;
+		}
+		if (type.equals(VIRTUAL)) {
+			return newVirtualThreadPerTaskExecutor();
+		}
+		if (type.equals(FIXED)) {
+			return Executors.newFixedThreadPool(options.getThreads(), new ThreadFactory() {
+				private final AtomicInteger fCounter = new AtomicInteger();
+
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "symja-grpc-" + fCounter.incrementAndGet());
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+		if (type.equals(FORKJOIN)) {
+			return new ForkJoinPool(options.getThreads());
+		}
+		throw new IllegalArgumentException("Unknown executor: " + type);
+	}
+
+	/**
+	 * Virtual threads are available since Java 21, but this project is compiled for Java 8, so the factory method is
+	 * called by reflection.
+	 *
+	 * @return
+	 */
+	private static ExecutorService newVirtualThreadPerTaskExecutor() {
+		try {
+			Method method = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+			return (ExecutorService) method.invoke(null);
+		} catch (NoSuchMethodException nsme) {
+			throw new IllegalArgumentException("The virtual executor requires Java 21 or later");
+		} catch (ReflectiveOperationException roe) {
+			throw new IllegalArgumentException("Can't create virtual thread executor: " + roe.getMessage());
+		}
+	}
+}
@@ -0,0 +1,624 @@
+package org.matheclipse.core.grpc.samples.server;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Startup options of the <code>SymjaServer</code>.
+ */
+public class ServerOptions {
+
+	private int fPort = 50051;
+
+	private int fPoolSize = Runtime.getRuntime().availableProcessors();
+
+	private boolean fWarmUp = true;
+
+	/**
+	 * A file with expressions which are evaluated before the server reports ready or <code>null</code>.
+	 */
+	private String fWarmUpFile = null;
+
+	/**
+	 * Default evaluation time limit in milliseconds for calls without a gRPC deadline. <code>0</code> means no limit.
+	 */
+	private long fTimeoutMillis = 60000L;
+
+	/**
+	 * Maximum number of cached results. <code>0</code> disables the result cache.
+	 */
+	private int fCacheSize = 0;
+
+	/**
+	 * Maximum total size in bytes of the cached requests and results.
+	 */
+	private long fCacheWeight = 64L * 1024L * 1024L;
+
+	/**
+	 * Time to live of a cached result in milliseconds. <code>0</code> means no expiration.
+	 */
+	private long fCacheTimeToLiveMillis = 600000L;
+
+	/**
+	 * HTTP port of the plain text metrics endpoint. <code>0</code> disables the endpoint.
+	 */
+	private int fMetricsPort = 0;
+
+	/**
+	 * Executor of the gRPC call handlers, one of the <code>ServerExecutors</code> types.
+	 */
+	private String fExecutor = ServerExecutors.DEFAULT;
+
+	/**
+	 * Number of threads of the <code>fixed</code> and <code>forkjoin</code> executors.
+	 */
+	private int fThreads = 2 * Runtime.getRuntime().availableProcessors();
+
+	/**
+	 * Maximum number of evaluations running at the same time. <code>0</code> means the evaluator pool size. A larger
+	 * value than the pool size isn't allowed, because an admitted evaluation waits for an idle evaluator without a
+	 * deadline.
+	 */
+	private int fMaxInFlight = 0;
+
+	/**
+	 * Maximum number of evaluations waiting for a free slot. <code>-1</code> means four times the maximum number of
+	 * running evaluations.
+	 */
+	private int fMaxQueued = -1;
+
+	/**
+	 * Maximum number of evaluations of one tenant running at the same time. <code>0</code> means the maximum number
+	 * of running evaluations.
+	 */
+	private int fTenantMaxInFlight = 0;
+
+	/**
+	 * Maximum number of evaluations of one tenant waiting for a free slot. <code>-1</code> means the maximum number of
+	 * waiting evaluations.
+	 */
+	private int fTenantMaxQueued = -1;
+
+	/**
+	 * Maximum number of distinct tenants. Calls of further tenants share the default tenant.
+	 */
+	private int fMaxTenants = 64;
+
+	/**
+	 * Maximum priority of a call. Higher priorities are lowered to it. The priority only orders the calls of a tenant.
+	 */
+	private int fMaxPriority = 16;
+
+	/**
+	 * The share of the evaluation slots of a tenant relative to the other tenants, by tenant id. Tenants which aren't
+	 * listed have the weight <code>1</code>.
+	 */
+	private Map<String, Integer> fTenantWeights = new HashMap<String, Integer>();
+
+	/**
+	 * Iteration limit of an evaluation. Clients can only lower it. <code>0</code> means the engines default.
+	 */
+	private int fMaxIterations = 0;
+
+	/**
+	 * Recursion limit of an evaluation. Clients can only lower it. <code>0</code> means the engines default.
+	 */
+	private int fMaxRecursion = 0;
+
+	/**
+	 * Maximum leaf count of a request. Clients can only lower it. <code>0</code> means no limit.
+	 */
+	private long fMaxLeaves = 0L;
+
+	/**
+	 * Maximum leaf count of a result. It is checked after the evaluation, so it only limits the size of the response.
+	 * Clients can only lower it. <code>0</code> means no limit.
+	 */
+	private long fMaxResultLeaves = 0L;
+
+	/**
+	 * Responses of at least this serialized size in bytes are compressed. <code>0</code> disables compression.
+	 */
+	private long fCompressionThreshold = 16384L;
+
+	/**
+	 * Preferred codec of compressed responses, <code>deflate</code> or <code>gzip</code>.
+	 */
+	private String fCompression = DeflateCodec.NAME;
+
+	/**
+	 * Target serialized size in bytes of a batch of arguments of a chunked result.
+	 */
+	private int fChunkBytes = 256 * 1024;
+
+	/**
+	 * Maximum number of prepared templates. <code>0</code> disables templates.
+	 */
+	private int fMaxTemplates = 1024;
+
+	/**
+	 * Maximum number of open evaluation sessions. <code>0</code> disables sessions.
+	 */
+	private int fMaxSessions = 64;
+
+	/**
+	 * Sessions which aren't used for this time in milliseconds are closed. <code>0</code> means no timeout.
+	 */
+	private long fSessionIdleMillis = 1800000L;
+
+	/**
+	 * Maximum total serialized size in bytes of the successful requests of one session which may change definitions.
+	 * It counts request bytes, not the memory which the session holds. <code>0</code> means no limit.
+	 */
+	private long fSessionMemory = 16L * 1024L * 1024L;
+
+	/**
+	 * Maximum number of failed evaluations logged per second. <code>0</code> disables the error log.
+	 */
+	private int fErrorLogRate = 10;
+
+	/**
+	 * Log the stack traces of failed evaluations.
+	 */
+	private boolean fStackTraces = false;
+
+	/**
+	 * Parse the program arguments of <code>SymjaServer.main()</code>.
+	 *
+	 * @param args
+	 *            the program arguments
+	 * @return the parsed options
+	 * @throws IllegalArgumentException
+	 *             if an argument is unknown or has an invalid value
+	 */
+	public static ServerOptions parse(final String args[]) {
+		ServerOptions options = new ServerOptions();
+		for (int i = 0; i < args.length; i++) {
+			final String arg = args[i];
+			if (arg.equals("-port") || arg.equals("-p")) {
+				options.fPort = intValue(args, ++i, arg);
+			} else if (arg.equals("-pool")) {
+				options.fPoolSize = intValue(args, ++i, arg);
+			} else if (arg.equals("-timeout") || arg.equals("-t")) {
+				options.fTimeoutMillis = intValue(args, ++i, arg) * 1000L;
+			} else if (arg.equals("-cache")) {
+				options.fCacheSize = intValue(args, ++i, arg);
+			} else if (arg.equals("-cacheweight")) {
+				options.fCacheWeight = intValue(args, ++i, arg) * 1024L;
+			} else if (arg.equals("-cachettl")) {
+				options.fCacheTimeToLiveMillis = intValue(args, ++i, arg) * 1000L;
+			} else if (arg.equals("-metricsport")) {
+				options.fMetricsPort = intValue(args, ++i, arg);
+			} else if (arg.equals("-executor")) {
+				if (i + 1 >= args.length) {
+					throw new IllegalArgumentException("You must specify a type when using the -executor argument");
+				}
+				options.fExecutor = args[++i];
+			} else if (arg.equals("-threads")) {
+				options.fThreads = intValue(args, ++i, arg);
+			} else if (arg.equals("-maxinflight")) {
+				options.fMaxInFlight = intValue(args, ++i, arg);
+			} else if (arg.equals("-queue")) {
+				options.fMaxQueued = intValue(args, ++i, arg);
+			} else if (arg.equals("-tenantinflight")) {
+				options.fTenantMaxInFlight = intValue(args, ++i, arg);
+			} else if (arg.equals("-tenantqueue")) {
+				options.fTenantMaxQueued = intValue(args, ++i, arg);
+			} else if (arg.equals("-tenants")) {
+				options.fMaxTenants = intValue(args, ++i, arg);
+			} else if (arg.equals("-maxpriority")) {
+				options.fMaxPriority = intValue(args, ++i, arg);
+			} else if (arg.equals("-tenantweight")) {
+				if (i + 1 >= args.length) {
+					throw new IllegalArgumentException(
+							"You must specify <tenant>=<weight> when using the -tenantweight argument");
+				}
+				String value = args[++i];
+				int separator = value.indexOf('=');
+				try {
+					if (separator > 0) {
+						options.fTenantWeights.put(value.substring(0, separator),
+								Integer.parseInt(value.substring(separator + 1)));
+						continue;
+					}
+				} catch (NumberFormatException nfe) {
+					// reported below
+				}
+				throw new IllegalArgumentException("Argument " + arg + " expects <tenant>=<weight>: " + value);
+			} else if (arg.equals("-maxiterations")) {
+				options.fMaxIterations = intValue(args, ++i, arg);
+			} else if (arg.equals("-maxrecursion")) {
+				options.fMaxRecursion = intValue(args, ++i, arg);
+			} else if (arg.equals("-maxleaves")) {
+				options.fMaxLeaves = intValue(args, ++i, arg);
+			} else if (arg.equals("-maxresultleaves")) {
+				options.fMaxResultLeaves = intValue(args, ++i, arg);
+			} else if (arg.equals("-compress")) {
+				options.fCompressionThreshold = intValue(args, ++i, arg);
+			} else if (arg.equals("-codec")) {
+				if (i + 1 >= args.length) {
+					throw new IllegalArgumentException("You must specify a codec when using the -codec argument");
+				}
+				options.fCompression = args[++i];
+			} else if (arg.equals("-chunk")) {
+				options.fChunkBytes = intValue(args, ++i, arg) * 1024;
+			} else if (arg.equals("-templates")) {
+				options.fMaxTemplates = intValue(args, ++i, arg);
+			} else if (arg.equals("-sessions")) {
+				options.fMaxSessions = intValue(args, ++i, arg);
+			} else if (arg.equals("-sessionidle")) {
+				options.fSessionIdleMillis = intValue(args, ++i, arg) * 1000L;
+			} else if (arg.equals("-sessionmemory")) {
+				options.fSessionMemory = intValue(args, ++i, arg) * 1024L;
+			} else if (arg.equals("-errorlog")) {
+				options.fErrorLogRate = intValue(args, ++i, arg);
+			} else if (arg.equals("-stacktraces")) {
+				options.fStackTraces = true;
+			} else if (arg.equals("-warmupfile")) {
+				if (i + 1 >= args.length) {
+					throw new IllegalArgumentException("You must specify a file when using the -warmupfile argument");
+				}
+				options.fWarmUpFile = args[++i];
+			} else if (arg.equals("-nowarmup")) {
+				options.fWarmUp = false;
+			} else {
+				throw new IllegalArgumentException("Unknown arg: " + arg);
+			}
+		}
+		if (options.fMaxInFlight > options.fPoolSize) {
+			throw new IllegalArgumentException(
+					"Argument -maxinflight must not be larger than the pool size: " + options.fMaxInFlight);
+		}
+		return options;
+	}
+
+	private static int intValue(final String args[], int index, String arg) {
+		if (index >= args.length) {
+			throw new IllegalArgumentException("You must specify a number when using the " + arg + " argument");
+		}
+		try {
+			return Integer.parseInt(args[index]);
+		} catch (NumberFormatException nfe) {
+			throw new IllegalArgumentException("Argument " + arg + " expects a number: " + args[index]);
+		}
+	}
+
+	/**
+	 * Prints the usage of how to use the server to System.out
+	 */
+	public static void printUsage() {
+		final String lineSeparator = System.getProperty("line.separator");
+		final StringBuilder msg = new StringBuilder();
+		msg.append("org.matheclipse.core.grpc.samples.server.SymjaServer [options]" + lineSeparator);
+		msg.append(lineSeparator);
+		msg.append("Program arguments: " + lineSeparator);
+		msg.append("  -p or -port <port>          listen on the given port (default 50051)" + lineSeparator);
+		msg.append("  -pool <n>                   number of pooled evaluators (default: number of cores)"
+				+ lineSeparator);
+		msg.append("  -t or -timeout <seconds>    time limit for calls without deadline, 0 for none (default 60)"
+				+ lineSeparator);
+		msg.append("  -cache <n>                  cache up to n results, 0 disables the cache (default 0)"
+				+ lineSeparator);
+		msg.append("  -cacheweight <kbytes>       maximum size of all cached results (default 65536)" + lineSeparator);
+		msg.append("  -cachettl <seconds>         time to live of cached results, 0 for none (default 600)"
+				+ lineSeparator);
+		msg.append("  -metricsport <port>         serve metrics over HTTP at /metrics on the given port"
+				+ lineSeparator);
+		msg.append("  -executor <type>            call executor: default, virtual, fixed or forkjoin" + lineSeparator);
+		msg.append("  -threads <n>                number of threads of the fixed and forkjoin executors"
+				+ lineSeparator);
+		msg.append("  -maxinflight <n>            maximum number of running evaluations, at most the pool size"
+				+ " (default: pool size)" + lineSeparator);
+		msg.append("  -queue <n>                  maximum number of waiting evaluations (default: 4 * maxinflight)"
+				+ lineSeparator);
+		msg.append("  -tenantinflight <n>         maximum number of running evaluations of a tenant (default: maxinflight)"
+				+ lineSeparator);
+		msg.append("  -tenantqueue <n>            maximum number of waiting evaluations of a tenant (default: queue)"
+				+ lineSeparator);
+		msg.append("  -tenants <n>                maximum number of distinct tenants (default 64)" + lineSeparator);
+		msg.append("  -maxpriority <n>            maximum priority of a call within its tenant (default 16)"
+				+ lineSeparator);
+		msg.append("  -tenantweight <id>=<n>      share of the evaluation slots of a tenant, repeatable (default 1)"
+				+ lineSeparator);
+		msg.append("  -maxiterations <n>          iteration limit of an evaluation (default: engine default)"
+				+ lineSeparator);
+		msg.append("  -maxrecursion <n>           recursion limit of an evaluation (default: engine default)"
+				+ lineSeparator);
+		msg.append("  -maxleaves <n>              maximum leaf count of a request, 0 for none (default 0)"
+				+ lineSeparator);
+		msg.append("  -maxresultleaves <n>        maximum leaf count of a response, checked after the evaluation, 0 for"
+				+ " none (default 0)" + lineSeparator);
+		msg.append("  -compress <bytes>           compress responses of at least this size, 0 for none (default 16384)"
+				+ lineSeparator);
+		msg.append("  -codec <name>               preferred compression codec: deflate or gzip (default deflate)"
+				+ lineSeparator);
+		msg.append("  -chunk <kbytes>             size of the argument batches of evalChunked results (default 256)"
+				+ lineSeparator);
+		msg.append("  -templates <n>              maximum number of prepared templates, 0 disables them (default 1024)"
+				+ lineSeparator);
+		msg.append("  -sessions <n>               maximum number of open sessions, 0 disables sessions (default 64)"
+				+ lineSeparator);
+		msg.append("  -sessionidle <seconds>      close sessions after this idle time, 0 for none (default 1800)"
+				+ lineSeparator);
+		msg.append("  -sessionmemory <kbytes>     maximum total size of the requests of a session which may change"
+				+ " definitions; counts request bytes, not the memory the session holds (default 16384)"
+				+ lineSeparator);
+		msg.append("  -errorlog <n>               log at most n failed evaluations per second, 0 for none (default 10)"
+				+ lineSeparator);
+		msg.append("  -stacktraces                log the stack traces of failed evaluations" + lineSeparator);
+		msg.append("  -nowarmup                   don't warm up the evaluators at startup" + lineSeparator);
+		msg.append("  -warmupfile <file>          evaluate the expressions of the file (one per line) before serving"
+				+ lineSeparator);
+		System.out.println(msg.toString());
+	}
+
+	public int getPort() {
+		return fPort;
+	}
+
+	public void setPort(int port) {
+		fPort = port;
+	}
+
+	public int getPoolSize() {
+		return fPoolSize;
+	}
+
+	public void setPoolSize(int poolSize) {
+		fPoolSize = poolSize;
+	}
+
+	public long getTimeoutMillis() {
+		return fTimeoutMillis;
+	}
+
+	public void setTimeoutMillis(long timeoutMillis) {
+		fTimeoutMillis = timeoutMillis;
+	}
+
+	public int getCacheSize() {
+		return fCacheSize;
+	}
+
+	public void setCacheSize(int cacheSize) {
+		fCacheSize = cacheSize;
+	}
+
+	public long getCacheWeight() {
+		return fCacheWeight;
+	}
+
+	public void setCacheWeight(long cacheWeight) {
+		fCacheWeight = cacheWeight;
+	}
+
+	public long getCacheTimeToLiveMillis() {
+		return fCacheTimeToLiveMillis;
+	}
+
+	public void setCacheTimeToLiveMillis(long cacheTimeToLiveMillis) {
+		fCacheTimeToLiveMillis = cacheTimeToLiveMillis;
+	}
+
+	public int getMetricsPort() {
+		return fMetricsPort;
+	}
+
+	public void setMetricsPort(int metricsPort) {
+		fMetricsPort = metricsPort;
+	}
+
+	public String getExecutor() {
+		return fExecutor;
+	}
+
+	public void setExecutor(String executor) {
+		fExecutor = executor;
+	}
+
+	public int getThreads() {
+		return fThreads;
+	}
+
+	public void setThreads(int threads) {
+		fThreads = threads;
+	}
+
+	/**
+	 * @return the maximum number of evaluations running at the same time
+	 */
+	public int getMaxInFlight() {
+		return fMaxInFlight > 0 ? fMaxInFlight : fPoolSize;
+	}
+
+	public void setMaxInFlight(int maxInFlight) {
+		fMaxInFlight = maxInFlight;
+	}
+
+	/**
+	 * @return the maximum number of evaluations waiting for a free slot
+	 */
+	public int getMaxQueued() {
+		return fMaxQueued >= 0 ? fMaxQueued : 4 * getMaxInFlight();
+	}
+
+	public void setMaxQueued(int maxQueued) {
+		fMaxQueued = maxQueued;
+	}
+
+	/**
+	 * @return the maximum number of evaluations of one tenant running at the same time
+	 */
+	public int getTenantMaxInFlight() {
+		return fTenantMaxInFlight > 0 ? Math.min(fTenantMaxInFlight, getMaxInFlight()) : getMaxInFlight();
+	}
+
+	public void setTenantMaxInFlight(int tenantMaxInFlight) {
+		fTenantMaxInFlight = tenantMaxInFlight;
+	}
+
+	/**
+	 * @return the maximum number of evaluations of one tenant waiting for a free slot
+	 */
+	public int getTenantMaxQueued() {
+		return fTenantMaxQueued >= 0 ? Math.min(fTenantMaxQueued, getMaxQueued()) : getMaxQueued();
+	}
+
+	public void setTenantMaxQueued(int tenantMaxQueued) {
+		fTenantMaxQueued = tenantMaxQueued;
+	}
+
+	public int getMaxTenants() {
+		return fMaxTenants;
+	}
+
+	public void setMaxTenants(int maxTenants) {
+		fMaxTenants = maxTenants;
+	}
+
+	public int getMaxPriority() {
+		return fMaxPriority;
+	}
+
+	public void setMaxPriority(int maxPriority) {
+		fMaxPriority = maxPriority;
+	}
+
+	/**
+	 * @return the weights of the tenants by tenant id
+	 */
+	public Map<String, Integer> getTenantWeights() {
+		return fTenantWeights;
+	}
+
+	/**
+	 * Set the share of the evaluation slots of a tenant relative to the other tenants.
+	 *
+	 * @param tenant
+	 * @param weight
+	 *            a positive number
+	 */
+	public void setTenantWeight(String tenant, int weight) {
+		fTenantWeights.put(tenant, weight);
+	}
+
+	public int getMaxIterations() {
+		return fMaxIterations;
+	}
+
+	public void setMaxIterations(int maxIterations) {
+		fMaxIterations = maxIterations;
+	}
+
+	public int getMaxRecursion() {
+		return fMaxRecursion;
+	}
+
+	public void setMaxRecursion(int maxRecursion) {
+		fMaxRecursion = maxRecursion;
+	}
+
+	public long getMaxLeaves() {
+		return fMaxLeaves;
+	}
+
+	public void setMaxLeaves(long maxLeaves) {
+		fMaxLeaves = maxLeaves;
+	}
+
+	public long getMaxResultLeaves() {
+		return fMaxResultLeaves;
+	}
+
+	public void setMaxResultLeaves(long maxResultLeaves) {
+		fMaxResultLeaves = maxResultLeaves;
+	}
+
+	public long getCompressionThreshold() {
+		return fCompressionThreshold;
+	}
+
+	public void setCompressionThreshold(long compressionThreshold) {
+		fCompressionThreshold = compressionThreshold;
+	}
+
+	public String getCompression() {
+		return fCompression;
+	}
+
+	public void setCompression(String compression) {
+		fCompression = compression;
+	}
+
+	public int getChunkBytes() {
+		return fChunkBytes;
+	}
+
+	public void setChunkBytes(int chunkBytes) {
+		fChunkBytes = chunkBytes;
+	}
+
+	public int getMaxTemplates() {
+		return fMaxTemplates;
+	}
+
+	public void setMaxTemplates(int maxTemplates) {
+		fMaxTemplates = maxTemplates;
+	}
+
+	public int getMaxSessions() {
+		return fMaxSessions;
+	}
+
+	public void setMaxSessions(int maxSessions) {
+		fMaxSessions = maxSessions;
+	}
+
+	public long getSessionIdleMillis() {
+		return fSessionIdleMillis;
+	}
+
+	public void setSessionIdleMillis(long sessionIdleMillis) {
+		fSessionIdleMillis = sessionIdleMillis;
+	}
+
+	public long getSessionMemory() {
+		return fSessionMemory;
+	}
+
+	public void setSessionMemory(long sessionMemory) {
+		fSessionMemory = sessionMemory;
+	}
+
+	public int getErrorLogRate() {
+		return fErrorLogRate;
+	}
+
+	public void setErrorLogRate(int errorLogRate) {
+		fErrorLogRate = errorLogRate;
+	}
+
+	public boolean isStackTraces() {
+		return fStackTraces;
+	}
+
+	public void setStackTraces(boolean stackTraces) {
+		fStackTraces = stackTraces;
+	}
+
+	public boolean isWarmUp() {
+		return fWarmUp;
+	}
+
+	public void setWarmUp(boolean warmUp) {
+		fWarmUp = warmUp;
+	}
+
+	public String getWarmUpFile() {
+		return fWarmUpFile;
+	}
+
+	public void setWarmUpFile(String warmUpFile) {
+		fWarmUpFile = warmUpFile;
+	}
+}
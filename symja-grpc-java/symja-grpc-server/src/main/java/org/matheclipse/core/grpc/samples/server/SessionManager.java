@@ -0,0 +1,267 @@
+package org.matheclipse.core.grpc.samples.server;
+
+import java.util.Iterator;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.matheclipse.core.eval.EvalEngine;
+import org.matheclipse.core.eval.ExprEvaluator;
+
+import io.grpc.Status;
+
+/**
+ * The open evaluation sessions of the server. A session owns its own <code>ExprEvaluator</code>, so definitions like
+ * <code>f(x_):=...</code> are kept between the calls of one client instead of being sent with every request. The calls
+ * of one session are evaluated one after the other.
+ * <p>
+ * The number of sessions is limited. A session which isn't used for the idle timeout is closed. The JVM can't measure
+ * the memory of a single evaluator, so the memory of a session is approximated by the serialized size of all requests
+ * which may change definitions (see {@link ResultCache#isSideEffectFree(org.matheclipse.core.grpc.PBExpr)}).
+ */
+public class SessionManager {
+
+	/**
+	 * A single session. Its evaluator must be checked out before it is used.
+	 */
+	public static class Session {
+		private final String fId;
+
+		private final ExprEvaluator fEvaluator;
+
+		private final ReentrantLock fLock = new ReentrantLock(true);
+
+		private final long fMaxWeight;
+
+		private long fWeight = 0L;
+
+		private volatile long fLastAccess = System.currentTimeMillis();
+
+		private volatile boolean fClosed = false;
+
+		Session(String id, ExprEvaluator evaluator, long maxWeight) {
+			fId = id;
+			fEvaluator = evaluator;
+			fMaxWeight = maxWeight;
+		}
+
+		public String getId() {
+			return fId;
+		}
+
+		/**
+		 * Wait until no other call uses the session and bind its engine to the current thread.
+		 *
+		 * @param timeoutNanos
+		 *            the maximum time to wait in nanoseconds
+		 * @return the evaluator which must be given back with {@link #release()} or <code>null</code> if the session
+		 *         was still in use at the timeout
+		 * @throws InterruptedException
+		 * @throws io.grpc.StatusRuntimeException
+		 *             with status <code>NOT_FOUND</code> if the session was closed
+		 */
+		public ExprEvaluator checkout(long timeoutNanos) throws InterruptedException {
+			if (!fLock.tryLock(timeoutNanos, TimeUnit.NANOSECONDS)) {
+				return null;
+			}
+			if (fClosed) {
+				fLock.unlock();
+				throw Status.NOT_FOUND.withDescription("session was closed: " + fId).asRuntimeException();
+			}
+			fLastAccess = System.currentTimeMillis();
+			EvalEngine.set(fEvaluator.getEvalEngine());
+			return fEvaluator;
+		}
+
+		/**
+		 * Reset the evaluation state of the engine, but keep the definitions, and allow the next call.
+		 */
+		public void release() {
+			fEvaluator.getEvalEngine().reset();
+			fLastAccess = System.currentTimeMillis();
+			fLock.unlock();
+		}
+
+		/**
+		 * Add the size of a request which may change the definitions of the session.
+		 *
+		 * @param bytes
+		 *            the serialized size of the request
+		 * @throws io.grpc.StatusRuntimeException
+		 *             with status <code>RESOURCE_EXHAUSTED</code> if the memory limit of the session is exceeded
+		 */
+		public synchronized void charge(long bytes) {
+			if (fMaxWeight > 0 && fWeight + bytes > fMaxWeight) {
+				throw Status.RESOURCE_EXHAUSTED.withDescription("memory limit of session exceeded: " + fId)
+						.asRuntimeException();
+			}
+			fWeight += bytes;
+		}
+
+		/**
+		 * Take back the charge of a request which didn't finish.
+		 *
+		 * @param bytes
+		 *            the bytes passed to {@link #charge(long)}
+		 */
+		public synchronized void refund(long bytes) {
+			fWeight = Math.max(0L, fWeight - bytes);
+		}
+
+		/**
+		 * @return the serialized size of all requests which may have changed definitions
+		 */
+		public synchronized long weight() {
+			return fWeight;
+		}
+	}
+
+	private final ConcurrentHashMap<String, Session> fSessions = new ConcurrentHashMap<String, Session>();
+
+	private final int fMaxSessions;
+
+	private final long fIdleTimeoutMillis;
+
+	private final long fMaxWeight;
+
+	private final ScheduledFuture<?> fEviction;
+
+	private final AtomicLong fOpened = new AtomicLong();
+
+	private final AtomicLong fEvicted = new AtomicLong();
+
+	/**
+	 *
+	 * @param maxSessions
+	 *            the maximum number of open sessions
+	 * @param idleTimeoutMillis
+	 *            sessions which aren't used for this time are closed; <code>0</code> means no timeout
+	 * @param maxWeight
+	 *            the maximum serialized size of the definitions of one session; <code>0</code> means no limit
+	 * @param timer
+	 *            runs the periodic eviction of idle sessions
+	 */
+	public SessionManager(int maxSessions, long idleTimeoutMillis, long maxWeight, ScheduledExecutorService timer) {
+		fMaxSessions = maxSessions;
+		fIdleTimeoutMillis = idleTimeoutMillis;
+		fMaxWeight = maxWeight;
+		if (idleTimeoutMillis > 0) {
+			long period = Math.max(1000L, idleTimeoutMillis / 4);
+			fEviction = timer.scheduleWithFixedDelay(new Runnable() {
+				@Override
+				public void run() {
+					evictIdle();
+				}
+			}, period, period, TimeUnit.MILLISECONDS);
+		} else {
+			fEviction = null;
+		}
+	}
+
+	/**
+	 * Open a new session.
+	 *
+	 * @return the new session
+	 * @throws io.grpc.StatusRuntimeException
+	 *             with status <code>RESOURCE_EXHAUSTED</code> if the maximum number of sessions is open
+	 */
+	public Session open() {
+		Session session = new Session(UUID.randomUUID().toString(), new ExprEvaluator(true, 0), fMaxWeight);
+		synchronized (fSessions) {
+			if (fSessions.size() >= fMaxSessions) {
+				throw Status.RESOURCE_EXHAUSTED.withDescription("too many open sessions").asRuntimeException();
+			}
+			fSessions.put(session.getId(), session);
+		}
+		fOpened.incrementAndGet();
+		return session;
+	}
+
+	/**
+	 * Get an open session.
+	 *
+	 * @param id
+	 * @return
+	 * @throws io.grpc.StatusRuntimeException
+	 *             with status <code>NOT_FOUND</code> if the session doesn't exist
+	 */
+	public Session get(String id) {
+		Session session = fSessions.get(id);
+		if (session == null) {
+			throw Status.NOT_FOUND.withDescription("unknown or expired session: " + id).asRuntimeException();
+		}
+		return session;
+	}
+
+	/**
+	 * Close a session. A running call of the session is finished, waiting calls fail with <code>NOT_FOUND</code>.
+	 *
+	 * @param id
+	 * @return <code>false</code> if the session doesn't exist
+	 */
+	public boolean close(String id) {
+		Session session = fSessions.remove(id);
+		if (session == null) {
+			return false;
+		}
+		session.fClosed = true;
+		return true;
+	}
+
+	/**
+	 * Close the sessions which are not in use and weren't used for the idle timeout.
+	 */
+	void evictIdle() {
+		long oldest = System.currentTimeMillis() - fIdleTimeoutMillis;
+		Iterator<Session> iter = fSessions.values().iterator();
+		while (iter.hasNext()) {
+			Session session = iter.next();
+			if (session.fLastAccess < oldest && session.fLock.tryLock()) {
+				try {
+					if (session.fLastAccess < oldest) {
+						iter.remove();
+						session.fClosed = true;
+						fEvicted.incrementAndGet();
+					}
+				} finally {
+					session.fLock.unlock();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Stop the eviction and close all sessions.
+	 */
+	public void shutdown() {
+		if (fEviction != null) {
+			fEviction.cancel(false);
+		}
+		for (Session session : fSessions.values()) {
+			session.fClosed = true;
+		}
+		fSessions.clear();
+	}
+
+	/**
+	 * @return the number of open sessions
+	 */
+	public int size() {
+		return fSessions.size();
+	}
+
+	public long openedCount() {
+		return fOpened.get();
+	}
+
+	/**
+	 * @return the number of sessions which were closed because of the idle timeout
+	 */
+	public long evictedCount() {
+		return fEvicted.get();
+	}
+}
@@ -0,0 +1,199 @@
+package org.matheclipse.core.grpc.samples.server;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.DoubleSupplier;
+
+/**
+ * The default in-memory <code>MetricsRegistry</code>. Histograms are written as Prometheus histograms with bucket
+ * bounds at the powers of two of the {@link LatencyHistogram}.
+ */
+public class SimpleMetricsRegistry implements MetricsRegistry {
+
+	private static final String COUNTER = "counter";
+
+	private static final String HISTOGRAM = "histogram";
+
+	private static final String GAUGE = "gauge";
+
+	/**
+	 * All series of one metric name.
+	 */
+	private static class Family {
+		final String fHelp;
+		final String fType;
+		final ConcurrentMap<String, Object> fSeries = new ConcurrentHashMap<String, Object>();
+
+		Family(String help, String type) {
+			fHelp = help;
+			fType = type;
+		}
+	}
+
+	private final ConcurrentMap<String, Family> fFamilies = new ConcurrentHashMap<String, Family>();
+
+	private Family family(String name, String help, String type) {
+		Family family = fFamilies.get(name);
+		if (family == null) {
+			family = new Family(help, type);
+			Family previous = fFamilies.putIfAbsent(name, family);
+			if (previous != null) {
+				family = previous;
+			}
+		}
+		if (!family.fType.equals(type)) {
+			throw new IllegalArgumentException("Metric " + name + " is a " + family.fType + ", not a " + type);
+		}
+		return family;
+	}
+
+	@Override
+	public void incrementCounter(String name, String help, String... labels) {
+		Family family = family(name, help, COUNTER);
+		String key = labelText(labels);
+		LongAdder counter = (LongAdder) family.fSeries.get(key);
+		if (counter == null) {
+			counter = new LongAdder();
+			LongAdder previous = (LongAdder) family.fSeries.putIfAbsent(key, counter);
+			if (previous != null) {
+				counter = previous;
+			}
+		}
+		counter.increment();
+	}
+
+	@Override
+	public void recordNanos(String name, String help, long nanos, String... labels) {
+		Family family = family(name, help, HISTOGRAM);
+		String key = labelText(labels);
+		LatencyHistogram histogram = (LatencyHistogram) family.fSeries.get(key);
+		if (histogram == null) {
+			histogram = new LatencyHistogram();
+			LatencyHistogram previous = (LatencyHistogram) family.fSeries.putIfAbsent(key, histogram);
+			if (previous != null) {
+				histogram = previous;
+			}
+		}
+		histogram.record(nanos);
+	}
+
+	@Override
+	public void registerGauge(String name, String help, DoubleSupplier supplier, String... labels) {
+		family(name, help, GAUGE).fSeries.put(labelText(labels), supplier);
+	}
+
+	@Override
+	public void unregisterGauge(String name, String... labels) {
+		Family family = fFamilies.get(name);
+		if (family != null) {
+			family.fSeries.remove(labelText(labels));
+		}
+	}
+
+	/**
+	 *
+	 * @param name
+	 * @param labels
+	 *            alternating label names and values
+	 * @return the histogram or <code>null</code> if nothing was recorded for the labels
+	 */
+	public LatencyHistogram getHistogram(String name, String... labels) {
+		Family family = fFamilies.get(name);
+		return family == null ? null : (LatencyHistogram) family.fSeries.get(labelText(labels));
+	}
+
+	@Override
+	public void writeText(Writer out) throws IOException {
+		for (Map.Entry<String, Family> entry : fFamilies.entrySet()) {
+			String name = entry.getKey();
+			Family family = entry.getValue();
+			out.write("# HELP " + name + " " + family.fHelp + "\n");
+			out.write("# TYPE " + name + " " + family.fType + "\n");
+			for (Map.Entry<String, Object> series : family.fSeries.entrySet()) {
+				String labels = series.getKey();
+				Object value = series.getValue();
+				if (value instanceof LongAdder) {
+					writeSample(out, name, labels, Long.toString(((LongAdder) value).sum()));
+				} else if (value instanceof DoubleSupplier) {
+					writeSample(out, name, labels, Double.toString(((DoubleSupplier) value).getAsDouble()));
+				} else {
+					writeHistogram(out, name, labels, (LatencyHistogram) value);
+				}
+			}
+		}
+		out.flush();
+	}
+
+	/**
+	 * Write the histogram with the same <code>le</code> boundaries on every scrape, one per power of two, so that
+	 * scrapes and instances can be aggregated. The last bucket also counts the durations beyond its upper bound, so it
+	 * is only reported in <code>+Inf</code>.
+	 *
+	 * @param out
+	 * @param name
+	 * @param labels
+	 * @param histogram
+	 * @throws IOException
+	 */
+	private static void writeHistogram(Writer out, String name, String labels, LatencyHistogram histogram)
+			throws IOException {
+		String separator = labels.isEmpty() ? "" : ",";
+		long cumulative = 0;
+		int last = histogram.bucketCount() - 1;
+		for (int i = 0; i < last; i++) {
+			cumulative += histogram.bucketValue(i);
+			if ((i + 1) % LatencyHistogram.SUB_BUCKETS == 0) {
+				double le = LatencyHistogram.upperBoundNanos(i) / 1.0e9;
+				writeSample(out, name + "_bucket", labels + separator + "le=\"" + le + "\"", Long.toString(cumulative));
+			}
+		}
+		cumulative += histogram.bucketValue(last);
+		// the buckets and the count are updated separately; keep +Inf and _count consistent with the buckets
+		long count = Math.max(cumulative, histogram.count());
+		writeSample(out, name + "_bucket", labels + separator + "le=\"+Inf\"", Long.toString(count));
+		writeSample(out, name + "_sum", labels, Double.toString(histogram.sumNanos() / 1.0e9));
+		writeSample(out, name + "_count", labels, Long.toString(count));
+	}
+
+	private static void writeSample(Writer out, String name, String labels, String value) throws IOException {
+		out.write(name);
+		if (!labels.isEmpty()) {
+			out.write('{');
+			out.write(labels);
+			out.write('}');
+		}
+		out.write(' ');
+		out.write(value);
+		out.write('\n');
+	}
+
+	private static String labelText(String... labels) {
+		if (labels.length == 0) {
+			return "";
+		}
+		StringBuilder buf = new StringBuilder();
+		for (int i = 0; i + 1 < labels.length; i += 2) {
+			if (i > 0) {
+				buf.append(',');
+			}
+			buf.append(labels[i]).append("=\"");
+			String value = labels[i + 1];
+			for (int j = 0; j < value.length(); j++) {
+				char ch = value.charAt(j);
+				if (ch == '\\' || ch == '"') {
+					buf.append('\\');
+				} else if (ch == '\n') {
+					buf.append("\\n");
+					continue;
+				}
+				buf.append(ch);
+			}
+			buf.append('"');
+		}
+		return buf.toString();
+	}
+}
@@ -0,0 +1,105 @@
+package org.matheclipse.core.grpc.samples.server;
+
+import java.util.concurrent.TimeUnit;
+
+import org.matheclipse.core.grpc.SymjaServiceGrpc;
+
+import io.grpc.Metadata;
+import io.grpc.MethodDescriptor;
+import io.grpc.ServerBuilder;
+import io.grpc.ServerCall;
+import io.grpc.ServerCallHandler;
+import io.grpc.ServerServiceDefinition;
+import io.grpc.ServiceDescriptor;
+import io.grpc.Status;
+import io.grpc.health.v1.HealthCheckResponse.ServingStatus;
+import io.grpc.services.HealthStatusManager;
+import io.grpc.util.MutableHandlerRegistry;
+
+/**
+ * Lets the server listen while it is still initializing. Until {@link #ready(ServerServiceDefinition)} is called, the
+ * gRPC health service reports <code>NOT_SERVING</code> and every call of the Symja service fails with
+ * <code>UNAVAILABLE</code>, so load balancers and the <code>SymjaClientPool</code> send requests only to warm servers.
+ */
+public class StartupGate {
+
+	private final HealthStatusManager fHealth = new HealthStatusManager();
+
+	private final MutableHandlerRegistry fRegistry = new MutableHandlerRegistry();
+
+	private final long fStartNanos;
+
+	private volatile long fStartupNanos = -1L;
+
+	/**
+	 *
+	 * @param startNanos
+	 *            the <code>System.nanoTime()</code> when the server process started
+	 */
+	public StartupGate(long startNanos) {
+		fStartNanos = startNanos;
+		fHealth.setStatus("", ServingStatus.NOT_SERVING);
+		fHealth.setStatus(SymjaServiceGrpc.SERVICE_NAME, ServingStatus.NOT_SERVING);
+		fRegistry.addService(unavailable(SymjaServiceGrpc.getServiceDescriptor()));
+	}
+
+	/**
+	 * Add the health service to the server and serve the Symja service through this gate.
+	 *
+	 * @param builder
+	 */
+	public void configure(ServerBuilder<?> builder) {
+		builder.addService(fHealth.getHealthService()).fallbackHandlerRegistry(fRegistry);
+	}
+
+	/**
+	 * Replace the placeholder by the initialized service and report <code>SERVING</code>.
+	 *
+	 * @param service
+	 *            the Symja service with its interceptors
+	 */
+	public void ready(ServerServiceDefinition service) {
+		fRegistry.addService(service);
+		fStartupNanos = System.nanoTime() - fStartNanos;
+		fHealth.setStatus(SymjaServiceGrpc.SERVICE_NAME, ServingStatus.SERVING);
+		fHealth.setStatus("", ServingStatus.SERVING);
+	}
+
+	public boolean isReady() {
+		return fStartupNanos >= 0L;
+	}
+
+	/**
+	 * @return the time from the process start until the server was ready or <code>-1</code> if it isn't ready yet
+	 */
+	public long startupMillis() {
+		long nanos = fStartupNanos;
+		return nanos < 0L ? -1L : TimeUnit.NANOSECONDS.toMillis(nanos);
+	}
+
+	/**
+	 * A service with the methods of the descriptor which fail all calls with <code>UNAVAILABLE</code>.
+	 *
+	 * @param descriptor
+	 * @return
+	 */
+	private static ServerServiceDefinition unavailable(ServiceDescriptor descriptor) {
+		ServerServiceDefinition.Builder builder = ServerServiceDefinition.builder(descriptor);
+		for (MethodDescriptor<?, ?> method : descriptor.getMethods()) {
+			addUnavailable(builder, method);
+		}
+		return builder.build();
+	}
+
+	private static <ReqT, RespT> void addUnavailable(ServerServiceDefinition.Builder builder,
+			MethodDescriptor<ReqT, RespT> method) {
+		builder.addMethod(method, new ServerCallHandler<ReqT, RespT>() {
+			@Override
+			public ServerCall.Listener<ReqT> startCall(ServerCall<ReqT, RespT> call, Metadata headers) {
+				call.close(Status.UNAVAILABLE.withDescription("server is starting"), new Metadata());
+				return new ServerCall.Listener<ReqT>() {
+				};
+			}
+		});
+	}
+}
@@ -15,30 +15,146 @@
  */
 package org.matheclipse.core.grpc.samples.server;
 
+import java.io.File;
 import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
 
 import org.matheclipse.core.basic.Config;
+import org.matheclipse.core.eval.ExprEvaluator;
 import org.matheclipse.core.expression.F;
+import org.matheclipse.core.grpc.PBExpr;
 
 import io.grpc.Server;
 import io.grpc.ServerBuilder;
+import io.grpc.ServerInterceptors;
 
+/**
+ * Starts the server. The port is bound first, while the Symja symbols are initialized in the background; the gRPC
+ * health service reports <code>NOT_SERVING</code> and evaluation calls fail with <code>UNAVAILABLE</code> until the
+ * evaluators are warmed up in parallel and the optional warm-up corpus was replayed.
+ */
 public class SymjaServer {
 
-	private static final int SERVER_PORT = 50051;
-
 	public static void main(String[] args) throws IOException, InterruptedException {
+		final long start = System.nanoTime();
+		ServerOptions options;
+		ExecutorService executor;
+		try {
+			options = ServerOptions.parse(args);
+			executor = ServerExecutors.create(options);
+		} catch (IllegalArgumentException iae) {
+			System.out.println(iae.getMessage());
+			ServerOptions.printUsage();
+			return;
+		}
 		Config.FILESYSTEM_ENABLED = true;
-		F.initSymbols(null, null, true);
+		// the symbols are initialized while the transport and the metrics endpoint start
+		CompletableFuture<Void> symbols = CompletableFuture.runAsync(() -> F.initSymbols(null, null, true));
+
 		// Build server
-		Server server = ServerBuilder.forPort(SERVER_PORT).addService(new SymjaServiceImpl()).build();
+		MetricsRegistry registry = new SimpleMetricsRegistry();
+		final StartupGate gate = new StartupGate(start);
+		registry.registerGauge("symja_startup_seconds", "Time from the process start until the server was ready",
+				() -> gate.isReady() ? gate.startupMillis() / 1000.0 : Double.NaN);
+		ServerBuilder<?> builder = ServerBuilder.forPort(options.getPort())
+				.compressorRegistry(ResponseCompression.compressors())
+				.decompressorRegistry(ResponseCompression.decompressors());
+		gate.configure(builder);
+		if (executor != null) {
+			builder.executor(executor);
+		}
+		Server server = builder.build();
 
 		// Start server
-		System.out.println("Starting SymjaServer on port " + SERVER_PORT);
+		System.out.println("Starting SymjaServer on port " + options.getPort() + " with " + options.getPoolSize()
+				+ " evaluators and " + options.getExecutor() + " executor");
 		server.start();
+		MetricsHttpServer metricsServer = null;
+		if (options.getMetricsPort() > 0) {
+			metricsServer = new MetricsHttpServer(options.getMetricsPort(), registry);
+			metricsServer.start();
+			System.out.println("Serving metrics on http://localhost:" + options.getMetricsPort() + "/metrics");
+		}
+
+		try {
+			symbols.join();
+		} catch (CompletionException ce) {
+			// the transport threads would keep the process alive without ever serving
+			System.out.println("Can't initialize the Symja symbols: " + ce.getCause());
+			server.shutdownNow();
+			shutdown(executor, metricsServer);
+			System.exit(1);
+		}
+		long initialized = System.nanoTime();
+		EvaluatorPool pool = new EvaluatorPool(options.getPoolSize());
+		if (options.isWarmUp()) {
+			pool.warmUp();
+		}
+		long warmedUp = System.nanoTime();
+		SymjaServiceImpl service;
+		try {
+			service = new SymjaServiceImpl(pool, options, registry);
+		} catch (IllegalArgumentException iae) {
+			System.out.println(iae.getMessage());
+			ServerOptions.printUsage();
+			server.shutdownNow();
+			shutdown(executor, metricsServer);
+			return;
+		}
+		int replayed = 0;
+		if (options.getWarmUpFile() != null) {
+			replayed = replay(service, pool, new File(options.getWarmUpFile()));
+		}
+		gate.ready(ServerInterceptors.intercept(service, service.getCompression().interceptor(),
+				service.getQuota().interceptor(), service.getAdmission().interceptor()));
 
 		// Keep it running
-		System.out.println("SymjaServer started!");
+		System.out.println("SymjaServer ready in " + gate.startupMillis() + " ms (symbols "
+				+ millis(initialized - start) + " ms, evaluators " + millis(warmedUp - initialized) + " ms, "
+				+ replayed + " warm-up requests " + millis(System.nanoTime() - warmedUp) + " ms)");
 		server.awaitTermination();
+		service.shutdown();
+		shutdown(executor, metricsServer);
+	}
+
+	/**
+	 * Replay the warm-up corpus file through the service.
+	 * 
+	 * @param service
+	 * @param pool
+	 * @param file
+	 * @return the number of successfully evaluated requests
+	 * @throws InterruptedException
+	 */
+	private static int replay(SymjaServiceImpl service, EvaluatorPool pool, File file) throws InterruptedException {
+		List<PBExpr> corpus;
+		ExprEvaluator parser = pool.checkout();
+		try {
+			corpus = WarmUpCorpus.read(file, parser);
+		} catch (IOException ioe) {
+			// serve without the corpus instead of failing the startup
+			System.out.println("Can't read the warm-up file " + file + ": " + ioe.getMessage());
+			return 0;
+		} finally {
+			pool.release(parser);
+		}
+		return service.replay(corpus);
+	}
+
+	private static long millis(long nanos) {
+		return TimeUnit.NANOSECONDS.toMillis(nanos);
+	}
+
+	private static void shutdown(ExecutorService executor, MetricsHttpServer metricsServer) {
+		if (executor != null) {
+			executor.shutdown();
+		}
+		if (metricsServer != null) {
+			metricsServer.stop();
+		}
 	}
 }
@@ -15,28 +15,143 @@
  */
 package org.matheclipse.core.grpc.samples.server;
 
-import java.io.StringWriter;
+import java.io.IOException;
 import java.text.DecimalFormat;
 import java.text.DecimalFormatSymbols;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
 
+import org.matheclipse.core.eval.EvalEngine;
 import org.matheclipse.core.eval.ExprEvaluator;
-import org.matheclipse.core.eval.exception.AbortException;
-import org.matheclipse.core.eval.exception.Validate;
 import org.matheclipse.core.expression.F;
+import org.matheclipse.core.grpc.PBChunkBytes;
+import org.matheclipse.core.grpc.PBError;
+import org.matheclipse.core.grpc.PBEvalRequestBytes;
+import org.matheclipse.core.grpc.PBEvalResponseBytes;
+import org.matheclipse.core.grpc.PBExecuteRequest;
 import org.matheclipse.core.grpc.PBExpr;
+import org.matheclipse.core.grpc.PBMapRequestBytes;
+import org.matheclipse.core.grpc.PBMapResponse;
+import org.matheclipse.core.grpc.PBOpenSessionRequest;
+import org.matheclipse.core.grpc.PBPackedVector;
+import org.matheclipse.core.grpc.PBPrepareRequestBytes;
+import org.matheclipse.core.grpc.PBPrepared;
+import org.matheclipse.core.grpc.PBSession;
+import org.matheclipse.core.grpc.PBSessionEvalRequestBytes;
+import org.matheclipse.core.grpc.PBSharedExprBytes;
+import org.matheclipse.core.grpc.PBSymbolTable;
 import org.matheclipse.core.grpc.SymjaServiceGrpc;
 import org.matheclipse.core.grpc.convert.IExpr2Protobuf;
 import org.matheclipse.core.grpc.convert.Protobuf2IExpr;
+import org.matheclipse.core.grpc.convert.SymbolTable;
+import org.matheclipse.core.grpc.convert.WireMethods;
 import org.matheclipse.core.interfaces.IExpr;
-import org.matheclipse.parser.client.SyntaxError;
-import org.matheclipse.parser.client.math.MathException;
+import org.matheclipse.core.interfaces.ISignedNumber;
 
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.protobuf.ByteString;
+
+import io.grpc.Context;
+import io.grpc.Deadline;
+import io.grpc.ServerMethodDefinition;
+import io.grpc.ServerServiceDefinition;
+import io.grpc.ServiceDescriptor;
+import io.grpc.Status;
+import io.grpc.StatusRuntimeException;
+import io.grpc.stub.ServerCallStreamObserver;
+import io.grpc.stub.ServerCalls;
 import io.grpc.stub.StreamObserver;
 
 public class SymjaServiceImpl extends SymjaServiceGrpc.SymjaServiceImplBase {
-	private final static boolean DEBUG = true;
-	private ExprEvaluator fEvaluator;
+	private final static ByteString ABORTED = encode(F.$Aborted);
+
+	private final EvaluatorPool fPool;
+
+	/**
+	 * Runs the evaluations of <code>evalStream</code> calls in parallel. Its size matches the evaluator pool.
+	 */
+	private final ExecutorService fWorkers;
+
+	/**
+	 * Splits the input of <code>evalMap</code> calls into ranges which are evaluated in parallel.
+	 */
+	private final ForkJoinPool fMapWorkers;
+
+	/**
+	 * Fires the server side default deadline of calls without a client deadline.
+	 */
+	private final ScheduledExecutorService fTimer;
+
+	/**
+	 * Time limit in milliseconds for calls without a client deadline. <code>0</code> means no limit.
+	 */
+	private final long fTimeoutMillis;
+
+	/**
+	 * Cache of encoded results or <code>null</code> if caching is disabled.
+	 */
+	private final ResultCache fCache;
+
+	private final EvalMetrics fMetrics;
+
+	/**
+	 * Limits the running and waiting evaluations and shares them fairly between tenants.
+	 */
+	private final AdmissionControl fAdmission;
+
+	/**
+	 * Maximum number of unfinished requests of one <code>evalStream</code> call. More messages are not read from the
+	 * stream until an evaluation is finished.
+	 */
+	private final int fStreamWindow;
+
+	/**
+	 * The open evaluation sessions or <code>null</code> if sessions are disabled.
+	 */
+	private final SessionManager fSessions;
+
+	/**
+	 * The templates of the <code>prepare</code> and <code>execute</code> RPCs or <code>null</code> if templates are
+	 * disabled.
+	 */
+	private final TemplateStore fTemplates;
+
+	/**
+	 * The evaluation limits of the server, which clients can lower per call.
+	 */
+	private final EvalQuota fQuota;
+
+	/**
+	 * Compresses large responses.
+	 */
+	private final ResponseCompression fCompression;
+
+	/**
+	 * Target serialized size in bytes of a batch of an <code>evalChunked</code> result.
+	 */
+	private final int fChunkBytes;
+
+	/**
+	 * Logs failed evaluations.
+	 */
+	private final ErrorLog fErrorLog;
 
 	// private OutputFormFactory fOutputFactory;
 
@@ -46,86 +161,1117 @@ public class SymjaServiceImpl extends SymjaServiceGrpc.SymjaServiceImplBase {
 	// private boolean fPrettyPrinter;
 
 	SymjaServiceImpl() {
-		fEvaluator = new ExprEvaluator(false, 100);
+		this(new EvaluatorPool(Runtime.getRuntime().availableProcessors()));
+	}
+
+	/**
+	 * 
+	 * @param pool
+	 *            the pool of evaluators; every call checks out its own evaluator
+	 */
+	SymjaServiceImpl(EvaluatorPool pool) {
+		this(pool, new ServerOptions());
+	}
+
+	/**
+	 * 
+	 * @param pool
+	 *            the pool of evaluators; every call checks out its own evaluator
+	 * @param options
+	 *            the server options
+	 */
+	public SymjaServiceImpl(EvaluatorPool pool, ServerOptions options) {
+		this(pool, options, new SimpleMetricsRegistry());
+	}
+
+	/**
+	 * 
+	 * @param pool
+	 *            the pool of evaluators; every call checks out its own evaluator
+	 * @param options
+	 *            the server options
+	 * @param registry
+	 *            receives the metrics of the evaluations
+	 */
+	public SymjaServiceImpl(EvaluatorPool pool, ServerOptions options, MetricsRegistry registry) {
+		fPool = pool;
+		fTimeoutMillis = options.getTimeoutMillis();
+		fCache = options.getCacheSize() > 0 ? new ResultCache(options.getCacheSize(), options.getCacheWeight(),
+				options.getCacheTimeToLiveMillis()) : null;
+		fMetrics = new EvalMetrics(registry, pool, fCache);
+		// an admitted call waits for an idle evaluator without a deadline, so at most one call per evaluator runs
+		int maxInFlight = Math.min(options.getMaxInFlight(), pool.size());
+		fAdmission = new AdmissionControl(maxInFlight, options.getMaxQueued(),
+				Math.min(options.getTenantMaxInFlight(), maxInFlight), options.getTenantMaxQueued(),
+				options.getMaxTenants(), options.getMaxPriority(), options.getTenantWeights());
+		fMetrics.registerAdmission(fAdmission);
+		fStreamWindow = 2 * pool.size();
+		// the time limit of a call is its deadline, see withEvalDeadline(); a limit of 0 is the engines own limit, so
+		// that a client can't request a higher limit than the engine has
+		fQuota = new EvalQuota(EvalQuota.engineLimit(options.getMaxIterations(), pool.getIterationLimit()),
+				EvalQuota.engineLimit(options.getMaxRecursion(), pool.getRecursionLimit()), options.getMaxLeaves(),
+				options.getMaxResultLeaves(), 0L);
+		fCompression = new ResponseCompression(options.getCompressionThreshold(), options.getCompression());
+		fChunkBytes = options.getChunkBytes();
+		fErrorLog = new ErrorLog(options.getErrorLogRate(), options.isStackTraces());
+		fTimer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "symja-deadline");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		fSessions = options.getMaxSessions() > 0 ? new SessionManager(options.getMaxSessions(),
+				options.getSessionIdleMillis(), options.getSessionMemory(), fTimer) : null;
+		if (fSessions != null) {
+			fMetrics.registerSessions(fSessions);
+		}
+		fTemplates = options.getMaxTemplates() > 0 ? new TemplateStore(options.getMaxTemplates()) : null;
+		if (fTemplates != null) {
+			registry.registerGauge("symja_templates", "Number of prepared templates", () -> fTemplates.size());
+		}
+		fWorkers = Executors.newFixedThreadPool(pool.size(), new ThreadFactory() {
+			private final AtomicInteger fCounter = new AtomicInteger();
+
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "symja-eval-" + fCounter.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		fMapWorkers = new ForkJoinPool(pool.size());
 		// DecimalFormatSymbols usSymbols = new DecimalFormatSymbols(Locale.US);
 		// DecimalFormat decimalFormat = new DecimalFormat("0.0####", usSymbols);
 		// fOutputFactory = OutputFormFactory.get(true, false, decimalFormat);
 	}
 
 	/**
-	 * Evaluates the given string-expression and returns the result in <code>OutputForm</code>
+	 * Evaluates the given expression with the evaluator checked out for the current call.
+	 * 
+	 * @param evaluator
+	 *            the evaluator checked out from the pool
+	 * @param expression
+	 * @return the result
+	 * @throws StatusRuntimeException
+	 *             with a {@link PBError} in its trailers if the evaluation failed
+	 */
+	public IExpr interpreter(final ExprEvaluator evaluator, final IExpr expression) {
+		return interpreter(Context.ROOT, evaluator, expression);
+	}
+
+	/**
+	 * Evaluates the given expression with the evaluator checked out for the current call. A failed evaluation is
+	 * logged and converted into a status exception with a {@link PBError}.
+	 * 
+	 * @param callContext
+	 *            the context whose cancellation stops the evaluation
+	 * @param evaluator
+	 *            the evaluator checked out from the pool
+	 * @param expression
+	 * @return the result
+	 * @throws StatusRuntimeException
+	 *             with a {@link PBError} in its trailers if the evaluation failed or was stopped
+	 */
+	private IExpr interpreter(final Context callContext, final ExprEvaluator evaluator, final IExpr expression) {
+		try {
+			IExpr result = evaluator.eval(expression);
+			return result != null ? result : F.$Aborted;
+		} catch (final Exception | OutOfMemoryError | StackOverflowError e) {
+			// the engine throws if it was stopped because the call was cancelled or its deadline expired
+			checkCancelled(callContext);
+			PBError error = EvalErrors.classify(e);
+			fErrorLog.log(error, e);
+			throw EvalErrors.asException(error);
+		}
+	}
+
+	/**
+	 * Decode, evaluate and encode one request with an evaluator checked out from the pool. The evaluation is stopped
+	 * cooperatively if the calls deadline expires or the client cancels the call. If the result cache is enabled,
+	 * cacheable requests are answered from the cache, unless the client requested its own limits for the call.
+	 * 
+	 * @param expr
+	 *            the serialized <code>PBExpr</code> request
+	 * @return the serialized result
+	 * @throws InterruptedException
+	 *             if the thread was interrupted while waiting for an evaluator
+	 * @throws StatusRuntimeException
+	 *             with status <code>DEADLINE_EXCEEDED</code> or <code>CANCELLED</code> if the evaluation was stopped,
+	 *             with status <code>RESOURCE_EXHAUSTED</code> if the server is saturated, with a {@link PBError} in
+	 *             its trailers if the evaluation failed
+	 */
+	ByteString evaluate(ByteString expr) throws InterruptedException {
+		if (fCache == null) {
+			return evaluateUncached(expr);
+		}
+		if (!fCache.isCacheable(expr)) {
+			try {
+				return evaluateUncached(expr);
+			} finally {
+				// the request may have changed definitions which cached results depend on
+				fCache.invalidateAll();
+			}
+		}
+		if (fQuota.forCall(Context.current()) != fQuota) {
+			// the cached results were checked against the limits of the server, not against the limits of this call
+			return evaluateUncached(expr);
+		}
+		ByteString response = fCache.get(expr);
+		if (response == null) {
+			long generation = fCache.generation();
+			response = evaluateUncached(expr);
+			if (!response.equals(ABORTED)) {
+				fCache.put(expr, response, generation);
+			}
+		}
+		return response;
+	}
+
+	private ByteString evaluateUncached(ByteString expr) throws InterruptedException {
+		return evaluate(expr, SymjaServiceImpl::decode, SymjaServiceImpl::encode);
+	}
+
+	/**
+	 * Decode, evaluate and encode one request with an evaluator checked out from the pool. The request waits for a free
+	 * slot of the admission control first. The evaluation is stopped cooperatively if the calls deadline expires or the
+	 * client cancels the call.
 	 * 
-	 * @param inputExpression
+	 * @param message
+	 *            the request
+	 * @param decoder
+	 *            converts the request into an expression; runs while the evaluators engine is bound to the thread
+	 * @param encoder
+	 *            converts the result into the response message
+	 * @return the encoded result
+	 * @throws InterruptedException
+	 *             if the thread was interrupted while waiting for an evaluator
+	 */
+	private <M, R> R evaluate(M message, Function<M, IExpr> decoder, Function<IExpr, R> encoder)
+			throws InterruptedException {
+		return evaluate(null, message, decoder, encoder);
+	}
+
+	/**
+	 * Decode, evaluate and encode one request with the evaluator of a session or an evaluator checked out from the
+	 * pool. A session request waits until the previous call of the session is finished, then for a free slot of the
+	 * admission control.
+	 * 
+	 * @param session
+	 *            the session whose evaluator is used or <code>null</code> for a pooled evaluator
+	 * @param message
+	 * @param decoder
+	 * @param encoder
+	 * @return
+	 * @throws InterruptedException
+	 */
+	private <M, R> R evaluate(SessionManager.Session session, M message, Function<M, IExpr> decoder,
+			Function<IExpr, R> encoder) throws InterruptedException {
+		Context.CancellableContext callContext = withEvalDeadline(Context.current());
+		try {
+			checkCancelled(callContext);
+			if (session == null) {
+				AdmissionControl.Tenant tenant = admit(callContext);
+				try {
+					ExprEvaluator evaluator = fPool.checkout();
+					try {
+						return evaluate(callContext, evaluator, message, decoder, encoder);
+					} finally {
+						fPool.release(evaluator);
+					}
+				} finally {
+					fAdmission.release(tenant);
+				}
+			}
+			ExprEvaluator evaluator = session.checkout(timeRemainingNanos(callContext));
+			if (evaluator == null) {
+				throw EvalErrors.asException(PBError.Code.TIMEOUT, "deadline exceeded while waiting for the session");
+			}
+			try {
+				AdmissionControl.Tenant tenant = admit(callContext);
+				try {
+					return evaluate(callContext, evaluator, message, decoder, encoder);
+				} finally {
+					fAdmission.release(tenant);
+				}
+			} finally {
+				session.release();
+			}
+		} finally {
+			// releases the deadline timer
+			callContext.cancel(null);
+		}
+	}
+
+	private static long timeRemainingNanos(Context context) {
+		Deadline deadline = context.getDeadline();
+		return deadline == null ? Long.MAX_VALUE : deadline.timeRemaining(TimeUnit.NANOSECONDS);
+	}
+
+	/**
+	 * Wait for a free evaluation slot of the calls tenant until the deadline of the context.
+	 * 
+	 * @param callContext
+	 * @return the tenant which must be passed to {@link AdmissionControl#release(AdmissionControl.Tenant)}
+	 * @throws InterruptedException
+	 * @throws StatusRuntimeException
+	 *             with status <code>RESOURCE_EXHAUSTED</code> and a {@link PBError} with code <code>REJECTED</code> if
+	 *             the server or the tenant is saturated, with status <code>DEADLINE_EXCEEDED</code> and code
+	 *             <code>TIMEOUT</code> if no slot was free before the deadline
+	 */
+	private AdmissionControl.Tenant admit(Context callContext) throws InterruptedException {
+		AdmissionControl.Tenant tenant;
+		try {
+			tenant = fAdmission.acquire(callContext, timeRemainingNanos(callContext));
+		} catch (StatusRuntimeException sre) {
+			fMetrics.countRejected();
+			throw sre;
+		}
+		if (tenant == null) {
+			throw EvalErrors.asException(PBError.Code.TIMEOUT,
+					"deadline exceeded while waiting for an evaluation slot");
+		}
+		return tenant;
+	}
+
+	/**
+	 * Decode, evaluate and encode one admitted request. The request and its result are checked against the size limits
+	 * of the calls {@link EvalQuota}, and the iteration and recursion limits of the engine are set for the evaluation.
+	 * 
+	 * @param callContext
+	 *            the context whose cancellation stops the evaluation
+	 * @param evaluator
+	 *            the evaluator checked out for this request
+	 * @param message
+	 * @param decoder
+	 * @param encoder
 	 * @return
 	 */
-	public IExpr interpreter(final IExpr expression) {
+	private <M, R> R evaluate(Context.CancellableContext callContext, ExprEvaluator evaluator, M message,
+			Function<M, IExpr> decoder, Function<IExpr, R> encoder) {
+		EvalEngine engine = evaluator.getEvalEngine();
+		EvalQuota quota = fQuota.forCall(callContext);
+		int iterationLimit = engine.getIterationLimit();
+		int recursionLimit = engine.getRecursionLimit();
+		EngineStopper stopper = new EngineStopper(engine);
+		callContext.addListener(stopper, MoreExecutors.directExecutor());
+		String head = EvalMetrics.UNKNOWN;
+		String outcome = EvalMetrics.ERROR;
+		try {
+			long start = System.nanoTime();
+			IExpr request = decoder.apply(message);
+			long decoded = System.nanoTime();
+			head = EvalMetrics.headTag(request);
+			fMetrics.recordPhase(EvalMetrics.DECODE, head, decoded - start);
+			quota.checkRequest(request);
+
+			quota.apply(engine);
+			IExpr result = interpreter(callContext, evaluator, request);
+			// System.out.println(request.toString());
+			long evaluated = System.nanoTime();
+			fMetrics.recordPhase(EvalMetrics.EVAL, head, evaluated - decoded);
+			boolean aborted = F.$Aborted.equals(result);
+			if (aborted) {
+				outcome = EvalMetrics.ABORTED;
+			}
+			checkCancelled(callContext);
+			quota.checkResult(result);
+
+			R response = encoder.apply(result);
+			fMetrics.recordPhase(EvalMetrics.ENCODE, head, System.nanoTime() - evaluated);
+			outcome = aborted ? EvalMetrics.ABORTED : EvalMetrics.OK;
+			return response;
+		} catch (StatusRuntimeException sre) {
+			outcome = countError(sre);
+			throw sre;
+		} finally {
+			fMetrics.countRequest(head, outcome);
+			callContext.removeListener(stopper);
+			stopper.detach();
+			// a session evaluator keeps its engine for the next call
+			engine.setIterationLimit(iterationLimit);
+			engine.setRecursionLimit(recursionLimit);
+		}
+	}
+
+	/**
+	 * Count the error of a failed request.
+	 * 
+	 * @param sre
+	 *            the exception of the failed request
+	 * @return the outcome of the request for {@link EvalMetrics#countRequest(String, String)}
+	 */
+	private String countError(StatusRuntimeException sre) {
+		PBError error = EvalErrors.errorOf(sre);
+		if (error == null) {
+			return EvalMetrics.ERROR;
+		}
+		fMetrics.countError(error.getCode());
+		switch (error.getCode()) {
+		case ABORTED:
+		case TIMEOUT:
+		case CANCELLED:
+			return EvalMetrics.ABORTED;
+		default:
+			return EvalMetrics.ERROR;
+		}
+	}
+
+	/**
+	 * Evaluate the function of the request for every value of its input. The input is split into ranges which are
+	 * evaluated in parallel by the fork/join workers. Every range is admitted separately and uses its own evaluator
+	 * from the pool, so a large map call can't starve the other calls. The elements of a range which isn't admitted
+	 * are errors; the other ranges are still evaluated.
+	 * 
+	 * @param request
+	 * @return the machine number results; elements whose result isn't a real number are NaN and listed as errors
+	 * @throws StatusRuntimeException
+	 *             with status <code>DEADLINE_EXCEEDED</code> or <code>CANCELLED</code> if the evaluation was stopped,
+	 *             with status <code>RESOURCE_EXHAUSTED</code> if not a single range was admitted
+	 */
+	PBMapResponse map(PBMapRequestBytes request) {
+		Context.CancellableContext callContext = withEvalDeadline(Context.current());
+		String outcome = EvalMetrics.ERROR;
+		try {
+			checkCancelled(callContext);
+			int size;
+			switch (request.getInputCase()) {
+			case REAL_INPUT:
+				size = request.getRealInput().getValueCount();
+				break;
+			case INT_INPUT:
+				size = request.getIntInput().getValueCount();
+				break;
+			default:
+				size = 0;
+			}
+			MapCall call = new MapCall(callContext, request, size);
+			int grain = Math.max(1, size / (4 * fPool.size()));
+			fMapWorkers.invoke(new MapTask(call, 0, size, grain));
+			checkCancelled(callContext);
+			if (call.fRejection != null && !call.fAdmitted) {
+				throw call.fRejection;
+			}
+
+			PBPackedVector.Builder packed = PBPackedVector.newBuilder();
+			PBMapResponse.Builder response = PBMapResponse.newBuilder();
+			for (int i = 0; i < size; i++) {
+				packed.addValue(call.fValues[i]);
+				if (call.fErrors[i]) {
+					response.addErrorIndex(i);
+				}
+			}
+			outcome = EvalMetrics.OK;
+			return response.setValue(packed).build();
+		} finally {
+			fMetrics.countRequest(EvalMetrics.headTag(F.Map), outcome);
+			// releases the deadline timer
+			callContext.cancel(null);
+		}
+	}
+
+	/**
+	 * The state of an <code>evalMap</code> call which is shared by the tasks of its ranges.
+	 */
+	private static class MapCall {
+		final Context fCallContext;
+
+		final PBMapRequestBytes fRequest;
+
+		final double[] fValues;
+
+		final boolean[] fErrors;
+
+		/**
+		 * <code>true</code> if at least one range was admitted.
+		 */
+		volatile boolean fAdmitted = false;
+
+		/**
+		 * The first admission failure of a range or <code>null</code>.
+		 */
+		volatile StatusRuntimeException fRejection = null;
+
+		MapCall(Context callContext, PBMapRequestBytes request, int size) {
+			fCallContext = callContext;
+			fRequest = request;
+			fValues = new double[size];
+			fErrors = new boolean[size];
+		}
+	}
+
+	/**
+	 * Evaluates a range of the input of an <code>evalMap</code> call. Ranges larger than the grain size are split in
+	 * halves.
+	 */
+	private class MapTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+
+		private final MapCall fCall;
+
+		private final Context fCallContext;
+
+		private final PBMapRequestBytes fRequest;
+
+		private final int fFrom;
+
+		private final int fTo;
+
+		private final int fGrain;
+
+		MapTask(MapCall call, int from, int to, int grain) {
+			fCall = call;
+			fCallContext = call.fCallContext;
+			fRequest = call.fRequest;
+			fFrom = from;
+			fTo = to;
+			fGrain = grain;
+		}
+
+		@Override
+		protected void compute() {
+			if (fTo - fFrom > fGrain) {
+				int middle = (fFrom + fTo) >>> 1;
+				invokeAll(new MapTask(fCall, fFrom, middle, fGrain), new MapTask(fCall, middle, fTo, fGrain));
+				return;
+			}
+			try {
+				evaluateRange();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw Status.CANCELLED.withDescription("interrupted while waiting for an evaluator")
+						.asRuntimeException();
+			}
+		}
+
+		private void evaluateRange() throws InterruptedException {
+			AdmissionControl.Tenant tenant;
+			try {
+				tenant = admit(fCallContext);
+			} catch (StatusRuntimeException sre) {
+				// a rejected range fails only its own elements
+				for (int i = fFrom; i < fTo; i++) {
+					fCall.fValues[i] = Double.NaN;
+					fCall.fErrors[i] = true;
+				}
+				if (fCall.fRejection == null) {
+					fCall.fRejection = sre;
+				}
+				return;
+			}
+			fCall.fAdmitted = true;
+			try {
+				ExprEvaluator evaluator = fPool.checkout();
+				EvalEngine engine = evaluator.getEvalEngine();
+				int iterationLimit = engine.getIterationLimit();
+				int recursionLimit = engine.getRecursionLimit();
+				EngineStopper stopper = new EngineStopper(engine);
+				fCallContext.addListener(stopper, MoreExecutors.directExecutor());
+				try {
+					long start = System.nanoTime();
+					IExpr function = decode(fRequest.getFunction());
+					EvalQuota quota = fQuota.forCall(fCallContext);
+					quota.checkRequest(function);
+					quota.apply(engine);
+					boolean integers = fRequest.getInputCase() == PBMapRequestBytes.InputCase.INT_INPUT;
+					for (int i = fFrom; i < fTo && !fCallContext.isCancelled(); i++) {
+						IExpr x = integers ? F.integer(fRequest.getIntInput().getValue(i))
+								: F.num(fRequest.getRealInput().getValue(i));
+						IExpr result;
+						try {
+							result = interpreter(fCallContext, evaluator, F.unaryAST1(function, x));
+						} catch (StatusRuntimeException sre) {
+							// a failed element doesn't fail the call; a stopped call ends the loop
+							countError(sre);
+							result = F.$Aborted;
+						}
+						if (result instanceof ISignedNumber) {
+							fCall.fValues[i] = ((ISignedNumber) result).doubleValue();
+						} else {
+							fCall.fValues[i] = Double.NaN;
+							fCall.fErrors[i] = true;
+						}
+					}
+					fMetrics.recordPhase(EvalMetrics.EVAL, EvalMetrics.headTag(F.Map), System.nanoTime() - start);
+				} finally {
+					fCallContext.removeListener(stopper);
+					stopper.detach();
+					engine.setIterationLimit(iterationLimit);
+					engine.setRecursionLimit(recursionLimit);
+					fPool.release(evaluator);
+				}
+			} finally {
+				fAdmission.release(tenant);
+			}
+		}
+	}
+
+	/**
+	 * Derive the context in which a single evaluation runs. The clients deadline is used if it exists, otherwise the
+	 * servers default time limit. A time limit in the calls {@link EvalQuota} shortens the deadline.
+	 * 
+	 * @param context
+	 *            the context of the gRPC call
+	 * @return
+	 */
+	private Context.CancellableContext withEvalDeadline(Context context) {
+		long timeMillis = fQuota.forCall(context).getTimeMillis();
+		if (context.getDeadline() == null && fTimeoutMillis > 0) {
+			timeMillis = timeMillis > 0 ? Math.min(timeMillis, fTimeoutMillis) : fTimeoutMillis;
+		}
+		if (timeMillis > 0) {
+			// an earlier deadline of the context is kept
+			return context.withDeadlineAfter(timeMillis, TimeUnit.MILLISECONDS, fTimer);
+		}
+		return context.withCancellation();
+	}
+
+	/**
+	 * Throw a <code>StatusRuntimeException</code> with status <code>DEADLINE_EXCEEDED</code> or <code>CANCELLED</code>
+	 * and a {@link PBError} if the context was cancelled or its deadline expired.
+	 * 
+	 * @param context
+	 */
+	private static void checkCancelled(Context context) {
+		if (context.isCancelled()) {
+			Deadline deadline = context.getDeadline();
+			if (context.cancellationCause() instanceof TimeoutException || (deadline != null && deadline.isExpired())) {
+				throw EvalErrors.asException(PBError.Code.TIMEOUT, "evaluation deadline exceeded");
+			}
+			throw EvalErrors.asException(PBError.Code.CANCELLED, "evaluation cancelled by the client");
+		}
+	}
+
+	/**
+	 * Requests a stop of the engines current evaluation, when the calls context is cancelled. The engine checks the
+	 * stop request cooperatively in its evaluation loop.
+	 */
+	private static class EngineStopper implements Context.CancellationListener {
+		private EvalEngine fEngine;
+
+		EngineStopper(EvalEngine engine) {
+			fEngine = engine;
+		}
+
+		@Override
+		public synchronized void cancelled(Context context) {
+			if (fEngine != null) {
+				fEngine.stopRequest();
+			}
+		}
+
+		/**
+		 * Called before the engine is given back to the pool, so that a late cancellation cannot stop the next call.
+		 */
+		synchronized void detach() {
+			fEngine = null;
+		}
+	}
+
+	/**
+	 * The <code>eval</code> RPC on the serialized messages, see {@link #bindService()}. The request is decoded directly
+	 * from its bytes and the result is encoded directly into the response bytes, so no generated message objects are
+	 * created and the depth of the expressions isn't limited. The result cache stores the serialized results.
+	 * 
+	 * @param request
+	 * @param responseObserver
+	 */
+	void evalBytes(ByteString request, StreamObserver<ByteString> responseObserver) {
+		ByteString response;
+		try {
+			response = evaluate(request);
+		} catch (StatusRuntimeException sre) {
+			responseObserver.onError(sre);
+			return;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			responseObserver.onError(Status.CANCELLED.withDescription("interrupted while waiting for an evaluator")
+					.asRuntimeException());
+			return;
+		}
+
+		// Send and commit
+		fCompression.sendUnary(responseObserver, response, response.size());
+	}
+
+	/**
+	 * Decode a serialized <code>PBExpr</code>. The decoder reads directly from the bytes of the request; only the
+	 * values of atoms like strings and big integers are copied.
+	 * 
+	 * @param request
+	 * @return
+	 * @throws StatusRuntimeException
+	 *             with status <code>INTERNAL</code> if the bytes aren't a protobuf message and with status
+	 *             <code>INVALID_ARGUMENT</code> and a <code>SYNTAX</code> error if the message isn't a valid
+	 *             expression, for example an AST with more than one head or an unknown built-in symbol id
+	 */
+	private static IExpr decode(ByteString request) {
+		try {
+			return Protobuf2IExpr.CONST.convert(request);
+		} catch (IOException e) {
+			throw invalidMessage(e);
+		} catch (IllegalArgumentException | NullPointerException e) {
+			throw invalidExpression(e);
+		}
+	}
+
+	/**
+	 * Decode a <code>PBSharedExpr</code> message like {@link #decode(ByteString)}.
+	 * 
+	 * @param request
+	 * @return
+	 */
+	private static IExpr decodeShared(PBSharedExprBytes request) {
+		try {
+			return Protobuf2IExpr.CONST.convert(request);
+		} catch (IOException e) {
+			throw invalidMessage(e);
+		} catch (IllegalArgumentException | NullPointerException e) {
+			throw invalidExpression(e);
+		}
+	}
+
+	private static ByteString encode(IExpr result) {
+		return IExpr2Protobuf.CONST.encode(result).toByteString();
+	}
+
+	private static StatusRuntimeException invalidMessage(IOException e) {
+		return Status.INTERNAL.withDescription("Invalid protobuf byte sequence").withCause(e).asRuntimeException();
+	}
+
+	private static StatusRuntimeException invalidExpression(RuntimeException e) {
+		String message = e.getMessage() != null ? e.getMessage() : e.getClass().getSimpleName();
+		return EvalErrors.asException(PBError.Code.SYNTAX, "Invalid expression: " + message);
+	}
+
+	/**
+	 * Bind the generated methods, except those with <code>PBExpr</code> requests or responses, which are bound with
+	 * the descriptors of {@link WireMethods} to the methods of this class which read and write the expressions with
+	 * the converters. The messages on the wire don't change. The service descriptor keeps the schema of
+	 * {@link SymjaServiceGrpc#getServiceDescriptor()}, so that the reflection service still describes the service.
+	 */
+	@Override
+	public ServerServiceDefinition bindService() {
+		List<ServerMethodDefinition<?, ?>> methods = new ArrayList<ServerMethodDefinition<?, ?>>();
+		methods.add(ServerMethodDefinition.create(WireMethods.EVAL, ServerCalls.asyncUnaryCall(this::evalBytes)));
+		methods.add(
+				ServerMethodDefinition.create(WireMethods.EVAL_SHARED, ServerCalls.asyncUnaryCall(this::evalShared)));
+		methods.add(ServerMethodDefinition.create(WireMethods.EVAL_STREAM,
+				ServerCalls.asyncBidiStreamingCall(this::evalStream)));
+		methods.add(ServerMethodDefinition.create(WireMethods.EVAL_CHUNKED,
+				ServerCalls.asyncServerStreamingCall(this::evalChunked)));
+		methods.add(ServerMethodDefinition.create(WireMethods.EVAL_MAP, ServerCalls.asyncUnaryCall(this::evalMap)));
+		methods.add(ServerMethodDefinition.create(WireMethods.PREPARE, ServerCalls.asyncUnaryCall(this::prepare)));
+		methods.add(ServerMethodDefinition.create(WireMethods.EXECUTE, ServerCalls.asyncUnaryCall(this::execute)));
+		methods.add(ServerMethodDefinition.create(WireMethods.EVAL_IN_SESSION,
+				ServerCalls.asyncUnaryCall(this::evalInSession)));
+		Set<String> bound = new HashSet<String>();
+		for (ServerMethodDefinition<?, ?> method : methods) {
+			bound.add(method.getMethodDescriptor().getFullMethodName());
+		}
+		for (ServerMethodDefinition<?, ?> method : super.bindService().getMethods()) {
+			if (!bound.contains(method.getMethodDescriptor().getFullMethodName())) {
+				methods.add(method);
+			}
+		}
+
+		// the definition requires the same descriptor instances as the bound methods
+		ServiceDescriptor generated = SymjaServiceGrpc.getServiceDescriptor();
+		ServiceDescriptor.Builder descriptor = ServiceDescriptor.newBuilder(generated.getName())
+				.setSchemaDescriptor(generated.getSchemaDescriptor());
+		for (ServerMethodDefinition<?, ?> method : methods) {
+			descriptor.addMethod(method.getMethodDescriptor());
+		}
+		ServerServiceDefinition.Builder builder = ServerServiceDefinition.builder(descriptor.build());
+		for (ServerMethodDefinition<?, ?> method : methods) {
+			builder.addMethod(method);
+		}
+		return builder.build();
+	}
+
+	void evalShared(PBSharedExprBytes expr, StreamObserver<PBSharedExprBytes> responseObserver) {
+		PBSharedExprBytes response;
+		try {
+			response = evaluate(expr, SymjaServiceImpl::decodeShared, IExpr2Protobuf.CONST::encodeShared);
+		} catch (StatusRuntimeException sre) {
+			responseObserver.onError(sre);
+			return;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			responseObserver.onError(Status.CANCELLED.withDescription("interrupted while waiting for an evaluator")
+					.asRuntimeException());
+			return;
+		}
+		fCompression.sendUnary(responseObserver, response);
+	}
+
+	StreamObserver<PBEvalRequestBytes> evalStream(final StreamObserver<PBEvalResponseBytes> responseObserver) {
+		ServerCallStreamObserver<PBEvalResponseBytes> serverObserver = //
+				(ServerCallStreamObserver<PBEvalResponseBytes>) responseObserver;
+		// read only as many requests as can be evaluated soon; the client is slowed down by gRPC flow control
+		serverObserver.disableAutoInboundFlowControl();
+		serverObserver.request(fStreamWindow);
+		fCompression.startStream(serverObserver);
+		return new EvalStreamObserver(serverObserver);
+	}
+
+	void evalChunked(ByteString expr, StreamObserver<PBChunkBytes> responseObserver) {
+		ServerCallStreamObserver<PBChunkBytes> serverObserver = //
+				(ServerCallStreamObserver<PBChunkBytes>) responseObserver;
+		ChunkedResultSender sender = new ChunkedResultSender(serverObserver, fCompression, fChunkBytes);
 		IExpr result;
-		final StringWriter buf = new StringWriter();
-		try {
-			// if (fSeconds <= 0) {
-			result = fEvaluator.eval(expression);
-			// } else {
-			// result = fEvaluator.evaluateWithTimeout(inputExpression, fSeconds, TimeUnit.SECONDS, true);
-			// }
-			if (result != null) {
-				return result;
-			}
-		} catch (final AbortException re) {
-			if (DEBUG) {
-				re.printStackTrace();
-			}
-			// try {
-			// return printResult(F.Aborted);
-			// } catch (IOException e) {
-			// Validate.printException(buf, e);
-			// return "";
-			// }
-		} catch (final SyntaxError se) {
-			if (DEBUG) {
-				se.printStackTrace();
-			}
-			// String msg = se.getMessage();
-			// System.err.println();
-			// System.err.println(msg);
-			// return "";
-		} catch (final RuntimeException re) {
-			if (DEBUG) {
-				re.printStackTrace();
-			}
-			Throwable me = re.getCause();
-			if (me instanceof MathException) {
-				Validate.printException(buf, me);
-			} else {
-				Validate.printException(buf, re);
-			}
-		} catch (final Exception e) {
-			if (DEBUG) {
-				e.printStackTrace();
-			}
-			Validate.printException(buf, e);
-		} catch (final OutOfMemoryError e) {
-			if (DEBUG) {
-				e.printStackTrace();
-			}
-			Validate.printException(buf, e);
-		} catch (final StackOverflowError e) {
-			if (DEBUG) {
-				e.printStackTrace();
-			}
-			Validate.printException(buf, e);
-		}
-		return F.$Aborted;
+		try {
+			// the result is converted batch by batch in the sender, not at once
+			result = evaluate(expr, SymjaServiceImpl::decode, Function.identity());
+		} catch (StatusRuntimeException sre) {
+			responseObserver.onError(sre);
+			return;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			responseObserver.onError(Status.CANCELLED.withDescription("interrupted while waiting for an evaluator")
+					.asRuntimeException());
+			return;
+		}
+		sender.start(result);
+	}
+
+	void evalMap(PBMapRequestBytes request, StreamObserver<PBMapResponse> responseObserver) {
+		PBMapResponse response;
+		try {
+			response = map(request);
+		} catch (StatusRuntimeException sre) {
+			responseObserver.onError(sre);
+			return;
+		}
+		fCompression.sendUnary(responseObserver, response);
+	}
+
+	void prepare(PBPrepareRequestBytes request, StreamObserver<PBPrepared> responseObserver) {
+		PBPrepared response;
+		try {
+			response = PBPrepared.newBuilder().setHandle(templates().prepare(request)).build();
+		} catch (StatusRuntimeException sre) {
+			responseObserver.onError(sre);
+			return;
+		}
+		responseObserver.onNext(response);
+		responseObserver.onCompleted();
+	}
+
+	void execute(PBExecuteRequest request, StreamObserver<ByteString> responseObserver) {
+		ByteString response;
+		try {
+			// binding the slot values replaces the decode phase
+			response = evaluate(request, templates()::bind, SymjaServiceImpl::encode);
+		} catch (StatusRuntimeException sre) {
+			responseObserver.onError(sre);
+			return;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			responseObserver.onError(Status.CANCELLED.withDescription("interrupted while waiting for an evaluator")
+					.asRuntimeException());
+			return;
+		}
+		fCompression.sendUnary(responseObserver, response, response.size());
+	}
+
+	private TemplateStore templates() {
+		if (fTemplates == null) {
+			throw Status.UNIMPLEMENTED.withDescription("templates are disabled on this server").asRuntimeException();
+		}
+		return fTemplates;
 	}
 
 	@Override
-	public void eval(PBExpr expr, StreamObserver<PBExpr> responseObserver) {
+	public void openSession(PBOpenSessionRequest request, StreamObserver<PBSession> responseObserver) {
+		SessionManager.Session session;
+		try {
+			session = sessions().open();
+		} catch (StatusRuntimeException sre) {
+			responseObserver.onError(sre);
+			return;
+		}
+		responseObserver.onNext(PBSession.newBuilder().setId(session.getId()).build());
+		responseObserver.onCompleted();
+	}
 
-		IExpr request = Protobuf2IExpr.CONST.convert(expr);
-		IExpr result = interpreter(request);
-		// System.out.println(request.toString());
+	void evalInSession(PBSessionEvalRequestBytes request, StreamObserver<ByteString> responseObserver) {
+		ByteString response;
+		SessionManager.Session session = null;
+		long charge = 0L;
+		try {
+			session = sessions().get(request.getSessionId());
+			ByteString expr = request.getExpr();
+			if (!ResultCache.isSideEffectFree(expr)) {
+				// charged in advance, so that a session at its limit can't add definitions
+				session.charge(expr.size());
+				charge = expr.size();
+			}
+			response = evaluate(session, expr, SymjaServiceImpl::decode, SymjaServiceImpl::encode);
+			charge = 0L;
+		} catch (StatusRuntimeException sre) {
+			responseObserver.onError(sre);
+			return;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			responseObserver.onError(Status.CANCELLED.withDescription("interrupted while waiting for the session")
+					.asRuntimeException());
+			return;
+		} finally {
+			if (charge > 0L) {
+				// the request was rejected, failed or cancelled
+				session.refund(charge);
+			}
+		}
+		fCompression.sendUnary(responseObserver, response, response.size());
+	}
 
-		// Send and commit
-		responseObserver.onNext(IExpr2Protobuf.CONST.convert(result));
+	@Override
+	public void closeSession(PBSession request, StreamObserver<PBSession> responseObserver) {
+		try {
+			if (!sessions().close(request.getId())) {
+				throw Status.NOT_FOUND.withDescription("unknown or expired session: " + request.getId())
+						.asRuntimeException();
+			}
+		} catch (StatusRuntimeException sre) {
+			responseObserver.onError(sre);
+			return;
+		}
+		responseObserver.onNext(request);
 		responseObserver.onCompleted();
 	}
+
+	/**
+	 * The handshake of the built-in symbol ids. The names are only sent if the client has a different table.
+	 */
+	@Override
+	public void symbolTable(PBSymbolTable request, StreamObserver<PBSymbolTable> responseObserver) {
+		SymbolTable table = SymbolTable.DEFAULT;
+		responseObserver.onNext(table.toMessage(request.getVersion() != table.getVersion()));
+		responseObserver.onCompleted();
+	}
+
+	private SessionManager sessions() {
+		if (fSessions == null) {
+			throw Status.UNIMPLEMENTED.withDescription("sessions are disabled on this server").asRuntimeException();
+		}
+		return fSessions;
+	}
+
+	public ResponseCompression getCompression() {
+		return fCompression;
+	}
+
+	/**
+	 * 
+	 * @return the admission control, whose interceptor reads the tenants of the calls
+	 */
+	public AdmissionControl getAdmission() {
+		return fAdmission;
+	}
+
+	/**
+	 * 
+	 * @return the evaluation limits of the server
+	 */
+	public EvalQuota getQuota() {
+		return fQuota;
+	}
+
+	public EvalMetrics getMetrics() {
+		return fMetrics;
+	}
+
+	/**
+	 * 
+	 * @return the result cache or <code>null</code> if caching is disabled
+	 */
+	public ResultCache getCache() {
+		return fCache;
+	}
+
+	/**
+	 * Replay a warm-up corpus in parallel through the decode, evaluation and encode path of the <code>eval</code> RPC,
+	 * so that the converters and the rules used by real requests are compiled by the JIT before the server reports
+	 * ready. The replayed requests are counted in the metrics and fill the result cache.
+	 * 
+	 * @param corpus
+	 * @return the number of successfully evaluated requests
+	 * @throws InterruptedException
+	 */
+	public int replay(List<PBExpr> corpus) throws InterruptedException {
+		List<Callable<ByteString>> tasks = new ArrayList<Callable<ByteString>>(corpus.size());
+		for (final PBExpr expr : corpus) {
+			final ByteString request = expr.toByteString();
+			tasks.add(() -> evaluate(request));
+		}
+		int evaluated = 0;
+		for (Future<ByteString> result : fWorkers.invokeAll(tasks)) {
+			try {
+				result.get();
+				evaluated++;
+			} catch (ExecutionException ee) {
+				// failed requests were already logged
+			}
+		}
+		return evaluated;
+	}
+
+	/**
+	 * Stops the worker threads of the <code>evalStream</code> and <code>evalMap</code> calls and closes all sessions.
+	 */
+	public void shutdown() {
+		if (fSessions != null) {
+			fSessions.shutdown();
+		}
+		fWorkers.shutdownNow();
+		fMapWorkers.shutdownNow();
+		fTimer.shutdownNow();
+	}
+
+	/**
+	 * Receives the requests of one <code>evalStream</code> call and evaluates each of them as a separate task of the
+	 * worker executor. A response is sent as soon as its evaluation is finished, the stream is completed after the
+	 * client half-closed and all pending evaluations are done. The next request is read from the stream when an
+	 * evaluation is finished and the transport is ready for more responses. While the client doesn't read its
+	 * responses, no more requests are read, so at most the window of unfinished requests is buffered.
+	 * <p>
+	 * Every request gets exactly one response, with its result or with a {@link PBError}, unless the stream ends
+	 * before: the client cancelled the call, the calls deadline expired, the thread was interrupted or the server is
+	 * shutting down.
+	 */
+	private class EvalStreamObserver implements StreamObserver<PBEvalRequestBytes> {
+		private final ServerCallStreamObserver<PBEvalResponseBytes> fResponseObserver;
+
+		/**
+		 * Number of running evaluations plus one for the open inbound stream.
+		 */
+		private final AtomicInteger fPending = new AtomicInteger(1);
+
+		private volatile boolean fCancelled = false;
+
+		/**
+		 * Number of requests which weren't read yet, because the transport wasn't ready when an evaluation finished.
+		 * Guarded by <code>fResponseObserver</code>.
+		 */
+		private int fDeferred = 0;
+
+		EvalStreamObserver(ServerCallStreamObserver<PBEvalResponseBytes> responseObserver) {
+			fResponseObserver = responseObserver;
+			fResponseObserver.setOnReadyHandler(this::requestDeferred);
+		}
+
+		@Override
+		public void onNext(final PBEvalRequestBytes request) {
+			fPending.incrementAndGet();
+			try {
+				// propagate the calls deadline and cancellation to the worker thread
+				fWorkers.execute(Context.current().wrap(new Runnable() {
+					@Override
+					public void run() {
+						try {
+							if (!fCancelled) {
+								ByteString result = evaluate(request.getExpr());
+								send(PBEvalResponseBytes.newBuilder().//
+										setId(request.getId()).//
+										setResult(result).//
+										build());
+							}
+						} catch (StatusRuntimeException sre) {
+							// a status without an error, for example an expired deadline, fails only this request
+							PBError error = EvalErrors.errorOf(sre);
+							sendError(request.getId(), error != null ? error : EvalErrors.fromStatus(sre.getStatus()));
+						} catch (RuntimeException | OutOfMemoryError | StackOverflowError e) {
+							// for example from decoding or encoding; the request fails, not the stream
+							PBError error = EvalErrors.classify(e);
+							fErrorLog.log(error, e);
+							sendError(request.getId(), error);
+						} catch (InterruptedException e) {
+							Thread.currentThread().interrupt();
+							fail(Status.CANCELLED.withDescription("interrupted while waiting for an evaluator"));
+						} finally {
+							requestNext();
+							done();
+						}
+					}
+				}));
+			} catch (RejectedExecutionException ree) {
+				// the request isn't answered, so the stream must end
+				fPending.decrementAndGet();
+				fail(Status.UNAVAILABLE.withDescription("server is shutting down"));
+			}
+		}
+
+		@Override
+		public void onError(Throwable t) {
+			// the client cancelled the call; skip all evaluations which didn't start yet
+			fCancelled = true;
+		}
+
+		@Override
+		public void onCompleted() {
+			done();
+		}
+
+		private void requestNext() {
+			synchronized (fResponseObserver) {
+				if (fCancelled) {
+					return;
+				}
+				if (fResponseObserver.isReady()) {
+					fResponseObserver.request(1);
+				} else {
+					// the client doesn't read its responses; resume in the on ready handler
+					fDeferred++;
+				}
+			}
+		}
+
+		private void requestDeferred() {
+			synchronized (fResponseObserver) {
+				if (!fCancelled && fDeferred > 0 && fResponseObserver.isReady()) {
+					fResponseObserver.request(fDeferred);
+					fDeferred = 0;
+				}
+			}
+		}
+
+		private void sendError(long id, PBError error) {
+			send(PBEvalResponseBytes.newBuilder().//
+					setId(id).//
+					setError(error).//
+					build());
+		}
+
+		private void send(PBEvalResponseBytes response) {
+			synchronized (fResponseObserver) {
+				// a call cancelled by gRPC, for example because its deadline expired, rejects all messages
+				if (!fCancelled && !fResponseObserver.isCancelled()) {
+					fCompression.prepareMessage(fResponseObserver, response);
+					fResponseObserver.onNext(response);
+				}
+			}
+		}
+
+		private void fail(Status status) {
+			synchronized (fResponseObserver) {
+				if (!fCancelled) {
+					fCancelled = true;
+					fResponseObserver.onError(status.asRuntimeException());
+				}
+			}
+		}
+
+		private void done() {
+			if (fPending.decrementAndGet() == 0) {
+				synchronized (fResponseObserver) {
+					if (!fCancelled) {
+						fCancelled = true;
+						fResponseObserver.onCompleted();
+					}
+				}
+			}
+		}
+	}
 }
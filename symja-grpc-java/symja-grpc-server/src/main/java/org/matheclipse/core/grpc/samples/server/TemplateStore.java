@@ -0,0 +1,280 @@
+package org.matheclipse.core.grpc.samples.server;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.matheclipse.core.expression.F;
+import org.matheclipse.core.grpc.PBExecuteRequest;
+import org.matheclipse.core.grpc.PBPackedIntVector;
+import org.matheclipse.core.grpc.PBPackedVector;
+import org.matheclipse.core.grpc.PBPrepareRequestBytes;
+import org.matheclipse.core.grpc.convert.Protobuf2IExpr;
+import org.matheclipse.core.interfaces.IAST;
+import org.matheclipse.core.interfaces.IASTAppendable;
+import org.matheclipse.core.interfaces.IExpr;
+import org.matheclipse.core.interfaces.ISymbol;
+
+import com.google.protobuf.ByteString;
+
+import io.grpc.Status;
+
+/**
+ * The prepared templates of the <code>prepare</code> and <code>execute</code> RPCs. A template is decoded once when it
+ * is prepared; an execution only substitutes the slot values into the decoded expression. The least recently used
+ * templates are evicted when the maximum number of templates is reached.
+ * <p>
+ * The handle of a template is a hash of its prepare request. The request is kept with the template, so that another
+ * template with the same handle is rejected instead of silently sharing it.
+ */
+public class TemplateStore {
+
+	private static class Template {
+		/**
+		 * The serialized prepare request, which tells templates with the same handle apart.
+		 */
+		final ByteString fRequest;
+		final IExpr fExpr;
+		final ISymbol[] fSlots;
+
+		Template(ByteString request, IExpr expr, ISymbol[] slots) {
+			fRequest = request;
+			fExpr = expr;
+			fSlots = slots;
+		}
+	}
+
+	/**
+	 * An AST whose head and arguments are substituted one after the other. The AST is only copied when a child
+	 * changes, so the parts of a template without slots are shared by all executions.
+	 */
+	private static class Frame {
+		final IAST fAST;
+		int fIndex = 0;
+		IASTAppendable fCopy = null;
+
+		Frame(IAST ast) {
+			fAST = ast;
+		}
+
+		void add(IExpr child) {
+			if (fCopy == null) {
+				if (child == fAST.get(fIndex)) {
+					fIndex++;
+					return;
+				}
+				fCopy = F.ast(fIndex == 0 ? child : fAST.head(), fAST.size(), false);
+				for (int i = 1; i < fIndex; i++) {
+					fCopy.append(fAST.get(i));
+				}
+				if (fIndex > 0) {
+					fCopy.append(child);
+				}
+			} else {
+				fCopy.append(child);
+			}
+			fIndex++;
+		}
+
+		IExpr result() {
+			return fCopy != null ? fCopy : fAST;
+		}
+	}
+
+	private final LinkedHashMap<Long, Template> fTemplates;
+
+	/**
+	 *
+	 * @param maximumSize
+	 *            the maximum number of stored templates
+	 */
+	public TemplateStore(final int maximumSize) {
+		fTemplates = new LinkedHashMap<Long, Template>(64, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Long, Template> eldest) {
+				return size() > maximumSize;
+			}
+		};
+	}
+
+	/**
+	 * Decode and store a template. Preparing the same template again only refreshes it.
+	 *
+	 * @param request
+	 * @return the handle of the template
+	 * @throws io.grpc.StatusRuntimeException
+	 *             with status <code>INVALID_ARGUMENT</code> if the template is empty or invalid or a slot name is
+	 *             empty, with status <code>ALREADY_EXISTS</code> if another template with the same handle is stored
+	 */
+	public long prepare(final PBPrepareRequestBytes request) {
+		ByteString bytes = request.toByteString();
+		long handle = handle(bytes);
+		synchronized (fTemplates) {
+			if (isStored(handle, bytes)) {
+				return handle;
+			}
+		}
+		IExpr expr;
+		try {
+			expr = Protobuf2IExpr.CONST.convert(request.getTemplate());
+		} catch (IOException | IllegalArgumentException | NullPointerException e) {
+			throw Status.INVALID_ARGUMENT.withDescription("invalid template").withCause(e).asRuntimeException();
+		}
+		if (expr == null) {
+			throw Status.INVALID_ARGUMENT.withDescription("empty template").asRuntimeException();
+		}
+		ISymbol[] slots = new ISymbol[request.getSlotCount()];
+		for (int i = 0; i < slots.length; i++) {
+			String name = request.getSlot(i);
+			if (name.isEmpty()) {
+				throw Status.INVALID_ARGUMENT.withDescription("empty slot name").asRuntimeException();
+			}
+			slots[i] = F.$s(name);
+		}
+		synchronized (fTemplates) {
+			// another call may have prepared a template with the same handle in the meantime
+			if (!isStored(handle, bytes)) {
+				fTemplates.put(handle, new Template(bytes, expr, slots));
+			}
+		}
+		return handle;
+	}
+
+	/**
+	 * Must be called while the lock of the templates is held.
+	 *
+	 * @param handle
+	 * @param request
+	 *            the serialized prepare request
+	 * @return <code>true</code> if the template of the request is stored
+	 * @throws io.grpc.StatusRuntimeException
+	 *             with status <code>ALREADY_EXISTS</code> if another template has the same handle
+	 */
+	private boolean isStored(long handle, ByteString request) {
+		Template template = fTemplates.get(handle);
+		if (template == null) {
+			return false;
+		}
+		if (!template.fRequest.equals(request)) {
+			throw Status.ALREADY_EXISTS.withDescription("another template has the handle " + handle)
+					.asRuntimeException();
+		}
+		return true;
+	}
+
+	/**
+	 * Substitute the slot values of the request into its template. The template is traversed iteratively, so its
+	 * depth isn't limited.
+	 *
+	 * @param request
+	 * @return the expression which must be evaluated
+	 * @throws io.grpc.StatusRuntimeException
+	 *             with status <code>NOT_FOUND</code> if the template doesn't exist or <code>INVALID_ARGUMENT</code> if
+	 *             the number of values doesn't match the number of slots
+	 */
+	public IExpr bind(final PBExecuteRequest request) {
+		Template template;
+		synchronized (fTemplates) {
+			template = fTemplates.get(request.getHandle());
+		}
+		if (template == null) {
+			throw Status.NOT_FOUND.withDescription("unknown or evicted template: " + request.getHandle())
+					.asRuntimeException();
+		}
+		ISymbol[] slots = template.fSlots;
+		HashMap<ISymbol, IExpr> values = new HashMap<ISymbol, IExpr>();
+		switch (request.getValuesCase()) {
+		case REAL_VALUES:
+			PBPackedVector reals = request.getRealValues();
+			checkCount(reals.getValueCount(), slots.length);
+			for (int i = 0; i < slots.length; i++) {
+				values.put(slots[i], F.num(reals.getValue(i)));
+			}
+			break;
+		case INT_VALUES:
+			PBPackedIntVector ints = request.getIntValues();
+			checkCount(ints.getValueCount(), slots.length);
+			for (int i = 0; i < slots.length; i++) {
+				values.put(slots[i], F.integer(ints.getValue(i)));
+			}
+			break;
+		default:
+			checkCount(0, slots.length);
+		}
+		if (slots.length == 0) {
+			return template.fExpr;
+		}
+		return substitute(template.fExpr, values);
+	}
+
+	/**
+	 * Replace the slot symbols of the expression by their values.
+	 *
+	 * @param expr
+	 * @param values
+	 * @return
+	 */
+	private static IExpr substitute(final IExpr expr, final Map<ISymbol, IExpr> values) {
+		if (!(expr instanceof IAST)) {
+			return substituteAtom(expr, values);
+		}
+		ArrayDeque<Frame> stack = new ArrayDeque<Frame>();
+		stack.push(new Frame((IAST) expr));
+		while (true) {
+			Frame frame = stack.peek();
+			if (frame.fIndex < frame.fAST.size()) {
+				IExpr child = frame.fAST.get(frame.fIndex);
+				if (child instanceof IAST) {
+					stack.push(new Frame((IAST) child));
+				} else {
+					frame.add(substituteAtom(child, values));
+				}
+				continue;
+			}
+			stack.pop();
+			if (stack.isEmpty()) {
+				return frame.result();
+			}
+			stack.peek().add(frame.result());
+		}
+	}
+
+	private static IExpr substituteAtom(final IExpr atom, final Map<ISymbol, IExpr> values) {
+		IExpr value = atom instanceof ISymbol ? values.get(atom) : null;
+		return value != null ? value : atom;
+	}
+
+	private static void checkCount(int values, int slots) {
+		if (values != slots) {
+			throw Status.INVALID_ARGUMENT.withDescription("expected " + slots + " slot values, got " + values)
+					.asRuntimeException();
+		}
+	}
+
+	/**
+	 * A 64-bit FNV-1a hash of the serialized request, so that every server assigns the same handle to the same
+	 * template.
+	 *
+	 * @param bytes
+	 * @return
+	 */
+	static long handle(final ByteString bytes) {
+		long hash = 0xcbf29ce484222325L;
+		ByteString.ByteIterator iter = bytes.iterator();
+		while (iter.hasNext()) {
+			hash ^= iter.nextByte() & 0xff;
+			hash *= 0x100000001b3L;
+		}
+		return hash;
+	}
+
+	public int size() {
+		synchronized (fTemplates) {
+			return fTemplates.size();
+		}
+	}
+}
@@ -0,0 +1,53 @@
+package org.matheclipse.core.grpc.samples.server;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.matheclipse.core.eval.ExprEvaluator;
+import org.matheclipse.core.grpc.PBExpr;
+import org.matheclipse.core.grpc.convert.IExpr2Protobuf;
+
+/**
+ * Reads the warm-up corpus of the server: a text file with one expression per line, for example a sample of the
+ * production requests. Empty lines and lines starting with <code>#</code> are skipped.
+ */
+public class WarmUpCorpus {
+
+	private WarmUpCorpus() {
+	}
+
+	/**
+	 * Parse and encode the expressions of the corpus file. Lines which can't be parsed are reported and skipped.
+	 *
+	 * @param file
+	 * @param evaluator
+	 *            the evaluator whose parser is used
+	 * @return the encoded requests
+	 * @throws IOException
+	 */
+	public static List<PBExpr> read(File file, ExprEvaluator evaluator) throws IOException {
+		List<PBExpr> corpus = new ArrayList<PBExpr>();
+		try (BufferedReader reader = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8)) {
+			String line;
+			int lineNumber = 0;
+			while ((line = reader.readLine()) != null) {
+				lineNumber++;
+				line = line.trim();
+				if (line.isEmpty() || line.startsWith("#")) {
+					continue;
+				}
+				try {
+					corpus.add(IExpr2Protobuf.CONST.convert(evaluator.parse(line)));
+				} catch (RuntimeException rex) {
+					System.out.println("Skipping warm-up line " + lineNumber + ": " + rex.getMessage());
+				}
+			}
+		}
+		return corpus;
+	}
+}
@@ -0,0 +1,85 @@
+package org.matheclipse.core.grpc.convert;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.IOException;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.matheclipse.core.basic.Config;
+import org.matheclipse.core.expression.F;
+import org.matheclipse.core.grpc.PBSharedExprBytes;
+import org.matheclipse.core.interfaces.IExpr;
+
+import com.google.protobuf.ByteString;
+
+/**
+ * Round trips of expressions which are far deeper than the recursion limit of the generated parser. The expressions
+ * are compared by their encoded bytes, because <code>equals()</code> recurses through all levels.
+ */
+public class DeepExprTest {
+
+	public static final int DEPTH = 100000;
+
+	@BeforeClass
+	public static void initSymbols() {
+		Config.FILESYSTEM_ENABLED = true;
+		F.initSymbols(null, null, true);
+	}
+
+	/**
+	 * <code>Hold(f(f(...f(x)...)))</code> with <code>depth</code> levels of <code>f</code>.
+	 *
+	 * @param depth
+	 * @param x
+	 * @return
+	 */
+	public static IExpr deep(int depth, IExpr x) {
+		IExpr expr = x;
+		for (int i = 0; i < depth; i++) {
+			expr = F.unaryAST1(F.f, expr);
+		}
+		return F.unaryAST1(F.Hold, expr);
+	}
+
+	public static ByteString encode(IExpr x) {
+		return IExpr2Protobuf.CONST.encode(x).toByteString();
+	}
+
+	@Test
+	public void testEncodeDecode() throws IOException {
+		ByteString bytes = encode(deep(DEPTH, F.x));
+		IExpr decoded = Protobuf2IExpr.CONST.convert(bytes);
+		assertEquals(bytes, encode(decoded));
+	}
+
+	@Test
+	public void testEncodeDecodeShared() throws IOException {
+		IExpr held = deep(DEPTH, F.x);
+		// the deep argument occurs twice and is sent as a shared node
+		IExpr expr = F.List(held, held);
+		PBSharedExprBytes shared = IExpr2Protobuf.CONST.encodeShared(expr);
+		IExpr decoded = Protobuf2IExpr.CONST.convert(shared);
+		assertEquals(encode(expr), encode(decoded));
+		assertEquals(shared, IExpr2Protobuf.CONST.encodeShared(decoded));
+	}
+
+	@Test
+	public void testEncodeSharedEqualSubtrees() throws IOException {
+		// two distinct, but structurally equal deep arguments are sent as one shared node
+		IExpr expr = F.List(deep(DEPTH, F.x), deep(DEPTH, F.x));
+		PBSharedExprBytes shared = IExpr2Protobuf.CONST.encodeShared(expr);
+		assertEquals(1, shared.getNodeCount());
+		assertEquals(encode(expr), encode(Protobuf2IExpr.CONST.convert(shared)));
+	}
+
+	@Test
+	public void testEncodeSharedPackedRows() throws IOException {
+		// the equal rows are sent inside the packed matrix, not as nodes
+		IExpr row = F.List(F.num(1.0), F.num(2.0));
+		IExpr expr = F.unaryAST1(F.f, F.List(row, row));
+		PBSharedExprBytes shared = IExpr2Protobuf.CONST.encodeShared(expr);
+		assertEquals(0, shared.getNodeCount());
+		assertEquals(encode(expr), encode(Protobuf2IExpr.CONST.convert(shared)));
+	}
+}
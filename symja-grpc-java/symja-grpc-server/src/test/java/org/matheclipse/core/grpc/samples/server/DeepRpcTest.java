@@ -0,0 +1,283 @@
+package org.matheclipse.core.grpc.samples.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.matheclipse.core.expression.F;
+import org.matheclipse.core.grpc.PBAST;
+import org.matheclipse.core.grpc.PBBuiltinSymbol;
+import org.matheclipse.core.grpc.PBChunkBytes;
+import org.matheclipse.core.grpc.PBError;
+import org.matheclipse.core.grpc.PBEvalRequestBytes;
+import org.matheclipse.core.grpc.PBEvalResponseBytes;
+import org.matheclipse.core.grpc.PBExecuteRequest;
+import org.matheclipse.core.grpc.PBExpr;
+import org.matheclipse.core.grpc.PBMapRequestBytes;
+import org.matheclipse.core.grpc.PBMapResponse;
+import org.matheclipse.core.grpc.PBOpenSessionRequest;
+import org.matheclipse.core.grpc.PBPackedVector;
+import org.matheclipse.core.grpc.PBPrepareRequestBytes;
+import org.matheclipse.core.grpc.PBPrepared;
+import org.matheclipse.core.grpc.PBSession;
+import org.matheclipse.core.grpc.PBSessionEvalRequestBytes;
+import org.matheclipse.core.grpc.PBSharedExprBytes;
+import org.matheclipse.core.grpc.PBSymbol;
+import org.matheclipse.core.grpc.SymjaServiceGrpc;
+import org.matheclipse.core.grpc.convert.DeepExprTest;
+import org.matheclipse.core.grpc.convert.IExpr2Protobuf;
+import org.matheclipse.core.grpc.convert.Protobuf2IExpr;
+import org.matheclipse.core.grpc.convert.WireMethods;
+import org.matheclipse.core.interfaces.IExpr;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.CodedOutputStream;
+
+import io.grpc.CallOptions;
+import io.grpc.ManagedChannel;
+import io.grpc.MethodDescriptor;
+import io.grpc.Server;
+import io.grpc.Status;
+import io.grpc.StatusRuntimeException;
+import io.grpc.inprocess.InProcessChannelBuilder;
+import io.grpc.inprocess.InProcessServerBuilder;
+import io.grpc.stub.ClientCalls;
+import io.grpc.stub.StreamObserver;
+
+/**
+ * Every RPC with a request and a result which are far deeper than the recursion limit of the generated parser. The
+ * result cache is enabled, so that the cache keys of deep requests are covered, too.
+ */
+public class DeepRpcTest {
+
+	private static SymjaServiceImpl fService;
+
+	private static Server fServer;
+
+	private static ManagedChannel fChannel;
+
+	@BeforeClass
+	public static void startServer() throws IOException {
+		DeepExprTest.initSymbols();
+		String name = "symja-deep-" + System.nanoTime();
+		ServerOptions options = new ServerOptions();
+		options.setCacheSize(16);
+		fService = new SymjaServiceImpl(new EvaluatorPool(2), options);
+		fServer = InProcessServerBuilder.forName(name).addService(fService).build().start();
+		fChannel = InProcessChannelBuilder.forName(name).build();
+	}
+
+	@AfterClass
+	public static void stopServer() throws InterruptedException {
+		fChannel.shutdownNow().awaitTermination(5, TimeUnit.SECONDS);
+		fServer.shutdownNow().awaitTermination(5, TimeUnit.SECONDS);
+		fService.shutdown();
+	}
+
+	private static <ReqT, RespT> RespT call(MethodDescriptor<ReqT, RespT> method, ReqT request) {
+		return ClientCalls.blockingUnaryCall(fChannel, method, CallOptions.DEFAULT, request);
+	}
+
+	private static ByteString deep() {
+		return DeepExprTest.encode(DeepExprTest.deep(DeepExprTest.DEPTH, F.x));
+	}
+
+	@Test
+	public void testEval() {
+		ByteString request = deep();
+		assertEquals(request, call(WireMethods.EVAL, request));
+		// the second call is answered from the cache
+		assertEquals(request, call(WireMethods.EVAL, request));
+	}
+
+	@Test
+	public void testEvalShared() throws IOException {
+		IExpr held = DeepExprTest.deep(DeepExprTest.DEPTH, F.x);
+		IExpr expr = F.List(held, held);
+		PBSharedExprBytes response = call(WireMethods.EVAL_SHARED, IExpr2Protobuf.CONST.encodeShared(expr));
+		assertEquals(DeepExprTest.encode(expr), DeepExprTest.encode(Protobuf2IExpr.CONST.convert(response)));
+	}
+
+	@Test
+	public void testEvalStream() throws Exception {
+		ByteString request = deep();
+		final List<PBEvalResponseBytes> responses = new ArrayList<PBEvalResponseBytes>();
+		final CompletableFuture<List<PBEvalResponseBytes>> result = new CompletableFuture<List<PBEvalResponseBytes>>();
+		StreamObserver<PBEvalRequestBytes> requests = ClientCalls.asyncBidiStreamingCall(
+				fChannel.newCall(WireMethods.EVAL_STREAM, CallOptions.DEFAULT),
+				new StreamObserver<PBEvalResponseBytes>() {
+					@Override
+					public void onNext(PBEvalResponseBytes response) {
+						responses.add(response);
+					}
+
+					@Override
+					public void onError(Throwable t) {
+						result.completeExceptionally(t);
+					}
+
+					@Override
+					public void onCompleted() {
+						result.complete(responses);
+					}
+				});
+		requests.onNext(PBEvalRequestBytes.newBuilder().setId(7).setExpr(request).build());
+		requests.onCompleted();
+		List<PBEvalResponseBytes> received = result.get(60, TimeUnit.SECONDS);
+		assertEquals(1, received.size());
+		assertEquals(7, received.get(0).getId());
+		assertFalse(received.get(0).hasError());
+		assertEquals(request, received.get(0).getResult());
+	}
+
+	@Test
+	public void testEvalChunked() {
+		IExpr held = DeepExprTest.deep(DeepExprTest.DEPTH, F.x);
+		Iterator<PBChunkBytes> chunks = ClientCalls.blockingServerStreamingCall(fChannel, WireMethods.EVAL_CHUNKED,
+				CallOptions.DEFAULT, DeepExprTest.encode(F.List(held, held)));
+		PBChunkBytes header = chunks.next();
+		assertEquals(DeepExprTest.encode(F.List), header.getHeader().getHead());
+		assertEquals(2, header.getHeader().getArgCount());
+		List<ByteString> args = new ArrayList<ByteString>();
+		PBChunkBytes chunk = chunks.next();
+		while (chunk.getPartCase() == PBChunkBytes.PartCase.BATCH) {
+			args.addAll(chunk.getBatch().getArgList());
+			chunk = chunks.next();
+		}
+		assertEquals(PBChunkBytes.PartCase.TRAILER, chunk.getPartCase());
+		assertEquals(2, args.size());
+		assertEquals(DeepExprTest.encode(held), args.get(0));
+		assertEquals(DeepExprTest.encode(held), args.get(1));
+	}
+
+	@Test
+	public void testEvalMap() {
+		// the deep function is decoded; applied to a number it doesn't evaluate to a number
+		PBMapRequestBytes request = PBMapRequestBytes.newBuilder().//
+				setFunction(deep()).//
+				setRealInput(PBPackedVector.newBuilder().addValue(1.0).addValue(2.0)).//
+				build();
+		PBMapResponse response = call(WireMethods.EVAL_MAP, request);
+		assertEquals(2, response.getValue().getValueCount());
+		assertTrue(Double.isNaN(response.getValue().getValue(0)));
+		assertTrue(Double.isNaN(response.getValue().getValue(1)));
+	}
+
+	@Test
+	public void testPrepareExecute() {
+		PBPrepareRequestBytes request = PBPrepareRequestBytes.newBuilder().//
+				setTemplate(deep()).//
+				addSlot("x").//
+				build();
+		PBPrepared prepared = call(WireMethods.PREPARE, request);
+		PBExecuteRequest execute = PBExecuteRequest.newBuilder().//
+				setHandle(prepared.getHandle()).//
+				setRealValues(PBPackedVector.newBuilder().addValue(2.0)).//
+				build();
+		ByteString expected = DeepExprTest.encode(DeepExprTest.deep(DeepExprTest.DEPTH, F.num(2.0)));
+		assertEquals(expected, call(WireMethods.EXECUTE, execute));
+	}
+
+	@Test
+	public void testEvalInSession() {
+		SymjaServiceGrpc.SymjaServiceBlockingStub stub = SymjaServiceGrpc.newBlockingStub(fChannel);
+		PBSession session = stub.openSession(PBOpenSessionRequest.getDefaultInstance());
+		try {
+			ByteString expr = deep();
+			PBSessionEvalRequestBytes request = PBSessionEvalRequestBytes.newBuilder().//
+					setSessionId(session.getId()).//
+					setExpr(expr).//
+					build();
+			assertEquals(expr, call(WireMethods.EVAL_IN_SESSION, request));
+		} finally {
+			stub.closeSession(session);
+		}
+	}
+
+	@Test
+	public void testInvalidExpression() throws IOException {
+		// an AST with two heads is a valid protobuf message, but not a valid expression
+		PBExpr head = PBExpr.newBuilder().setIdentifier(PBSymbol.newBuilder().setName("f")).build();
+		ByteString ast = PBAST.newBuilder().setHead(head).build().toByteString();
+		ByteString.Output bytes = ByteString.newOutput();
+		CodedOutputStream output = CodedOutputStream.newInstance(bytes);
+		output.writeBytes(PBExpr.AST_FIELD_NUMBER, ast.concat(ast));
+		output.flush();
+		try {
+			call(WireMethods.EVAL, bytes.toByteString());
+			fail();
+		} catch (StatusRuntimeException e) {
+			assertEquals(Status.Code.INVALID_ARGUMENT, e.getStatus().getCode());
+			assertEquals(PBError.Code.SYNTAX, EvalErrors.errorOf(e).getCode());
+		}
+	}
+
+	@Test
+	public void testEmptyArgument() {
+		PBExpr head = PBExpr.newBuilder().setIdentifier(PBSymbol.newBuilder().setName("f")).build();
+		PBExpr empty = PBExpr.newBuilder().setAst(PBAST.newBuilder().setHead(head).addArg(PBExpr.getDefaultInstance()))
+				.build();
+		try {
+			call(WireMethods.EVAL, empty.toByteString());
+			fail();
+		} catch (StatusRuntimeException e) {
+			assertEquals(Status.Code.INVALID_ARGUMENT, e.getStatus().getCode());
+			assertEquals(PBError.Code.SYNTAX, EvalErrors.errorOf(e).getCode());
+		}
+	}
+
+	@Test
+	public void testUnknownSymbolId() {
+		PBExpr unknown = PBExpr.newBuilder().setSymbol(PBBuiltinSymbol.newBuilder().setIdValue(1 << 20)).build();
+		try {
+			call(WireMethods.EVAL, unknown.toByteString());
+			fail();
+		} catch (StatusRuntimeException e) {
+			assertEquals(Status.Code.INVALID_ARGUMENT, e.getStatus().getCode());
+			assertEquals(PBError.Code.SYNTAX, EvalErrors.errorOf(e).getCode());
+		}
+	}
+
+	@Test
+	public void testLeafCount() {
+		IExpr expr = DeepExprTest.deep(DeepExprTest.DEPTH, F.x);
+		// Hold, every f and x
+		assertEquals(DeepExprTest.DEPTH + 2, EvalQuota.leafCount(expr, Long.MAX_VALUE));
+		assertTrue(EvalQuota.leafCount(expr, 10) > 10);
+	}
+
+	@Test
+	public void testSideEffectFree() {
+		assertTrue(ResultCache.isSideEffectFree(deep()));
+		IExpr assignment = DeepExprTest.deep(DeepExprTest.DEPTH, F.Set(F.x, F.C1));
+		assertFalse(ResultCache.isSideEffectFree(DeepExprTest.encode(assignment)));
+		// a built-in function sent by its name
+		PBExpr set = PBExpr.newBuilder().setIdentifier(PBSymbol.newBuilder().setName("Set")).build();
+		PBExpr byName = PBExpr.newBuilder().setAst(PBAST.newBuilder().setHead(set).addArg(set)).build();
+		assertFalse(ResultCache.isSideEffectFree(byName));
+		assertFalse(ResultCache.isSideEffectFree(byName.toByteString()));
+	}
+
+	@Test
+	public void testInvalidatedResultIsNotCached() {
+		ResultCache cache = new ResultCache(16, 1L << 20, 0L);
+		ByteString key = deep();
+		long generation = cache.generation();
+		cache.invalidateAll();
+		cache.put(key, key, generation);
+		assertEquals(null, cache.get(key));
+		cache.put(key, key, cache.generation());
+		assertEquals(key, cache.get(key));
+	}
+}